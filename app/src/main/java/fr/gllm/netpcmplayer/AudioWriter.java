@@ -0,0 +1,528 @@
+/*
+ *  AudioWriter   Thread mixing every PCM source into the AudioTrack
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Process;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The blocking AudioTrack.write() paces the loop: every iteration mixes one block of each playing
+ * source, a source that is (re)buffering contributes silence. Once started, the AudioTrack stays
+ * primed between sessions: it is fed with silence while no source is playing, so that the next
+ * session neither pays the startup latency of play() nor pops. It is only stopped after
+ * TRACK_IDLE_TIMEOUT_NS without any playing source.
+ * Sessions streaming digital silence are paused on it instead: once every source has been silent
+ * for the silence timeout, the AudioTrack is paused and flushed and the service lets the CPU
+ * sleep. The sources are held at their target fill meanwhile, polled at a fraction of it: the
+ * first sound is already buffered when the loop notices it, the AudioTrack restarts on it.
+ * A retired AudioWriter hands its producers over to its successor: it keeps playing what its
+ * sources buffered, fades out when the successor starts playing (which fades in), then lets its
+ * AudioTrack drain and releases it.
+ * Timestamped sources are told when the block they mix will be heard: the frames written before
+ * it are extrapolated from the last AudioTrack timestamp, queried every sTimestampPeriodNs.
+ * The mix goes through the DSP chain (gain, bass and treble shelves, limiter) before the fades
+ * and the conversion to the AudioTrack encoding.
+ * The thread runs at the urgent audio priority, above the reader threads. Every write is watched:
+ * a write stuck for longer than the watchdog timeout is aborted, and the service swaps in a
+ * new AudioWriter.
+ */
+final class AudioWriter implements Runnable {
+
+    static final int MAX_SOURCES = 8;
+    static final long TRACK_IDLE_TIMEOUT_NS = 10000000000L;
+
+    private static final long sBufferingWaitNs = 2000000L;
+    private static final long sIdleWaitNs = 100000000L;
+    private static final long sMinSilencePollNs = 2000000L;
+    private static final int sCrossfadeMs = 20;
+    private static final long sDrainTimeoutNs = 1000000000L;
+    private static final long sTimestampPeriodNs = 250000000L;
+    private static final double sBassHz = 100;
+    private static final double sTrebleHz = 10000;
+    private static final double sShelfSlope = 1;
+
+    private final Main mMain;
+    private final PlaybackMetrics mMetrics;
+    private final PlaybackMetrics.TrackPoll mTrackPoll = new PlaybackMetrics.TrackPoll();
+    private final EventTrace mTrace;
+    private final AudioTrack mAudioTrack;
+    private final int mTrackEncoding;
+    private final boolean mDither;
+    private final int mChannels;
+    private final int mFrameSize;
+    private final int mBlockFrames;
+    private final int mSampleRate;
+    private final int mTrackSampleRate;
+    private final int mFadeFrames;
+    /* a quarter of the target fill of the sources, the margin left before a producer waits */
+    private final long mSilencePollNs;
+    private final PcmSource[] mSources = new PcmSource[MAX_SOURCES];
+    private final GainStage mGain;
+    private final BiquadStage mBass;
+    private final BiquadStage mTreble;
+    private final SoftLimiter mLimiter;
+    private final DspChain mDsp;
+
+    /* preallocated blocks, nothing is allocated once the thread runs */
+    private final float[] mMix;
+    private final byte[] mOutBytes;
+
+    private volatile Thread mThread = null;
+    private volatile boolean mQuit = false;
+    private volatile int mError = 0;
+    private volatile boolean mRetired = false;
+    private volatile boolean mFadingOut = false;
+    private volatile AudioWriter mPredecessor = null;
+    private volatile Watchdog.Component mWatch = null;
+    private volatile boolean mAborted = false;
+    /* stream frames of silence of every source before the AudioTrack is paused, 0 for never */
+    private volatile long mSilenceTimeoutFrames = 0;
+    private boolean mSilencePaused = false;
+    /* fade positions in frames, the fade in is over once its position reaches mFadeFrames */
+    private int mFadeInPos;
+    private int mFadeOutPos = 0;
+    private boolean mPlaying = false;
+    /* start of the silence fed to the AudioTrack, -1 while a source plays */
+    private long mIdleSinceNs = -1;
+    private long mFramesSincePlay = 0;
+    private int mDitherSeed = 0;
+    /* fullest jitter buffer of the playing sources during the block, in bytes */
+    private int mMaxRingFill;
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private boolean mHasTimestamp = false;
+    private long mTimestampQueryNs = 0;
+    /* local time the block being mixed will be heard, 0 until needed by a source */
+    private long mPresentationNs;
+
+    /*
+     * encoding, channelMask and sampleRate are the ones of the sources, trackEncoding,
+     * trackChannelMask and trackSampleRate the ones of the AudioTrack. High resolution sources are
+     * dithered when the AudioTrack can't take floats, sources are routed when the channels differ
+     * and resampled when the rates differ. The jitter buffer of each source holds ringSizeInBytes
+     * and is kept at targetFillInFrames. blockFrames is the size of a write, in AudioTrack frames.
+     */
+    AudioWriter(Main main, AudioTrack audioTrack, int encoding, int trackEncoding, int channelMask,
+                int trackChannelMask, int sampleRate, int trackSampleRate, int ringSizeInBytes,
+                int targetFillInFrames, int blockFrames) {
+        mMain = main;
+        mMetrics = main.getMetrics();
+        mTrace = main.getTrace();
+        mAudioTrack = audioTrack;
+        mTrackEncoding = trackEncoding;
+        mDither = trackEncoding == AudioFormat.ENCODING_PCM_16BIT &&
+                PcmConverter.isHighResolution(encoding);
+        final int channels = Integer.bitCount(trackChannelMask);
+        final int inChannels = Integer.bitCount(channelMask);
+        mChannels = channels;
+        mFrameSize = inChannels * PcmConverter.getBytesPerSample(encoding);
+        mBlockFrames = Math.max(blockFrames, 1);
+        mSampleRate = sampleRate;
+        mTrackSampleRate = trackSampleRate;
+        mFadeFrames = Math.max(trackSampleRate * sCrossfadeMs / 1000, 1);
+        mSilencePollNs = Math.max(Math.min((long) targetFillInFrames * 1000000000L /
+                sampleRate / 4, sIdleWaitNs), sMinSilencePollNs);
+        mFadeInPos = mFadeFrames;
+        mMix = new float[mBlockFrames * channels];
+        mOutBytes = trackEncoding == AudioFormat.ENCODING_PCM_FLOAT ? null :
+                new byte[mBlockFrames * channels * PcmConverter.getBytesPerSample(trackEncoding)];
+        /* the matrix and filter tables are computed once, every source shares them */
+        final ChannelRouter router = ChannelRouter.forMasks(channelMask, trackChannelMask);
+        final PolyphaseResampler.Filter converterFilter = sampleRate != trackSampleRate ?
+                new PolyphaseResampler.Filter(sampleRate, trackSampleRate) : null;
+        for (int i = 0; i < MAX_SOURCES; ++i)
+            mSources[i] = new PcmSource(i, ringSizeInBytes, targetFillInFrames, encoding,
+                    inChannels, mFrameSize, sampleRate, mBlockFrames, router, converterFilter);
+        mGain = new GainStage(channels, trackSampleRate);
+        mBass = new BiquadStage("bass", channels, trackSampleRate);
+        mTreble = new BiquadStage("treble", channels, trackSampleRate);
+        mLimiter = new SoftLimiter(channels, trackSampleRate);
+        mDsp = new DspChain(mGain, mBass, mTreble, mLimiter);
+    }
+
+    /* Any thread: parameters of the DSP chain, gains in dB, picked up on the next block */
+    void setDsp(int gain, int bass, int treble, boolean limiter) {
+        mGain.setGainDb(gain);
+        mBass.setBand(BiquadStage.LOW_SHELF, sBassHz, bass, sShelfSlope);
+        mTreble.setBand(BiquadStage.HIGH_SHELF, sTrebleHz, treble, sShelfSlope);
+        mLimiter.setEnabled(limiter);
+    }
+
+    /* Any thread: pause the AudioTrack after that many seconds of silence, 0 to never pause */
+    void setSilenceTimeout(int seconds) {
+        mSilenceTimeoutFrames = (long) seconds * mSampleRate;
+    }
+
+    DspChain getDspChain() {
+        return mDsp;
+    }
+
+    /*
+     * Network thread: get a free source to produce into, null if all are used. A source taking
+     * over replaces the others on the block it starts playing.
+     */
+    PcmSource acquireSource(String name, boolean takeover) {
+        for (PcmSource source : mSources) {
+            if (source.tryAcquire(name, takeover)) {
+                final Thread thread = mThread;
+                if (thread != null)
+                    LockSupport.unpark(thread);
+                return source;
+            }
+        }
+        return null;
+    }
+
+    /* Any thread: true once every source was released by both sides */
+    boolean isIdle() {
+        for (PcmSource source : mSources)
+            if (source.isActive())
+                return false;
+        return true;
+    }
+
+    /* Any thread: stop the loop and abort every source */
+    void quit() {
+        mQuit = true;
+        for (PcmSource source : mSources)
+            source.ring.close();
+        final Thread thread = mThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /*
+     * Any thread, once the successor is created: move the producers away. The sources still play
+     * what they buffered, the AudioTrack is released by this thread once done.
+     */
+    void retire() {
+        mRetired = true;
+        for (PcmSource source : mSources)
+            if (source.isActive())
+                source.retire();
+        final Thread thread = mThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /* Any thread: true once retire() was called */
+    boolean isRetired() {
+        return mRetired;
+    }
+
+    /* Before run(): the predecessor fades out when this one starts playing */
+    void setPredecessor(AudioWriter predecessor) {
+        mPredecessor = predecessor;
+    }
+
+    /* Before run(): bracket the AudioTrack writes, unregistered when the loop ends */
+    void setWatch(Watchdog.Component watch) {
+        mWatch = watch;
+    }
+
+    /*
+     * Watchdog thread: the AudioTrack write is stuck, pausing and flushing the AudioTrack makes it
+     * return. The loop then quits without draining, retire() first to move the producers away.
+     */
+    void abort() {
+        mAborted = true;
+        quit();
+        try {
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+        } catch (IllegalStateException ignored) {
+            /* the loop ended and released it meanwhile */
+        }
+    }
+
+    private void fadeOut() {
+        mFadingOut = true;
+        final Thread thread = mThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /* Last AudioTrack error, 0 if none */
+    int getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        mThread = Thread.currentThread();
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        final int blockSamples = mBlockFrames * mChannels;
+        final Watchdog.Component watch = mWatch;
+
+        while (!mQuit) {
+            if (updateSilencePause()) {
+                LockSupport.parkNanos(this, mSilencePollNs);
+                continue;
+            }
+            final long now = System.nanoTime();
+            Arrays.fill(mMix, 0, blockSamples, 0f);
+            boolean active = false;
+            boolean playing = false;
+            mMaxRingFill = 0;
+            mPresentationNs = 0;
+
+            /* A source taking over is mixed first, once it plays the others end on this block */
+            PcmSource takingOver = null;
+            for (PcmSource source : mSources) {
+                if (!source.isActive() || source.isEnded() || !source.isTakingOver())
+                    continue;
+                active = true;
+                if (mixSource(source, now))
+                    playing = true;
+                if (source.isPlaying())
+                    takingOver = source;
+            }
+            for (PcmSource source : mSources) {
+                if (!source.isActive() || source.isEnded() || source.isTakingOver())
+                    continue;
+                active = true;
+                if (takingOver != null && !source.isFadingOut()) {
+                    mMain.addLog(false, "source " + takingOver.index + " takes over source " +
+                            source.index + ": " + source.getName());
+                    source.fadeOut();
+                }
+                if (mixSource(source, now))
+                    playing = true;
+            }
+            if (takingOver != null)
+                takingOver.endTakeover();
+
+            if (mRetired && (!active || (!playing && mFadingOut)))
+                break;
+            if (!playing && mPlaying) {
+                if (mIdleSinceNs == -1)
+                    mIdleSinceNs = now;
+                else if (now - mIdleSinceNs >= TRACK_IDLE_TIMEOUT_NS) {
+                    mMain.addLog(false, "AudioTrack idle for " + TRACK_IDLE_TIMEOUT_NS / 1000000000L +
+                            " s, stopping it");
+                    stopTrack();
+                }
+            }
+            if (!playing && !mPlaying) {
+                LockSupport.parkNanos(this, active ? sBufferingWaitNs : sIdleWaitNs);
+                continue;
+            }
+            if (playing)
+                mIdleSinceNs = -1;
+
+            if (!mPlaying) {
+                mAudioTrack.play();
+                mPlaying = true;
+                mFramesSincePlay = 0;
+                final AudioWriter predecessor = mPredecessor;
+                if (predecessor != null) {
+                    mPredecessor = null;
+                    predecessor.fadeOut();
+                    mFadeInPos = 0;
+                }
+            }
+            mDsp.process(mMix, mBlockFrames);
+            if (mFadeInPos < mFadeFrames)
+                mFadeInPos = ramp(mFadeInPos, true);
+            else if (mFadingOut)
+                mFadeOutPos = ramp(mFadeOutPos, false);
+            final long writeStart = System.nanoTime();
+            if (watch != null)
+                watch.enter(writeStart);
+            final int written = writeMix(blockSamples);
+            if (watch != null)
+                watch.exit();
+            if (mAborted)
+                break;
+            if (written > 0) {
+                final long writeEnd = System.nanoTime();
+                mFramesSincePlay += mBlockFrames;
+                /* the successor reports from now on, the counters have a single writer */
+                if (!mRetired) {
+                    mMetrics.onWrite(writeEnd - writeStart, mBlockFrames);
+                    mMetrics.onBufferLatency((long) mMaxRingFill / mFrameSize * 1000000000L /
+                            mSampleRate);
+                    mMetrics.pollTrack(mTrackPoll, mAudioTrack, mFramesSincePlay, writeEnd);
+                }
+            }
+            if (written < 0) {
+                mError = written;
+                mMain.addLog(true, "AudioTrack write failed: " + written);
+                /* abort every producer, their sources end on the next iteration */
+                for (PcmSource source : mSources)
+                    if (source.isActive())
+                        source.ring.close();
+                stopTrack();
+            }
+            if (mFadeOutPos >= mFadeFrames)
+                break;
+        }
+
+        for (PcmSource source : mSources) {
+            if (source.isActive() && !source.isEnded()) {
+                /* a producer not moved yet gets a closed ring and moves on */
+                source.ring.close();
+                releaseSource(source);
+            }
+        }
+        if (watch != null)
+            watch.unregister();
+        if (mRetired) {
+            if (mPlaying && !mAborted)
+                drainTrack();
+            mAudioTrack.release();
+        } else if (mPlaying)
+            stopTrack();
+        if (mSilencePaused) {
+            mSilencePaused = false;
+            mMain.onSilencePause(false);
+        }
+        mThread = null;
+    }
+
+    /*
+     * Pause the AudioTrack once every active source has been silent for the timeout, and hold
+     * the sources while it is. A source about to end, fade or take over plays instead, so does
+     * a retired AudioWriter. Returns true while paused.
+     */
+    private boolean updateSilencePause() {
+        final long timeoutFrames = mSilenceTimeoutFrames;
+        boolean silent = timeoutFrames > 0 && !mRetired;
+        boolean active = false;
+        for (PcmSource source : mSources) {
+            if (!silent)
+                break;
+            if (!source.isActive() || source.isEnded())
+                continue;
+            active = true;
+            final PcmRingBuffer ring = source.ring;
+            if (source.getSilentFrames() < timeoutFrames || ring.isEndOfStream() ||
+                    ring.isClosed() || source.isTakingOver() || source.isFadingOut())
+                silent = false;
+        }
+        if (silent && active) {
+            if (!mSilencePaused) {
+                mSilencePaused = true;
+                mMain.addLog(false, "Silence for " + timeoutFrames / mSampleRate +
+                        " s, pausing the AudioTrack");
+                if (mPlaying) {
+                    mAudioTrack.pause();
+                    mAudioTrack.flush();
+                    mPlaying = false;
+                    mIdleSinceNs = -1;
+                }
+                mMain.onSilencePause(true);
+            }
+            for (PcmSource source : mSources)
+                if (source.isActive() && !source.isEnded())
+                    source.holdSilence();
+            return true;
+        }
+        if (mSilencePaused) {
+            mSilencePaused = false;
+            mMain.addLog(false, "End of the silence, resuming the AudioTrack");
+            mMain.onSilencePause(false);
+        }
+        return false;
+    }
+
+    /* Returns true if the source is playing, it is released once ended */
+    private boolean mixSource(PcmSource source, long now) {
+        if (source.isTimestamped()) {
+            if (mPresentationNs == 0)
+                mPresentationNs = getPresentationTime(now);
+            source.setPresentationTime(mPresentationNs);
+        }
+        if (source.isPlaying())
+            mMaxRingFill = Math.max(mMaxRingFill, source.ring.getFill());
+        final long underruns = source.getUnderrunCount();
+        final boolean playing = source.mixInto(mMix, mBlockFrames, now) || source.isPlaying();
+        if (source.getUnderrunCount() != underruns)
+            mTrace.trace(EventTrace.EVENT_SOURCE_UNDERRUN, source.index, underruns + 1);
+        if (source.isEnded())
+            releaseSource(source);
+        return playing;
+    }
+
+    /* Local time at which the next frame written will be heard */
+    private long getPresentationTime(long now) {
+        if (!mPlaying) {
+            mHasTimestamp = false;
+            return now;
+        }
+        if (now - mTimestampQueryNs >= sTimestampPeriodNs) {
+            mTimestampQueryNs = now;
+            mHasTimestamp = mAudioTrack.getTimestamp(mTimestamp);
+        }
+        if (mHasTimestamp)
+            return mTimestamp.nanoTime + (mFramesSincePlay - mTimestamp.framePosition) *
+                    1000000000L / mTrackSampleRate;
+        /* before the first timestamp, only the frames queued are known */
+        final long queued = mFramesSincePlay - (mAudioTrack.getPlaybackHeadPosition() & 0xffffffffL);
+        return now + Math.max(queued, 0) * 1000000000L / mTrackSampleRate;
+    }
+
+    /* Apply a linear fade to the mix block, returns the new fade position */
+    private int ramp(int pos, boolean in) {
+        for (int f = 0; f < mBlockFrames; ++f) {
+            final float progress = Math.min(pos + f, mFadeFrames) / (float) mFadeFrames;
+            final float gain = in ? progress : 1f - progress;
+            final int offset = f * mChannels;
+            for (int c = 0; c < mChannels; ++c)
+                mMix[offset + c] *= gain;
+        }
+        return Math.min(pos + mBlockFrames, mFadeFrames);
+    }
+
+    /* Let a retired AudioTrack play what it holds, flushing it would cut the fade out */
+    private void drainTrack() {
+        mAudioTrack.stop();
+        final long deadline = System.nanoTime() + sDrainTimeoutNs;
+        while ((mAudioTrack.getPlaybackHeadPosition() & 0xffffffffL) < mFramesSincePlay &&
+                System.nanoTime() < deadline)
+            LockSupport.parkNanos(this, sBufferingWaitNs);
+        mPlaying = false;
+    }
+
+    private int writeMix(int samples) {
+        if (mTrackEncoding == AudioFormat.ENCODING_PCM_FLOAT) {
+            PcmConverter.saturate(mMix, samples);
+            return mAudioTrack.write(mMix, 0, samples, AudioTrack.WRITE_BLOCKING);
+        }
+        if (mDither)
+            mDitherSeed = PcmConverter.fromFloatDithered(mMix, samples, mOutBytes, 0, mDitherSeed);
+        else
+            PcmConverter.fromFloat(mTrackEncoding, mMix, samples, mOutBytes, 0);
+        return mAudioTrack.write(mOutBytes, 0, samples * PcmConverter.getBytesPerSample(mTrackEncoding));
+    }
+
+    private void releaseSource(PcmSource source) {
+        final PcmRingBuffer ring = source.ring;
+        mMain.addLog(false, "source " + source.index + " ended: " + source.getName() +
+                ", ring fill: min: " + ring.getMinFill() + ", max: " + ring.getMaxFill() +
+                ", underruns: " + source.getUnderrunCount() + ", full: " + ring.getProducerWaitCount() +
+                ", drift: " + String.format(Locale.US, "%.1f", source.getDriftPpm()) + " ppm");
+        source.release();
+    }
+
+    private void stopTrack() {
+        mAudioTrack.flush();
+        mAudioTrack.stop();
+        mPlaying = false;
+        mIdleSinceNs = -1;
+    }
+}
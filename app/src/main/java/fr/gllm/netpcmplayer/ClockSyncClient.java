@@ -0,0 +1,105 @@
+/*
+ *  ClockSyncClient Thread exchanging clock packets with the sender of a timestamped stream
+ *  Copyright (c)   2017 Thomas Guillem <thomas@gllm.fr>
+ *                  All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+
+/*
+ * A burst of exchanges gets a first offset quickly, then one exchange a second follows the drift
+ * of the clocks. A lost packet only delays the next exchange.
+ */
+final class ClockSyncClient implements Runnable {
+
+    private static final int sBurstCount = 8;
+    private static final int sBurstPeriodMs = 50;
+    private static final int sPeriodMs = 1000;
+    private static final int sAnswerTimeoutMs = 200;
+
+    private final Main mMain;
+    private final ClockSync mSync;
+    private final InetSocketAddress mAddress;
+    private final byte[] mBuffer = new byte[ClockSync.PACKET_SIZE];
+    private volatile boolean mQuit = false;
+    private volatile DatagramSocket mSocket = null;
+    private long mExchanges = 0;
+    private long mAnswers = 0;
+
+    ClockSyncClient(Main main, ClockSync sync, InetSocketAddress address) {
+        mMain = main;
+        mSync = sync;
+        mAddress = address;
+    }
+
+    /* Any thread: stop the exchanges, run() returns shortly */
+    void quit() {
+        mQuit = true;
+        final DatagramSocket socket = mSocket;
+        if (socket != null)
+            socket.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            final DatagramSocket socket = new DatagramSocket();
+            mSocket = socket;
+            if (mQuit) {
+                socket.close();
+                return;
+            }
+            socket.connect(mAddress);
+            socket.setSoTimeout(sAnswerTimeoutMs);
+            final DatagramPacket packet = new DatagramPacket(mBuffer, mBuffer.length);
+            while (!mQuit) {
+                exchange(socket, packet);
+                Thread.sleep(mExchanges < sBurstCount ? sBurstPeriodMs : sPeriodMs);
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            if (!mQuit)
+                mMain.addLog(true, "Clock sync with " + mAddress + " failed", e);
+        } finally {
+            final DatagramSocket socket = mSocket;
+            if (socket != null)
+                socket.close();
+            mMain.addLog(false, String.format(Locale.US,
+                    "clock sync: %d/%d answers, offset: %.3f ms, round trip: %.3f ms: %s",
+                    mAnswers, mExchanges, mSync.getOffsetNs() / 1e6,
+                    mSync.getRoundTripNs() / 1e6, mAddress));
+        }
+    }
+
+    private void exchange(DatagramSocket socket, DatagramPacket packet) throws IOException {
+        mExchanges++;
+        packet.setData(mBuffer, 0, mSync.writeRequest(mBuffer, System.nanoTime()));
+        socket.send(packet);
+        final long deadline = System.nanoTime() + sAnswerTimeoutMs * 1000000L;
+        while (System.nanoTime() < deadline) {
+            packet.setData(mBuffer, 0, mBuffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException timeoutIgnored) {
+                return;
+            }
+            /* an answer to an older request is skipped */
+            if (mSync.onResponse(mBuffer, packet.getLength(), System.nanoTime())) {
+                mAnswers++;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  DecodeStage   Thread decoding a compressed stream into a PCM source
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * The socket reader only copies compressed bytes into a ring (frame size 1), this stage decodes
+ * them and becomes the producer of the PCM source, so a slow frame never stalls the socket.
+ * When the source is retired, decoding continues into a source of the new AudioWriter.
+ * The decoded PCM goes to the capture, if any: the compressed bytes wouldn't tell much.
+ */
+final class DecodeStage implements Runnable {
+
+    private static final long sWaitNs = 20000000L;
+
+    /*
+     * Blocking stream over the ring of compressed bytes (frame size 1): reads wait for data,
+     * and end once the ring is ended and drained, or closed.
+     */
+    private static final class RingInputStream extends InputStream {
+        private final PcmRingBuffer mRing;
+        private final byte[] mByte = new byte[1];
+
+        RingInputStream(PcmRingBuffer ring) {
+            mRing = ring;
+        }
+
+        @Override
+        public int read() {
+            return read(mByte, 0, 1) == -1 ? -1 : mByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            while (true) {
+                final int read = mRing.read(b, off, len, sWaitNs);
+                if (read != 0)
+                    return read;
+                /* timed out: the producer may have closed the ring meanwhile */
+                if (mRing.isClosed())
+                    return -1;
+            }
+        }
+    }
+
+    private final Main mMain;
+    private final String mName;
+    private final PcmRingBuffer mInRing;
+    private final StreamHeader mHeader;
+    private PcmSource mSource;
+    private final LosslessDecoder mDecoder;
+    private final int mFrameSize;
+    private final WavCapture mCapture;
+    private long mDecodeNs = 0;
+    private long mFrames = 0;
+
+    DecodeStage(Main main, String name, PcmRingBuffer inRing, PcmSource source, StreamHeader header,
+                WavCapture capture) {
+        mMain = main;
+        mName = name;
+        mInRing = inRing;
+        mHeader = header;
+        mSource = source;
+        mDecoder = new LosslessDecoder(header.encoding, Integer.bitCount(header.channelMask));
+        mFrameSize = source.ring.getFrameSize();
+        mCapture = capture;
+    }
+
+    /* Source produced into once the thread is joined, null if it was lost while moving */
+    PcmSource getSource() {
+        return mSource;
+    }
+
+    private boolean write(int frames) {
+        if (mCapture != null)
+            mCapture.write(mDecoder.getOutput(), 0, frames * mFrameSize);
+        while (true) {
+            if (!mSource.isRetired() &&
+                    mSource.ring.write(mDecoder.getOutput(), 0, frames * mFrameSize))
+                return true;
+            if (!mSource.isRetired())
+                return false;
+            mSource = mMain.migrateSource(mSource, mHeader, mName);
+            if (mSource == null)
+                return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        boolean endOfStream = false;
+        mDecoder.reset(new RingInputStream(mInRing));
+        try {
+            while (true) {
+                final long start = System.nanoTime();
+                final int frames = mDecoder.decodeFrame();
+                if (frames == -1) {
+                    endOfStream = !mInRing.isClosed();
+                    break;
+                }
+                mDecodeNs += System.nanoTime() - start;
+                mFrames += frames;
+                /* a keepalive frame has no PCM */
+                if (frames > 0 && !write(frames))
+                    break;
+            }
+        } catch (IOException e) {
+            if (!mInRing.isClosed())
+                mMain.addLog(true, "Decoding failed: " + mName, e);
+        } finally {
+            if (mSource != null) {
+                if (endOfStream)
+                    mSource.ring.setEndOfStream();
+                else
+                    mSource.ring.close();
+            }
+            /* stop the socket reader if the decoder or the playback gave up */
+            mInRing.close();
+            mMain.addLog(false, "decoded " + mFrames + " frames in " + mDecodeNs / 1000000 +
+                    " ms, compressed: " + mInRing.getReadBytes() + " bytes, pcm: " +
+                    mFrames * mFrameSize + " bytes: " + mName);
+        }
+    }
+}
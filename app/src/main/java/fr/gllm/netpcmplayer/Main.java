@@ -16,28 +16,43 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.media.AudioAttributes;
+import android.media.AudioDeviceInfo;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
+import android.os.Process;
 import android.os.PowerManager;
+import android.preference.PreferenceManager;
 import android.support.annotation.MainThread;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
 
@@ -60,44 +75,125 @@ public class Main extends Service implements Runnable {
 
     static class Arguments  implements Parcelable {
         final boolean wakelock;
+        /* seconds of silence before the AudioTrack is paused, 0 for never */
+        final int silenceTimeout;
         final int audioSampleRate;
         final int audioChannelMask;
         final int audioEncoding;
         final int audioDelayInMs;
+        final int audioVolume;
+        final int serverProtocol;
         final int serverPort;
         final String serverBindAddr;
-
-        Arguments(boolean wakelock, int audioSampleRate, int audioChannelMask, int audioEncoding,
-                  int audioDelayInMs, int serverPort, String serverBindAddr) {
+        final int serverPolicy;
+        /* DSP chain of the AudioWriter, gains in dB */
+        final int dspGain;
+        final int dspBass;
+        final int dspTreble;
+        final boolean dspLimiter;
+
+        Arguments(boolean wakelock, int silenceTimeout, int audioSampleRate, int audioChannelMask,
+                  int audioEncoding, int audioDelayInMs, int audioVolume, int serverProtocol,
+                  int serverPort, String serverBindAddr, int serverPolicy, int dspGain, int dspBass,
+                  int dspTreble, boolean dspLimiter) {
             this.wakelock = wakelock;
+            this.silenceTimeout = silenceTimeout;
             this.audioSampleRate = audioSampleRate;
             this.audioChannelMask = audioChannelMask;
             this.audioEncoding = audioEncoding;
             this.audioDelayInMs = audioDelayInMs;
+            this.audioVolume = audioVolume;
+            this.serverProtocol = serverProtocol;
             this.serverPort = serverPort;
             this.serverBindAddr = serverBindAddr;
+            this.serverPolicy = serverPolicy;
+            this.dspGain = dspGain;
+            this.dspBass = dspBass;
+            this.dspTreble = dspTreble;
+            this.dspLimiter = dspLimiter;
         }
 
         boolean isValid() {
-            return audioSampleRate > 0 && audioChannelMask != -1 && audioEncoding != -1 &&
-                    audioDelayInMs > 0 && serverPort > 0 && serverPort < 65536;
+            return isValidSilenceTimeout(silenceTimeout) &&
+                    audioSampleRate > 0 && audioChannelMask != -1 &&
+                    PcmConverter.getBytesPerSample(audioEncoding) > 0 &&
+                    audioDelayInMs > 0 && audioVolume >= 0 && audioVolume <= 100 &&
+                    serverProtocol >= PROTOCOL_TCP && serverProtocol <= PROTOCOL_TCP_NIO &&
+                    serverPort > 0 && serverPort < 65536 &&
+                    serverPolicy >= POLICY_MIX && serverPolicy <= POLICY_QUEUE &&
+                    isValidDspGain(dspGain) && isValidDspGain(dspBass) && isValidDspGain(dspTreble);
+        }
+
+        static boolean isValidDspGain(int gain) {
+            return gain >= -DSP_MAX_GAIN && gain <= DSP_MAX_GAIN;
+        }
+
+        static boolean isValidSilenceTimeout(int timeout) {
+            return timeout >= 0 && timeout <= SILENCE_MAX_TIMEOUT;
+        }
+
+        /* Same arguments with the format of a stream header */
+        Arguments withFormat(StreamHeader header) {
+            return new Arguments(wakelock, silenceTimeout, header.sampleRate, header.channelMask, header.encoding,
+                    audioDelayInMs, audioVolume, serverProtocol, serverPort, serverBindAddr,
+                    serverPolicy, dspGain, dspBass, dspTreble, dspLimiter);
+        }
+
+        /* Same arguments with the format of other ones */
+        Arguments withFormat(Arguments args) {
+            return new Arguments(wakelock, silenceTimeout, args.audioSampleRate, args.audioChannelMask,
+                    args.audioEncoding, audioDelayInMs, audioVolume, serverProtocol, serverPort,
+                    serverBindAddr, serverPolicy, dspGain, dspBass, dspTreble, dspLimiter);
+        }
+
+        boolean hasSameFormat(Arguments args) {
+            return audioSampleRate == args.audioSampleRate &&
+                    audioChannelMask == args.audioChannelMask && audioEncoding == args.audioEncoding;
+        }
+
+        /* Same format and buffering: the AudioTrack can be kept */
+        boolean hasSameTrack(Arguments args) {
+            return hasSameFormat(args) && audioDelayInMs == args.audioDelayInMs;
+        }
+
+        boolean hasSameDsp(Arguments args) {
+            return dspGain == args.dspGain && dspBass == args.dspBass &&
+                    dspTreble == args.dspTreble && dspLimiter == args.dspLimiter;
+        }
+
+        /* Same listening socket: the server can be kept */
+        boolean hasSameServer(Arguments args) {
+            return serverProtocol == args.serverProtocol && serverPort == args.serverPort &&
+                    serverBindAddr.equals(args.serverBindAddr);
         }
 
         @Override
         public String toString() {
-            return "wl: " + wakelock + ", as: " + audioSampleRate + " Hz" + ", ac:" +
+            return "wl: " + wakelock + ", st: " + silenceTimeout + "s" + ", as: " +
+                    audioSampleRate + " Hz" + ", ac:" +
                     Integer.bitCount(audioChannelMask) + ", ae: " + audioEncoding + ", ad: " +
-                    audioDelayInMs + "ms" + ", sp: " +serverPort + ", sb: " + serverBindAddr;
+                    audioDelayInMs + "ms" + ", av: " + audioVolume + "%" + ", pr: " + serverProtocol +
+                    ", sp: " +serverPort + ", sb: " + serverBindAddr + ", po: " + serverPolicy +
+                    ", dsp: " + dspGain + "/" + dspBass + "/" + dspTreble + " dB" +
+                    (dspLimiter ? " limited" : "");
         }
 
         Arguments(Parcel in) {
             wakelock = in.readByte() != 0;
+            silenceTimeout = in.readInt();
             audioSampleRate = in.readInt();
             audioChannelMask = in.readInt();
             audioEncoding = in.readInt();
             audioDelayInMs = in.readInt();
+            audioVolume = in.readInt();
+            serverProtocol = in.readInt();
             serverPort = in.readInt();
             serverBindAddr = in.readString();
+            serverPolicy = in.readInt();
+            dspGain = in.readInt();
+            dspBass = in.readInt();
+            dspTreble = in.readInt();
+            dspLimiter = in.readByte() != 0;
         }
 
         public static final Creator<Arguments> CREATOR = new Creator<Arguments>() {
@@ -120,58 +216,195 @@ public class Main extends Service implements Runnable {
         @Override
         public void writeToParcel(Parcel parcel, int i) {
             parcel.writeByte((byte) (wakelock ? 1 : 0));
+            parcel.writeInt(silenceTimeout);
             parcel.writeInt(audioSampleRate);
             parcel.writeInt(audioChannelMask);
             parcel.writeInt(audioEncoding);
             parcel.writeInt(audioDelayInMs);
+            parcel.writeInt(audioVolume);
+            parcel.writeInt(serverProtocol);
             parcel.writeInt(serverPort);
             parcel.writeString(serverBindAddr);
+            parcel.writeInt(serverPolicy);
+            parcel.writeInt(dspGain);
+            parcel.writeInt(dspBass);
+            parcel.writeInt(dspTreble);
+            parcel.writeByte((byte) (dspLimiter ? 1 : 0));
         }
 
         public boolean equals(Arguments args) {
-            return wakelock == args.wakelock && audioSampleRate == args.audioSampleRate &&
+            return wakelock == args.wakelock && silenceTimeout == args.silenceTimeout &&
+                    audioSampleRate == args.audioSampleRate &&
                     audioChannelMask == args.audioChannelMask && audioEncoding == args.audioEncoding &&
-                    audioDelayInMs == args.audioDelayInMs && serverPort == args.serverPort &&
-                    serverBindAddr.equals(args.serverBindAddr);
+                    audioDelayInMs == args.audioDelayInMs && audioVolume == args.audioVolume &&
+                    serverProtocol == args.serverProtocol &&
+                    serverPort == args.serverPort &&
+                    serverBindAddr.equals(args.serverBindAddr) &&
+                    serverPolicy == args.serverPolicy && hasSameDsp(args);
         }
     }
 
     static final String TAG = "NPCMP";
+    static final int PROTOCOL_TCP = 0;
+    static final int PROTOCOL_RTP = 1;
+    static final int PROTOCOL_TCP_NIO = 2;
+    /* What a new TCP client does while another one plays, the zero copy engine can't mix */
+    static final int POLICY_MIX = 0;
+    static final int POLICY_NEWEST_WINS = 1;
+    static final int POLICY_REJECT = 2;
+    static final int POLICY_QUEUE = 3;
+    /* bound of the DSP gains, in dB */
+    static final int DSP_MAX_GAIN = 24;
+    /* bound of the silence timeout, in s */
+    static final int SILENCE_MAX_TIMEOUT = 3600;
+    private static final long sQueuePollMs = 10;
+    /* read timeout of the reader threads, the liveness monitor is checked on each one */
+    private static final int sLivenessPollMs = 100;
+    /* linux socket options, not all exported by OsConstants */
+    private static final int sTcpKeepIdle = 4;
+    private static final int sTcpKeepInterval = 5;
+    private static final int sTcpKeepCount = 6;
+    private static final int sTcpUserTimeout = 18;
+    private static final int sTcpKeepaliveSeconds = 1;
+    private static final int sTcpKeepaliveProbes = 3;
+    private static final int sTcpUserTimeoutMs = 4000;
     private static final int sMinSocketReadOnceInBytes = 8192;
+    private static final int sDatagramReceiveBufferInBytes = 65536;
+
+    private static final long sFormatSwitchMarginMs = 500;
+    private static final int sCompressedRingInBytes = 65536;
+    /* rolling capture: two files of half the cap, and the backlog of the capture thread */
+    private static final long sCaptureCapBytes = 64L << 20;
+    private static final int sCaptureBacklogMs = 2000;
+    private static final String[] sCaptureFileNames = { "capture-0.wav", "capture-1.wav" };
+    /* WifiManager.WIFI_MODE_FULL_LOW_LATENCY, API 29: not in the SDK the app is built with */
+    private static final int sWifiModeFullLowLatency = 4;
+    private static final int sWifiLowLatencySdk = 29;
+    /*
+     * A write is stuck after the planned latency plus this margin, a read (that waits for room
+     * in the ring) after twice the margin: a stuck AudioWriter is recovered before its readers.
+     */
+    private static final long sWatchdogMarginNs = 2000000000L;
+    private static final long sWatchdogPollNs = 250000000L;
+    /* bounded joins on shutdown, a thread still stuck after them is left behind */
+    private static final long sJoinTimeoutMs = 2000;
+    private static final long sStopTimeoutMs = 10000;
 
     private Thread mThread = null;
-    private Arguments mArguments = null;
+    /* read by the reader threads, replaced in place by the main thread */
+    private volatile Arguments mArguments = null;
+    /* Arguments of the current AudioTrack: the user ones, or with the format of a stream header */
+    private Arguments mTrackArguments = null;
+    /* Protects mTrackArguments, mAudioTrack, mAudioWriter and its thread once the server runs */
+    private final Object mTrackLock = new Object();
     private boolean mServiceStarted = false;
     private boolean mStopping = false;
     private boolean mRestarting = false;
+    /* mThread doesn't respond to shutdown, a start waits in mPendingArguments until it exits */
+    private boolean mLeftBehind = false;
+    private Arguments mPendingArguments = null;
     private AudioTrack mAudioTrack = null;
     private ServerSocket mServerSocket = null;
-    private Socket mSocket = null;
+    private final ArrayList<Socket> mSockets = new ArrayList<>(AudioWriter.MAX_SOURCES);
+    private final ArrayList<Thread> mReaderThreads = new ArrayList<>(AudioWriter.MAX_SOURCES);
+    /* clients waiting for their turn with POLICY_QUEUE, oldest first */
+    private final ArrayDeque<Socket> mQueuedSockets = new ArrayDeque<>();
+    private DatagramSocket mDatagramSocket = null;
+    private DatagramPacket mDatagramPacket = null;
+    private RtpReceiver mRtpReceiver = null;
+    private NioEngine mNioEngine = null;
+    private Thread mAudioWriterThread = null;
+    /* previous AudioWriter playing out its buffers after a live reconfiguration */
+    private AudioWriter mRetiringAudioWriter = null;
+    private Thread mRetiringAudioWriterThread = null;
     private int mSocketReadOnceInBytes;
+    private int mFrameSizeInBytes;
+    private int mTrackEncoding;
+    private int mTrackChannelMask;
+    private int mTrackSampleRate;
+    private int mRingBufferSizeInBytes;
+    private LatencyPlan mLatencyPlan;
+    private AudioWriter mAudioWriter = null;
     private final IBinder mBinder = new LocalBinder();
     private PowerManager.WakeLock mWakelock = null;
+    private WifiManager.WifiLock mWifiLock = null;
+    private boolean mWakelockEnabled = false;
+    /* AudioWriters paused on silence: the current one, and a retiring one until it resumes */
+    private int mSilencePausedWriters = 0;
+    private int mActiveSessions = 0;
     private OnErrorListener mOnErrorListener = null;
-    private static final int LOG_COUNT = 30;
-    private ArrayList<String> mLogList = new ArrayList<>(LOG_COUNT);
-
-    private synchronized void addLog(boolean error, String log, Exception e) {
-        final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.getDefault());
-        final String time = sdf.format(Calendar.getInstance().getTime());
-        mLogList.add(time + " " + (error ? "E" : "V") + "/ " + log);
-        if (mLogList.size() > LOG_COUNT)
-            mLogList.remove(0);
+    private PlaybackMetrics mMetrics;
+    private final StreamReader.Listener mReadListener = new StreamReader.Listener() {
+        @Override
+        public void onRead(int bytes, long jitterNs) {
+            mMetrics.onRead(bytes);
+            mMetrics.onJitter(jitterNs);
+        }
+    };
+    private static final int sTraceCapacity = 1024;
+    private static final String sTraceFileName = "trace.bin";
+    private EventTrace mTrace;
+    /* a single session is captured at a time */
+    private WavCapture mCapture = null;
+    private Thread mCaptureThread = null;
+    private Watchdog mWatchdog = null;
+    private Thread mWatchdogThread = null;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (prefs.getBoolean(SettingsActivity.KEY_TRACE_FILE, false)) {
+            try {
+                mTrace = new EventTrace(sTraceCapacity, new File(getFilesDir(), sTraceFileName));
+            } catch (IOException e) {
+                Log.e(TAG, "trace file creation failed", e);
+            }
+        }
+        if (mTrace == null)
+            mTrace = new EventTrace(sTraceCapacity);
+        mMetrics = new PlaybackMetrics(mTrace);
+    }
+
+    /* Lock-free, but the message is still built by the caller: not for the hot paths */
+    void addLog(boolean error, String log, Exception e) {
+        mTrace.trace(error ? EventTrace.EVENT_ERROR : EventTrace.EVENT_LOG,
+                e == null ? log : log + ": " + e);
         if (error)
             Log.e(TAG, log, e);
         else
             Log.d(TAG, log, e);
     }
 
-    private void addLog(boolean error, String log) {
+    void addLog(boolean error, String log) {
         addLog(error, log, null);
     }
 
-    public synchronized List<String> getLogs() {
-        return new ArrayList<>(mLogList);
+    /* Records of the trace, formatted now. Those left by a crashed instance come first. */
+    public List<String> getLogs() {
+        final List<String> recovered = mTrace.getRecovered();
+        final List<String> logs = mTrace.format();
+        if (recovered.isEmpty())
+            return logs;
+        final List<String> all = new ArrayList<>(recovered.size() + logs.size() + 2);
+        all.add("--- previous instance ---");
+        all.addAll(recovered);
+        all.add("--- current instance ---");
+        all.addAll(logs);
+        return all;
+    }
+
+    EventTrace getTrace() {
+        return mTrace;
+    }
+
+    PlaybackMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /* Any thread: counters since the service was created, without taking the service lock */
+    public PlaybackMetrics.Snapshot getMetricsSnapshot() {
+        return mMetrics.snapshot();
     }
 
     @Override
@@ -190,43 +423,554 @@ public class Main extends Service implements Runnable {
         return START_STICKY;
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
-    private void serverPlay() {
+    private void serverPlay(Socket socket) {
+        PcmSource source = null;
+        WavCapture capture = null;
+        ClockSyncClient syncClient = null;
+        Thread syncThread = null;
+        boolean sessionStarted = false;
         try {
-            mSocket.setSoTimeout(8000);
-        } catch (SocketException e) {
-            addLog(true, "Could not set Socket timeout");
-            return;
-        }
-
-        mAudioTrack.play();
-        try {
-            final InputStream is = mSocket.getInputStream();
-            final byte[] bytes = new byte[mSocketReadOnceInBytes];
+            socket.setSoTimeout((int) (LivenessMonitor.MAX_TIMEOUT_NS / 1000000));
+            final PushbackInputStream is = new PushbackInputStream(socket.getInputStream(),
+                    StreamHeader.MAGIC_SIZE);
+            final StreamHeader header = StreamHeader.read(is);
+            Arguments args = mArguments;
+            if (header != null) {
+                addLog(false, "Stream header: " + header + ": " + socket);
+                args = args.withFormat(header);
+                if (!args.isValid())
+                    throw new ProtocolException("invalid stream format: " + header);
+            }
 
-            while (true) {
-                final int read = is.read(bytes, 0, mSocketReadOnceInBytes);
-                if (read == -1) {
-                    mSocket.close();
-                    addLog(true, "Socket closed by the client");
-                    return;
+            final int policy = args.serverPolicy;
+            source = policy == POLICY_QUEUE ? acquireQueuedSource(args, socket) :
+                    acquireSource(args, socket.toString(), policy);
+            if (source == null) {
+                addLog(true, (policy == POLICY_REJECT ? "Busy" : "No source available") +
+                        ", rejecting socket: " + socket);
+                return;
+            }
+            addLog(false, "New socket accepted: " + socket + " (source " + source.index + ")");
+            onSessionStart();
+            sessionStarted = true;
+
+            /* Reads now time out quickly, the liveness monitor decides when the peer is dead */
+            setTcpLiveness(socket);
+            socket.setSoTimeout(sLivenessPollMs);
+            final boolean lossless = header != null && header.codec == StreamHeader.CODEC_LOSSLESS;
+            final LivenessMonitor liveness = new LivenessMonitor(lossless ? 0 :
+                    (long) args.audioSampleRate * Integer.bitCount(args.audioChannelMask) *
+                            PcmConverter.getBytesPerSample(args.audioEncoding));
+            liveness.reset(System.nanoTime());
+            /* A timestamped stream plays when the sender asks, against its clock */
+            PresentationClock clock = null;
+            if (header != null && header.codec == StreamHeader.CODEC_TIMESTAMPED) {
+                final ClockSync sync = new ClockSync();
+                clock = new PresentationClock(sync, args.audioSampleRate,
+                        Integer.bitCount(args.audioChannelMask) *
+                                PcmConverter.getBytesPerSample(args.audioEncoding));
+                syncClient = new ClockSyncClient(this, sync,
+                        new InetSocketAddress(socket.getInetAddress(), header.clockPort));
+                syncThread = new Thread(syncClient, "ClockSync");
+                syncThread.start();
+                source.setClock(clock, 0);
+            }
+            capture = startCapture(args, socket.toString());
+            InputStream in = header != null && (header.codec == StreamHeader.CODEC_FRAMED ||
+                    header.codec == StreamHeader.CODEC_TIMESTAMPED) ?
+                    new FramedInputStream(is, liveness, clock) : is;
+            if (capture != null && !lossless)
+                in = capture.tee(in);
+            if (lossless) {
+                /* The decode stage produces into the source, the socket feeds the decode stage */
+                final PcmRingBuffer compressedRing = new PcmRingBuffer(sCompressedRingInBytes, 1);
+                final DecodeStage decodeStage = new DecodeStage(this, socket.toString(),
+                        compressedRing, source, header, capture);
+                final Thread decodeThread = new Thread(decodeStage, "DecodeStage");
+                decodeThread.start();
+                serverPlay(socket, in, compressedRing, null, liveness);
+                joinThread(decodeThread);
+                source = decodeStage.getSource();
+            } else {
+                /* a retired source is left to the old AudioWriter, the socket stays connected */
+                while (serverPlay(socket, in, source.ring, source, liveness)) {
+                    source = migrateSource(source, header, socket.toString());
+                    if (source == null)
+                        break;
+                    if (clock != null)
+                        source.setClock(clock, clock.getDeliveredFrames());
                 }
-                mAudioTrack.write(bytes, 0, read);
+            }
+            addLog(false, String.format(Locale.US, "jitter: %.1f ms, longest gap: %d ms, " +
+                    "keepalives: %d: %s", liveness.getJitterNs() / 1e6,
+                    liveness.getLongestGapNs() / 1000000, liveness.getKeepaliveCount(), socket));
+            if (source != null && clock != null)
+                addLog(false, String.format(Locale.US, "sync error: %.1f ms, catch ups: %d: %s",
+                        source.getSyncErrorNs() / 1e6, source.getSyncDropCount(), socket));
+            if (source != null) {
+                source.release();
+                source = null;
             }
         } catch (SocketTimeoutException timeoutIgnored) {
+            addLog(true, "The socket time outed: " + socket);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!mStopping)
+                    addLog(true, "Socket triggered an IOException", e);
+            }
+        } finally {
+            /* the power locks follow the session count, it must never leak */
+            if (sessionStarted)
+                onSessionEnd();
+            if (syncClient != null) {
+                syncClient.quit();
+                joinThread(syncThread);
+            }
+            if (capture != null)
+                stopCapture(capture, socket.toString());
+            if (source != null) {
+                source.ring.close();
+                source.release();
+            }
             try {
-                addLog(true, "The socket time outed: " + mSocket);
-                mSocket.close();
+                socket.close();
             } catch (IOException ignored) {
             }
+            synchronized (this) {
+                mSockets.remove(socket);
+            }
+        }
+    }
+
+    /*
+     * Reader threads: start capturing the session in a WAV file if enabled and no other session
+     * is captured. Returns null if not captured.
+     */
+    private WavCapture startCapture(Arguments args, String name) {
+        if (!PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(SettingsActivity.KEY_CAPTURE_FILE, false))
+            return null;
+        File dir = getExternalFilesDir(null);
+        if (dir == null)
+            dir = getFilesDir();
+        final int byteRate = args.audioSampleRate * Integer.bitCount(args.audioChannelMask) *
+                PcmConverter.getBytesPerSample(args.audioEncoding);
+        synchronized (this) {
+            if (mCapture != null)
+                return null;
+            try {
+                mCapture = new WavCapture(new File(dir, sCaptureFileNames[0]),
+                        new File(dir, sCaptureFileNames[1]), sCaptureCapBytes,
+                        args.audioSampleRate, args.audioChannelMask, args.audioEncoding,
+                        (int) ((long) byteRate * sCaptureBacklogMs / 1000));
+            } catch (IllegalArgumentException e) {
+                addLog(true, "Capture not possible: " + name, e);
+                return null;
+            }
+            /* the capture never competes with the playback */
+            mCaptureThread = new Thread(mCapture, "WavCapture");
+            mCaptureThread.setPriority(Thread.MIN_PRIORITY);
+            mCaptureThread.start();
+        }
+        addLog(false, "capturing to " + dir + ": " + name);
+        return mCapture;
+    }
+
+    /* Reader threads: store what is left of the capture and log it */
+    private void stopCapture(WavCapture capture, String name) {
+        capture.close();
+        final Thread thread;
+        synchronized (this) {
+            thread = mCaptureThread;
+        }
+        joinThread(thread);
+        synchronized (this) {
+            mCapture = null;
+            mCaptureThread = null;
+        }
+        final IOException error = capture.getError();
+        if (error != null)
+            addLog(true, "Capture failed: " + name, error);
+        addLog(false, "captured " + capture.getCapturedBytes() + " bytes, dropped " +
+                capture.getDroppedBytes() + ": " + name);
+    }
+
+    /*
+     * Returns true when source, if any, was retired and the stream should continue elsewhere.
+     * See StreamReader, which this thread runs until the session ends.
+     */
+    private boolean serverPlay(final Socket socket, InputStream is, final PcmRingBuffer ring,
+                               PcmSource source, LivenessMonitor liveness) {
+        /* a stuck read only ends its own session */
+        final Watchdog.Component watch = mWatchdog.register("reader " + socket,
+                2 * sWatchdogMarginNs + mLatencyPlan.getTotalNs(), new Watchdog.Recovery() {
+                    @Override
+                    public void recover(Watchdog.Component component, long stuckNs) {
+                        addLog(true, "Socket read stuck for " + stuckNs / 1000000 +
+                                " ms, closing: " + socket);
+                        ring.close();
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+        try {
+            final int result = StreamReader.run(is, ring, source, liveness,
+                    mSocketReadOnceInBytes, watch, mReadListener);
+            switch (result) {
+                case StreamReader.EXPIRED:
+                    final long now = System.nanoTime();
+                    addLog(true, "No data for " + liveness.getSilenceNs(now) / 1000000 +
+                            " ms (threshold: " + liveness.getTimeoutNs() / 1000000 + " ms): " +
+                            socket);
+                    break;
+                case StreamReader.ABORTED:
+                    addLog(true, "Source aborted by the AudioWriter: " + socket);
+                    break;
+                case StreamReader.END_OF_STREAM:
+                    addLog(true, "Socket closed by the client: " + socket);
+                    break;
+                default:
+                    break;
+            }
+            return result == StreamReader.RETIRED;
         } catch (IOException e) {
             synchronized (this) {
                 if (!mStopping)
                     addLog(true, "Socket triggered an IOException", e);
             }
         } finally {
-            mAudioTrack.flush();
-            mAudioTrack.stop();
+            watch.unregister();
+        }
+        return false;
+    }
+
+    /*
+     * Reader threads: let the kernel notice a peer that vanished without a FIN. Keepalive probes
+     * are sent after a second of silence, and unacknowledged data fails the socket after
+     * TCP_USER_TIMEOUT. Not fatal: the liveness monitor still ends silent sessions.
+     */
+    void setTcpLiveness(Socket socket) {
+        ParcelFileDescriptor pfd = null;
+        try {
+            socket.setKeepAlive(true);
+            pfd = ParcelFileDescriptor.fromSocket(socket);
+            final FileDescriptor fd = pfd.getFileDescriptor();
+            Os.setsockoptInt(fd, OsConstants.IPPROTO_TCP, sTcpKeepIdle, sTcpKeepaliveSeconds);
+            Os.setsockoptInt(fd, OsConstants.IPPROTO_TCP, sTcpKeepInterval, sTcpKeepaliveSeconds);
+            Os.setsockoptInt(fd, OsConstants.IPPROTO_TCP, sTcpKeepCount, sTcpKeepaliveProbes);
+            Os.setsockoptInt(fd, OsConstants.IPPROTO_TCP, sTcpUserTimeout, sTcpUserTimeoutMs);
+        } catch (Exception e) {
+            addLog(true, "TCP keepalive setup failed: " + socket, e);
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /*
+     * Producer threads: end a retired source, the old AudioWriter plays what it holds, and get one
+     * from the current AudioWriter. The format is the one of the header, else the user one.
+     */
+    PcmSource migrateSource(PcmSource source, StreamHeader header, String name) {
+        source.ring.setEndOfStream();
+        source.release();
+        final Arguments args = header != null ? mArguments.withFormat(header) : mArguments;
+        final PcmSource next = acquireSource(args, name, POLICY_MIX);
+        if (next != null)
+            addLog(false, "moved from source " + source.index + " to " + next.index + ": " + name);
+        else
+            addLog(true, "No source available after the reconfiguration: " + name);
+        return next;
+    }
+
+    /*
+     * Any thread: get a source playing with the format of args. The AudioTrack is rebuilt when the
+     * format differs, once every source of the previous format drained. With POLICY_REJECT, null
+     * is returned while another source is active; with POLICY_NEWEST_WINS, the new source ends
+     * the others on the block it starts playing.
+     */
+    private PcmSource acquireSource(Arguments args, String name, int policy) {
+        /* the lock is only held to check, the wait for idle sources happens outside of it */
+        long deadline = 0;
+        while (true) {
+            synchronized (mTrackLock) {
+                if (mAudioWriterThread == null)
+                    return null;
+                if (policy == POLICY_REJECT && !mAudioWriter.isIdle())
+                    return null;
+                if (!args.hasSameFormat(mTrackArguments)) {
+                    if (mAudioWriter.isIdle()) {
+                        if (!rebuildAudioTrack(args))
+                            return null;
+                    } else {
+                        final long now = System.currentTimeMillis();
+                        if (deadline == 0)
+                            deadline = now + mTrackArguments.audioDelayInMs +
+                                    sFormatSwitchMarginMs;
+                        else if (now >= deadline) {
+                            addLog(true, "Busy with another format: " + name);
+                            return null;
+                        }
+                    }
+                }
+                if (args.hasSameFormat(mTrackArguments))
+                    return mAudioWriter.acquireSource(name, policy == POLICY_NEWEST_WINS);
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+
+    /*
+     * Reader threads: wait until the clients queued before this one are done and nothing plays.
+     * The client is not read meanwhile, TCP flow control holds the sender.
+     */
+    private PcmSource acquireQueuedSource(Arguments args, Socket socket) {
+        synchronized (mQueuedSockets) {
+            mQueuedSockets.add(socket);
+        }
+        boolean logged = false;
+        try {
+            while (!socket.isClosed()) {
+                synchronized (mQueuedSockets) {
+                    if (mQueuedSockets.peek() == socket) {
+                        final PcmSource source = acquireSource(args, socket.toString(),
+                                POLICY_REJECT);
+                        if (source != null)
+                            return source;
+                    }
+                }
+                if (!logged) {
+                    addLog(false, "Busy, queuing socket: " + socket);
+                    logged = true;
+                }
+                Thread.sleep(sQueuePollMs);
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            synchronized (mQueuedSockets) {
+                mQueuedSockets.remove(socket);
+            }
+        }
+        return null;
+    }
+
+    /* Any thread: policy of the running server, it can change in place */
+    int getServerPolicy() {
+        return mArguments.serverPolicy;
+    }
+
+    /* Called with mTrackLock held, while no source is active */
+    private boolean rebuildAudioTrack(Arguments args) {
+        final AudioTrack oldAudioTrack = mAudioTrack;
+        final AudioWriter oldAudioWriter = mAudioWriter;
+        final long start = System.nanoTime();
+
+        addLog(false, "format switch to " + args);
+        if (!createAudioTrack(args, false))
+            return false;
+        stopAudioWriter(oldAudioWriter, mAudioWriterThread);
+        oldAudioTrack.release();
+        startAudioWriter();
+        mTrackArguments = args;
+        addLog(false, "format switched in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return true;
+    }
+
+    private void startAudioWriter() {
+        final AudioWriter audioWriter = mAudioWriter;
+        audioWriter.setWatch(mWatchdog.register("AudioWriter",
+                sWatchdogMarginNs + mLatencyPlan.getTotalNs(), new Watchdog.Recovery() {
+                    @Override
+                    public void recover(Watchdog.Component component, long stuckNs) {
+                        recoverAudioWriter(audioWriter, stuckNs);
+                    }
+                }));
+        mAudioWriterThread = new Thread(audioWriter, "AudioWriter");
+        mAudioWriterThread.start();
+    }
+
+    /*
+     * Watchdog thread: an AudioWriter is stuck in AudioTrack.write(). The current one is replaced
+     * like on a live switch: its producers move to a new AudioTrack, then it is aborted without
+     * crossfade. A retired one is only aborted, its producers already moved.
+     */
+    private void recoverAudioWriter(AudioWriter stuck, long stuckNs) {
+        addLog(true, "AudioTrack write stuck for " + stuckNs / 1000000 + " ms");
+        if (stuck.isRetired()) {
+            stuck.abort();
+            return;
+        }
+        synchronized (mTrackLock) {
+            if (stuck != mAudioWriter || mAudioWriterThread == null) {
+                stuck.abort();
+                return;
+            }
+            final Arguments args = mArguments;
+            if (args == null)
+                return;
+            final Thread stuckThread = mAudioWriterThread;
+            final Arguments trackArgs = args.withFormat(mTrackArguments);
+            if (!createAudioTrack(trackArgs, false))
+                return;
+            joinRetiringAudioWriter();
+            stuck.retire();
+            stuck.abort();
+            mRetiringAudioWriter = stuck;
+            mRetiringAudioWriterThread = stuckThread;
+            startAudioWriter();
+            mTrackArguments = trackArgs;
+            addLog(false, "AudioTrack recreated, sources moved to it");
+        }
+    }
+
+    /*
+     * Quit an AudioWriter and join its thread. One stuck in a write is aborted, and left behind
+     * if even that doesn't unblock it.
+     */
+    private void stopAudioWriter(AudioWriter audioWriter, Thread thread) {
+        audioWriter.quit();
+        if (joinThread(thread, sJoinTimeoutMs))
+            return;
+        audioWriter.abort();
+        if (!joinThread(thread, sJoinTimeoutMs))
+            addLog(true, "AudioWriter doesn't quit, leaving it behind");
+    }
+
+    private void startServerPlay(final Socket socket) {
+        /* The stream header is read by the new thread, the accept loop never waits for a client */
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                serverPlay(socket);
+            }
+        }, "SocketReader");
+        synchronized (this) {
+            for (int i = mReaderThreads.size() - 1; i >= 0; --i)
+                if (!mReaderThreads.get(i).isAlive())
+                    mReaderThreads.remove(i);
+            mReaderThreads.add(thread);
+        }
+        thread.start();
+    }
+
+    private void datagramPlay() {
+        /* Wait for the first packet of a stream, there is no timeout between streams */
+        try {
+            mDatagramSocket.setSoTimeout(0);
+            mDatagramPacket.setLength(RtpReceiver.MAX_PACKET_SIZE);
+            mDatagramSocket.receive(mDatagramPacket);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!mStopping) {
+                    addLog(true, "DatagramSocket triggered an IOException", e);
+                    mDatagramSocket.close();
+                }
+                mDatagramSocket = null;
+            }
+            return;
+        }
+        final String name = "rtp " + mDatagramPacket.getSocketAddress();
+        PcmSource source = acquireSource(mArguments, name, POLICY_MIX);
+        if (source == null) {
+            addLog(true, "No free source for: " + name);
+            return;
+        }
+        addLog(false, "New RTP stream from: " + mDatagramPacket.getSocketAddress() +
+                " (source " + source.index + ")");
+        onSessionStart();
+        mMetrics.onRead(mDatagramPacket.getLength());
+
+        /* Packets are polled often so that holes are concealed within the reorder timeout */
+        boolean endOfStream = false;
+        /* replaced with the AudioTrack when the format changes, the source then moves */
+        RtpReceiver receiver = mRtpReceiver;
+        final Arguments args = mArguments;
+        final LivenessMonitor liveness = new LivenessMonitor((long) args.audioSampleRate *
+                Integer.bitCount(args.audioChannelMask) *
+                PcmConverter.getBytesPerSample(args.audioEncoding));
+        receiver.reset(source.ring);
+        try {
+            mDatagramSocket.setSoTimeout(5);
+            final long firstPacketNs = System.nanoTime();
+            boolean ringOpened = receiver.push(mDatagramPacket.getData(),
+                    mDatagramPacket.getLength(), firstPacketNs);
+            liveness.reset(firstPacketNs);
+            long lost = 0;
+
+            while (true) {
+                if (source.isRetired()) {
+                    source = migrateSource(source, null, name);
+                    if (source == null)
+                        return;
+                    receiver = mRtpReceiver;
+                    receiver.reset(source.ring);
+                    ringOpened = true;
+                    lost = 0;
+                }
+                if (!ringOpened)
+                    break;
+                long now;
+                try {
+                    mDatagramPacket.setLength(RtpReceiver.MAX_PACKET_SIZE);
+                    mDatagramSocket.receive(mDatagramPacket);
+                    now = System.nanoTime();
+                    mMetrics.onRead(mDatagramPacket.getLength());
+                    liveness.onArrival(now, Math.max(mDatagramPacket.getLength() -
+                            RtpReceiver.HEADER_SIZE, 0));
+                    mMetrics.onJitter(liveness.getJitterNs());
+                    ringOpened = receiver.push(mDatagramPacket.getData(),
+                            mDatagramPacket.getLength(), now);
+                } catch (SocketTimeoutException timeoutIgnored) {
+                    now = System.nanoTime();
+                    if (liveness.isExpired(now)) {
+                        addLog(true, "The RTP stream timed out after " +
+                                liveness.getSilenceNs(now) / 1000000 + " ms (threshold: " +
+                                liveness.getTimeoutNs() / 1000000 + " ms)");
+                        endOfStream = true;
+                        return;
+                    }
+                }
+                if (ringOpened)
+                    ringOpened = receiver.poll(now);
+                if (receiver.getLostCount() != lost) {
+                    lost = receiver.getLostCount();
+                    mTrace.trace(EventTrace.EVENT_RTP_LOSS, lost, receiver.getConcealedFrames());
+                }
+                if (!ringOpened && source.isRetired())
+                    ringOpened = true;
+            }
+            addLog(true, "Source aborted by the AudioWriter: " + name);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!mStopping)
+                    addLog(true, "DatagramSocket triggered an IOException", e);
+            }
+        } finally {
+            if (source != null) {
+                if (endOfStream)
+                    source.ring.setEndOfStream();
+                else
+                    source.ring.close();
+                source.release();
+            }
+            onSessionEnd();
+            addLog(false, "rtp: received: " + receiver.getReceivedCount() + ", lost: " +
+                    receiver.getLostCount() + ", late: " + receiver.getLateCount() +
+                    ", reordered: " + receiver.getReorderedCount() + ", invalid: " +
+                    receiver.getInvalidCount() + ", concealed frames: " +
+                    receiver.getConcealedFrames() + ", jitter: " + liveness.getJitterNs() / 1000 +
+                    " us");
         }
     }
 
@@ -269,56 +1013,170 @@ public class Main extends Service implements Runnable {
 
     @Override
     public void run() {
+        runThread();
+
+        synchronized (this) {
+            if (!mLeftBehind)
+                return;
+        }
+        final Thread thread = Thread.currentThread();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                onLeftBehindExit(thread);
+            }
+        });
+    }
+
+    /* The thread left behind by stop() exited: clean up after it, then run the delayed start */
+    @MainThread
+    private void onLeftBehindExit(Thread thread) {
+        joinThread(thread);
+        final Arguments pending;
+        synchronized (this) {
+            mLeftBehind = false;
+            mRestarting = mStopping = false;
+            pending = mPendingArguments;
+            mPendingArguments = null;
+        }
+        mThread = null;
+        mArguments = null;
+        addLog(false, "Main thread left behind exited");
+        if (pending != null)
+            start(pending);
+    }
+
+    private void runThread() {
         if (!mArguments.isValid()) {
             quitThread("Arguments invalid");
             return;
         }
         addLog(false, "starting with " + mArguments);
 
-        if (!createAudioTrack(mArguments))
+        /* the protocol never changes in place, the zero copy engine feeds the AudioTrack */
+        final int protocol = mArguments.serverProtocol;
+        Process.setThreadPriority(protocol == PROTOCOL_TCP_NIO ?
+                Process.THREAD_PRIORITY_URGENT_AUDIO : Process.THREAD_PRIORITY_AUDIO);
+
+        if (!createAudioTrack(mArguments, true))
             return;
+        mTrackArguments = mArguments;
+
+        mWatchdog = new Watchdog(sWatchdogPollNs);
+        mWatchdogThread = new Thread(mWatchdog, "Watchdog");
+        mWatchdogThread.start();
 
         setWakelockEnabled(mArguments.wakelock);
 
         startService();
 
+        if (mAudioWriter != null)
+            startAudioWriter();
+
         while (true) {
             synchronized (this) {
-                mSocket = null;
                 if (mStopping) {
                     mServerSocket = null;
+                    mDatagramSocket = null;
+                    if (mNioEngine != null) {
+                        mNioEngine.close();
+                        mNioEngine = null;
+                    }
                     break;
                 }
-                if (mServerSocket == null && !createSocketServer(mArguments)) {
+                if (protocol == PROTOCOL_TCP_NIO) {
+                    if (mNioEngine == null && !createNioEngine(mArguments))
+                        break;
+                } else if (protocol == PROTOCOL_RTP) {
+                    if (mDatagramSocket == null && !createDatagramSocket(mArguments))
+                        break;
+                } else if (mServerSocket == null && !createSocketServer(mArguments)) {
                     break;
                 }
             }
+            if (protocol == PROTOCOL_TCP_NIO) {
+                try {
+                    mNioEngine.run();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (!mStopping)
+                            addLog(true, "NioEngine triggered an IOException", e);
+                        mNioEngine.close();
+                        mNioEngine = null;
+                    }
+                }
+                continue;
+            }
+            if (protocol == PROTOCOL_RTP) {
+                datagramPlay();
+                continue;
+            }
+            /* Each client gets its own reader thread and source, this thread keeps accepting */
             try {
                 final Socket socket = mServerSocket.accept();
                 synchronized (this) {
-                    if (mServerSocket.isClosed())
+                    if (mServerSocket.isClosed()) {
+                        socket.close();
                         continue;
-                    mSocket = socket;
+                    }
+                    mSockets.add(socket);
                 }
+                startServerPlay(socket);
             } catch (IOException e) {
                 synchronized (this) {
                     if (!mStopping)
                         addLog(true, "ServerSocket triggered an IOException", e);
                     mServerSocket = null;
                 }
-                continue;
             }
-            addLog(false, "New socket accepted: " + mSocket);
-            serverPlay();
         }
 
+        synchronized (mTrackLock) {
+            if (mAudioWriterThread != null) {
+                stopAudioWriter(mAudioWriter, mAudioWriterThread);
+                mAudioWriterThread = null;
+            }
+            joinRetiringAudioWriter();
+        }
+        final Thread[] readerThreads;
+        synchronized (this) {
+            readerThreads = mReaderThreads.toArray(new Thread[mReaderThreads.size()]);
+            mReaderThreads.clear();
+        }
+        for (Thread thread : readerThreads)
+            if (!joinThread(thread, sJoinTimeoutMs))
+                addLog(true, "Reader thread doesn't quit, leaving it behind");
+        /* a reader left behind may still register, the stopped watchdog is kept */
+        mWatchdog.quit();
+        joinThread(mWatchdogThread);
+        mWatchdogThread = null;
+
         setWakelockEnabled(false);
 
         mAudioTrack.release();
         mAudioTrack = null;
+        mAudioWriter = null;
+        mTrackArguments = null;
+        mRtpReceiver = null;
         quitThread("Thread terminated");
     }
 
+    private static void joinThread(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /* Returns false if the thread is still alive after timeoutMs */
+    private static boolean joinThread(Thread thread, long timeoutMs) {
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException ignored) {
+        }
+        return !thread.isAlive();
+    }
+
     private void quitThread(String error, Exception e) {
         synchronized (this) {
             if (!mStopping) {
@@ -334,91 +1192,195 @@ public class Main extends Service implements Runnable {
         quitThread(error, null);
     }
 
-    private int setupBufferSizes(Arguments args) {
+    /* Errors while starting stop the service, a failed format switch only rejects the client */
+    private void configError(boolean fatal, String error, Exception e) {
+        if (fatal)
+            quitThread(error, e);
+        else
+            addLog(true, error, e);
+    }
+
+    private void configError(boolean fatal, String error) {
+        configError(fatal, error, null);
+    }
+
+    /* Format and sizes of an AudioTrack, only applied to the fields once it is created */
+    private static final class TrackSetup {
+        int encoding;
+        int channelMask;
+        int sampleRate;
+        int frameSizeInBytes;
+        int ringBufferSizeInBytes;
+        int socketReadOnceInBytes;
+        int bufferSizeInBytes;
+        LatencyPlan plan;
+    }
+
+    /* Plan the delay in frames, returns null on error */
+    private TrackSetup setupBufferSizes(Arguments args, boolean fatal) {
         if (args.audioDelayInMs == 0 || args.audioDelayInMs > 60000) {
-            quitThread("audioDelayInMs is invalid");
-            return -1;
+            configError(fatal, "audioDelayInMs is invalid");
+            return null;
         }
 
-        final int minAtBufferSizeInBytes = AudioTrack.getMinBufferSize(args.audioSampleRate,
-                args.audioChannelMask, args.audioEncoding);
-        if (minAtBufferSizeInBytes <= 0) {
-            quitThread("getMinBufferSize failed");
-            return -1;
+        final int bytesPerSample = PcmConverter.getBytesPerSample(args.audioEncoding);
+        if (bytesPerSample == -1) {
+            configError(fatal, "invalid audioEncoding");
+            return null;
         }
 
         final int nbChannels = Integer.bitCount(args.audioChannelMask);
         if (nbChannels == 0 || nbChannels > 8) {
-            quitThread("invalid channel mask");
-            return -1;
-        }
-        int bytesPerFrames;
-        switch (args.audioEncoding) {
-            case AudioFormat.ENCODING_PCM_8BIT:
-                bytesPerFrames = 1;
-                break;
-            case AudioFormat.ENCODING_PCM_16BIT:
-                bytesPerFrames = 2;
-                break;
-            default:
-                quitThread("invalid audioEncoding");
-                return -1;
+            configError(fatal, "invalid channel mask");
+            return null;
         }
 
-        long delayInBytes = (long) args.audioDelayInMs * args.audioSampleRate / 1000 * bytesPerFrames;
+        /*
+         * The AudioTrack gets channels the device outputs, the AudioWriter downmixes or remaps
+         * the sources instead of the system. The zero copy engine can't.
+         */
+        int trackChannelMask = args.audioChannelMask;
+        if (args.serverProtocol != PROTOCOL_TCP_NIO) {
+            trackChannelMask = ChannelRouter.pickOutputMask(args.audioChannelMask,
+                    getOutputChannelMasks());
+            if (AudioTrack.getMinBufferSize(args.audioSampleRate, trackChannelMask,
+                    AudioFormat.ENCODING_PCM_16BIT) <= 0)
+                trackChannelMask = ChannelRouter.MASK_STEREO;
+        }
+        final int trackChannels = Integer.bitCount(trackChannelMask);
+
+        /*
+         * The AudioTrack runs at the native rate so that the system mixer doesn't resample it and
+         * keeps its fast path, the AudioWriter converts the sources. The zero copy engine can't.
+         */
+        int trackSampleRate = args.audioSampleRate;
+        if (args.serverProtocol != PROTOCOL_TCP_NIO) {
+            final int nativeSampleRate = getAudioProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+            if (nativeSampleRate > 0 && AudioTrack.getMinBufferSize(nativeSampleRate,
+                    trackChannelMask, AudioFormat.ENCODING_PCM_16BIT) > 0)
+                trackSampleRate = nativeSampleRate;
+        }
 
-        int atBufferSizeInBytes;
-        if (delayInBytes - (2 * minAtBufferSizeInBytes) >= sMinSocketReadOnceInBytes) {
-            mSocketReadOnceInBytes = (int) delayInBytes - (2 * minAtBufferSizeInBytes);
-            atBufferSizeInBytes = 2 * minAtBufferSizeInBytes;
+        /* High resolution input goes to a float AudioTrack if possible, else dithered to 16 bits */
+        int trackEncoding = args.audioEncoding;
+        if (PcmConverter.isHighResolution(args.audioEncoding) || PcmConverter.isBigEndian(args.audioEncoding)) {
+            trackEncoding = AudioFormat.ENCODING_PCM_16BIT;
+            if (PcmConverter.isHighResolution(args.audioEncoding) &&
+                    AudioTrack.getMinBufferSize(trackSampleRate, trackChannelMask,
+                            AudioFormat.ENCODING_PCM_FLOAT) > 0)
+                trackEncoding = AudioFormat.ENCODING_PCM_FLOAT;
+        }
+        if (args.serverProtocol == PROTOCOL_TCP_NIO && trackEncoding != args.audioEncoding) {
+            configError(fatal, "audioEncoding not supported by the zero copy engine");
+            return null;
+        }
 
-        } else if (delayInBytes - sMinSocketReadOnceInBytes  >= minAtBufferSizeInBytes) {
-            mSocketReadOnceInBytes = sMinSocketReadOnceInBytes;
-            atBufferSizeInBytes = (int) delayInBytes - sMinSocketReadOnceInBytes;
-        } else {
-            quitThread("Delay is too low");
-            return -1;
+        final int trackFrameSize = trackChannels * PcmConverter.getBytesPerSample(trackEncoding);
+        final int minAtBufferSize = AudioTrack.getMinBufferSize(trackSampleRate,
+                trackChannelMask, trackEncoding);
+        if (minAtBufferSize <= 0) {
+            configError(fatal, "getMinBufferSize failed");
+            return null;
         }
 
-        addLog(false, "delays in Bytes: total: " + delayInBytes +", minAt: " +
-                minAtBufferSizeInBytes + ", readOnce: " + mSocketReadOnceInBytes + ", at: " + atBufferSizeInBytes);
-        return atBufferSizeInBytes;
+        final int frameSizeInBytes = nbChannels * bytesPerSample;
+        /* The socket is only read in small chunks, the jitter buffer holds at least one */
+        final int readOnceFrames = (sMinSocketReadOnceInBytes + frameSizeInBytes - 1) /
+                frameSizeInBytes;
+        final int burstFrames = args.serverProtocol != PROTOCOL_TCP_NIO ?
+                getAudioProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER) : 0;
+        final LatencyPlan plan = LatencyPlan.plan(args.audioDelayInMs, args.audioSampleRate,
+                trackSampleRate, (minAtBufferSize + trackFrameSize - 1) / trackFrameSize,
+                burstFrames, readOnceFrames);
+        if (plan == null) {
+            configError(fatal, "Delay is too low");
+            return null;
+        }
+        final TrackSetup setup = new TrackSetup();
+        setup.encoding = trackEncoding;
+        setup.channelMask = trackChannelMask;
+        setup.sampleRate = trackSampleRate;
+        setup.frameSizeInBytes = frameSizeInBytes;
+        setup.plan = plan;
+        setup.ringBufferSizeInBytes = plan.getRingCapacityFrames() * frameSizeInBytes;
+        setup.socketReadOnceInBytes = sMinSocketReadOnceInBytes;
+        setup.bufferSizeInBytes = plan.trackFrames * trackFrameSize;
+
+        addLog(false, "latency plan: " + plan + ", minAt: " + minAtBufferSize + " B, burst: " +
+                burstFrames + ", readOnce: " + setup.socketReadOnceInBytes + " B, at encoding: " +
+                trackEncoding + ", at rate: " + trackSampleRate + ", at mask: 0x" +
+                Integer.toHexString(trackChannelMask));
+        return setup;
     }
 
-    private boolean createAudioTrack(Arguments args) {
-        final int atBufferSizeInBytes = setupBufferSizes(args);
+    private boolean createAudioTrack(Arguments args, boolean fatal) {
+        final TrackSetup setup = setupBufferSizes(args, fatal);
 
-        if (atBufferSizeInBytes == -1)
+        if (setup == null)
             return false;
 
         final AudioManager au = (AudioManager) getSystemService(AUDIO_SERVICE);
         final int sessionId = au.generateAudioSessionId();
         if (sessionId == -1) {
-            quitThread("generateAudioSessionId failed");
+            configError(fatal, "generateAudioSessionId failed");
             return false;
         }
 
-        final AudioAttributes at = new AudioAttributes.Builder()
+        final AudioAttributes.Builder atBuilder = new AudioAttributes.Builder()
                 .setUsage(AudioAttributes.USAGE_MEDIA)
-                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                .build();
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+        /* Ask for the fast mixer, Android O calls it PERFORMANCE_MODE_LOW_LATENCY */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            atBuilder.setFlags(AudioAttributes.FLAG_LOW_LATENCY);
+        final AudioAttributes at = atBuilder.build();
         final AudioFormat af = new AudioFormat.Builder()
-                .setSampleRate(args.audioSampleRate)
-                .setChannelMask(args.audioChannelMask)
-                .setEncoding(args.audioEncoding)
+                .setSampleRate(setup.sampleRate)
+                .setChannelMask(setup.channelMask)
+                .setEncoding(setup.encoding)
                 .build();
         try {
-            mAudioTrack = new AudioTrack(at, af, atBufferSizeInBytes, AudioTrack.MODE_STREAM, sessionId);
-            if (mAudioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
-                mAudioTrack.release();
-                mAudioTrack = null;
-                quitThread("AudioTrack creation failed");
+            final AudioTrack audioTrack = new AudioTrack(at, af, setup.bufferSizeInBytes,
+                    AudioTrack.MODE_STREAM, sessionId);
+            if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                audioTrack.release();
+                configError(fatal, "AudioTrack creation failed");
                 return false;
             }
+            audioTrack.setVolume(args.audioVolume / 100f);
+            mAudioTrack = audioTrack;
         } catch (Exception e) {
-            quitThread("AudioTrack creation failed", e);
+            configError(fatal, "AudioTrack creation failed", e);
             return false;
         }
+
+        /* A failed switch leaves the fields to the AudioTrack still playing */
+        mTrackEncoding = setup.encoding;
+        mTrackChannelMask = setup.channelMask;
+        mTrackSampleRate = setup.sampleRate;
+        mFrameSizeInBytes = setup.frameSizeInBytes;
+        mLatencyPlan = setup.plan;
+        mRingBufferSizeInBytes = setup.ringBufferSizeInBytes;
+        mSocketReadOnceInBytes = setup.socketReadOnceInBytes;
+        mMetrics.onLatencyPlan(mLatencyPlan.getTotalNs());
+
+        /* The NIO engine writes directly into the AudioTrack, without DSP */
+        if (args.serverProtocol != PROTOCOL_TCP_NIO) {
+            mAudioWriter = new AudioWriter(this, mAudioTrack, args.audioEncoding, mTrackEncoding,
+                    args.audioChannelMask, mTrackChannelMask, args.audioSampleRate,
+                    mTrackSampleRate, mRingBufferSizeInBytes, mLatencyPlan.ringFrames,
+                    mLatencyPlan.writeFrames);
+            mAudioWriter.setDsp(args.dspGain, args.dspBass, args.dspTreble, args.dspLimiter);
+            mAudioWriter.setSilenceTimeout(args.silenceTimeout);
+            mMetrics.onDspChain(mAudioWriter.getDspChain());
+        }
+        /* A stream being received keeps the previous receiver until its source moves */
+        if (args.serverProtocol == PROTOCOL_RTP) {
+            mRtpReceiver = new RtpReceiver(args.audioEncoding,
+                    Integer.bitCount(args.audioChannelMask), args.audioSampleRate);
+            if (mDatagramPacket == null)
+                mDatagramPacket = new DatagramPacket(new byte[RtpReceiver.MAX_PACKET_SIZE],
+                        RtpReceiver.MAX_PACKET_SIZE);
+        }
         return true;
     }
 
@@ -426,9 +1388,7 @@ public class Main extends Service implements Runnable {
         try {
             mServerSocket = new ServerSocket();
             mServerSocket.setReceiveBufferSize(mSocketReadOnceInBytes);
-            mServerSocket.bind(args.serverBindAddr != null ?
-                    new InetSocketAddress(args.serverBindAddr, args.serverPort) :
-                    new InetSocketAddress(args.serverPort));
+            mServerSocket.bind(getBindAddress(args));
         } catch (Exception e) {
             quitThread("ServerSocket creation failed", e);
             return false;
@@ -436,9 +1396,168 @@ public class Main extends Service implements Runnable {
         return true;
     }
 
+    private boolean createDatagramSocket(Arguments args) {
+        try {
+            mDatagramSocket = new DatagramSocket(null);
+            mDatagramSocket.setReceiveBufferSize(sDatagramReceiveBufferInBytes);
+            mDatagramSocket.bind(getBindAddress(args));
+        } catch (Exception e) {
+            quitThread("DatagramSocket creation failed", e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean createNioEngine(Arguments args) {
+        try {
+            mNioEngine = new NioEngine(this, mAudioTrack, mFrameSizeInBytes, args.audioSampleRate,
+                    getBindAddress(args), mSocketReadOnceInBytes,
+                    mLatencyPlan.ringFrames * mFrameSizeInBytes / mSocketReadOnceInBytes + 2);
+        } catch (Exception e) {
+            quitThread("NioEngine creation failed", e);
+            return false;
+        }
+        return true;
+    }
+
+    /* Channel masks of the media outputs, empty if unknown (any mask) */
+    private int[] getOutputChannelMasks() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return new int[0];
+        final AudioManager au = (AudioManager) getSystemService(AUDIO_SERVICE);
+        final List<Integer> masks = new ArrayList<>();
+        for (AudioDeviceInfo device : au.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
+            final int type = device.getType();
+            /* voice call outputs */
+            if (type == AudioDeviceInfo.TYPE_BUILTIN_EARPIECE ||
+                    type == AudioDeviceInfo.TYPE_TELEPHONY ||
+                    type == AudioDeviceInfo.TYPE_BLUETOOTH_SCO)
+                continue;
+            final int[] deviceMasks = device.getChannelMasks();
+            /* a device with dynamic masks takes any of them */
+            if (deviceMasks.length == 0)
+                return new int[0];
+            for (int mask : deviceMasks)
+                if (!masks.contains(mask))
+                    masks.add(mask);
+        }
+        final int[] result = new int[masks.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = masks.get(i);
+        return result;
+    }
+
+    /* Integer property of the device output, 0 if unknown */
+    private int getAudioProperty(String key) {
+        final AudioManager au = (AudioManager) getSystemService(AUDIO_SERVICE);
+        try {
+            return Integer.parseInt(au.getProperty(key));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static InetSocketAddress getBindAddress(Arguments args) {
+        return args.serverBindAddr != null ?
+                new InetSocketAddress(args.serverBindAddr, args.serverPort) :
+                new InetSocketAddress(args.serverPort);
+    }
+
+    /* Called with mTrackLock held: stop the AudioWriter of the previous reconfiguration */
+    private void joinRetiringAudioWriter() {
+        if (mRetiringAudioWriterThread != null) {
+            stopAudioWriter(mRetiringAudioWriter, mRetiringAudioWriterThread);
+            mRetiringAudioWriter = null;
+            mRetiringAudioWriterThread = null;
+        }
+    }
+
+    /*
+     * Main thread: rebuild the AudioTrack with the new delay or format while the server keeps
+     * running. Producers move to the new AudioWriter, the old one plays what it buffered and
+     * crossfades with the new one. A track using the format of a stream header keeps it.
+     */
+    private boolean swapAudioTrack(Arguments oldArgs, Arguments args) {
+        synchronized (mTrackLock) {
+            if (mAudioWriterThread == null)
+                return false;
+            final Arguments trackArgs = mTrackArguments.hasSameFormat(oldArgs) ? args :
+                    args.withFormat(mTrackArguments);
+            if (trackArgs.hasSameTrack(mTrackArguments))
+                return true;
+            final AudioWriter oldAudioWriter = mAudioWriter;
+            final Thread oldAudioWriterThread = mAudioWriterThread;
+            final long start = System.nanoTime();
+
+            addLog(false, "live switch to " + trackArgs);
+            if (!createAudioTrack(trackArgs, false))
+                return false;
+            /* moving producers pick the new user format */
+            mArguments = args;
+            joinRetiringAudioWriter();
+            /* the old AudioWriter now owns its AudioTrack and releases it */
+            oldAudioWriter.retire();
+            mRetiringAudioWriter = oldAudioWriter;
+            mRetiringAudioWriterThread = oldAudioWriterThread;
+            mAudioWriter.setPredecessor(oldAudioWriter);
+            startAudioWriter();
+            mTrackArguments = trackArgs;
+            addLog(false, "live switched in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return true;
+        }
+    }
+
+    /*
+     * Main thread: apply arguments to the running server, false if it has to be restarted. The
+     * wakelock, the silence timeout, the volume and the DSP change in place, the AudioTrack is
+     * swapped for the other audio arguments. The zero copy engine writes into the AudioTrack
+     * itself, it is restarted.
+     */
+    private boolean updateInPlace(Arguments args) {
+        final Arguments oldArgs = mArguments;
+        if (!args.isValid() || !oldArgs.hasSameServer(args))
+            return false;
+        if (!oldArgs.hasSameTrack(args)) {
+            if (args.serverProtocol == PROTOCOL_TCP_NIO || !swapAudioTrack(oldArgs, args))
+                return false;
+        }
+        mArguments = args;
+        if (oldArgs.audioVolume != args.audioVolume) {
+            synchronized (mTrackLock) {
+                if (mAudioTrack != null)
+                    mAudioTrack.setVolume(args.audioVolume / 100f);
+            }
+        }
+        if (!oldArgs.hasSameDsp(args)) {
+            synchronized (mTrackLock) {
+                if (mAudioWriter != null)
+                    mAudioWriter.setDsp(args.dspGain, args.dspBass, args.dspTreble,
+                            args.dspLimiter);
+            }
+        }
+        if (oldArgs.silenceTimeout != args.silenceTimeout) {
+            synchronized (mTrackLock) {
+                if (mAudioWriter != null)
+                    mAudioWriter.setSilenceTimeout(args.silenceTimeout);
+            }
+        }
+        setWakelockEnabled(args.wakelock);
+        addLog(false, "updated in place: " + args);
+        return true;
+    }
+
     @MainThread
     public void start(Arguments args) {
-        if (mArguments != null && mArguments.equals(args))
+        synchronized (this) {
+            if (mLeftBehind) {
+                mPendingArguments = args;
+                addLog(true, "Main thread still stuck, start delayed until it exits");
+                return;
+            }
+        }
+        if (isRunning() && mArguments.equals(args))
+            return;
+        if (isRunning() && updateInPlace(args))
             return;
         stop(true);
 
@@ -449,6 +1568,11 @@ public class Main extends Service implements Runnable {
     }
 
     private void stop(boolean restarting) {
+        synchronized (this) {
+            mPendingArguments = null;
+            if (mLeftBehind)
+                return;
+        }
         if (mThread != null) {
 
             addLog(false, "Stopping the Main thread from the user");
@@ -460,21 +1584,39 @@ public class Main extends Service implements Runnable {
                     try {
                         if (mServerSocket != null)
                             mServerSocket.close();
-                        if (mSocket != null)
-                            mSocket.close();
+                        for (Socket socket : mSockets)
+                            socket.close();
+                        if (mDatagramSocket != null)
+                            mDatagramSocket.close();
+                        if (mNioEngine != null)
+                            mNioEngine.wakeup();
                     } catch (IOException ignored) {}
                 }
             }
 
-            try {
-                mThread.join(10000);
-                if (mThread.isAlive()) {
-                    quitThread("NetPCMPlayer process doesn't respond to shutdown, force kill");
-                    System.exit(-1);
+            /*
+             * The components blocking in the AudioTrack or the network are recovered by the
+             * watchdog, and joined with a timeout. A thread still stuck after that (in the audio
+             * server, for instance) is interrupted, then left behind: it exits on its own once
+             * unblocked, still stopping, and runs the start delayed meanwhile, if any.
+             */
+            if (!joinThread(mThread, sStopTimeoutMs)) {
+                mThread.interrupt();
+                if (!joinThread(mThread, sJoinTimeoutMs)) {
+                    synchronized (this) {
+                        final String error = "Main thread doesn't respond to shutdown, " +
+                                "leaving it behind";
+                        if (mOnErrorListener != null)
+                            mOnErrorListener.OnError(error);
+                        addLog(true, error);
+                        mRestarting = false;
+                        mLeftBehind = true;
+                    }
+                    return;
                 }
-                mThread = null;
-                addLog(false, "Main thread joined");
-            } catch (InterruptedException ignored) {}
+            }
+            mThread = null;
+            addLog(false, "Main thread joined");
 
             synchronized (this) {
                 mRestarting = mStopping = false;
@@ -495,21 +1637,79 @@ public class Main extends Service implements Runnable {
 
     @MainThread
     public void setWakelockEnabled(boolean enabled) {
+        synchronized (this) {
+            mWakelockEnabled = enabled;
+            updateWakelock();
+        }
+    }
+
+    /*
+     * AudioWriter thread: its AudioTrack is paused on silence, nothing needs the CPU awake. Each
+     * writer resumes before it exits, so the pauses of a live switch balance out.
+     */
+    void onSilencePause(boolean paused) {
+        synchronized (this) {
+            mSilencePausedWriters += paused ? 1 : -1;
+            updateWakelock();
+        }
+    }
+
+    /* Reader threads: a client starts streaming, the power locks are held until it ends */
+    void onSessionStart() {
+        mMetrics.onSessionStart();
+        synchronized (this) {
+            mActiveSessions++;
+            updateWakelock();
+        }
+    }
+
+    void onSessionEnd() {
+        mMetrics.onSessionEnd();
+        synchronized (this) {
+            mActiveSessions--;
+            updateWakelock();
+        }
+    }
+
+    /*
+     * Under the service lock: hold the wakelock and a Wi-Fi lock if enabled, while a session is
+     * streaming and not paused on silence. Without the Wi-Fi lock, the radio sleeps between
+     * beacons and the access point delivers the stream in bursts: the jitter the metrics show
+     * while the locks are released. In the background, the low latency lock (API 29) falls
+     * back to the high performance mode, deprecated since.
+     */
+    private void updateWakelock() {
+        final boolean enabled = mWakelockEnabled && mActiveSessions > 0 &&
+                mSilencePausedWriters == 0;
         if (enabled && mWakelock == null) {
             PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
             mWakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
             mWakelock.acquire();
-            addLog(false, "Wakelock acquired");
+            WifiManager wm = (WifiManager)getApplicationContext().getSystemService(
+                    Context.WIFI_SERVICE);
+            if (wm != null) {
+                mWifiLock = wm.createWifiLock(Build.VERSION.SDK_INT >= sWifiLowLatencySdk ?
+                        sWifiModeFullLowLatency : WifiManager.WIFI_MODE_FULL_HIGH_PERF, TAG);
+                mWifiLock.setReferenceCounted(false);
+                mWifiLock.acquire();
+            }
+            mMetrics.onPowerLocks(true);
+            addLog(false, "Wakelock acquired" + (mWifiLock != null ? ", with a Wi-Fi lock" : ""));
         } else if (!enabled && mWakelock != null) {
             mWakelock.release();
             mWakelock = null;
+            if (mWifiLock != null) {
+                mWifiLock.release();
+                mWifiLock = null;
+            }
+            mMetrics.onPowerLocks(false);
             addLog(false, "Wakelock released");
         }
     }
 
     @MainThread
-    public boolean isRunning() {
-        return mThread != null && mThread.isAlive();
+    public synchronized boolean isRunning() {
+        return mThread != null && mThread.isAlive() && !mLeftBehind;
     }
 
     /*
@@ -0,0 +1,409 @@
+/*
+ *  NioEngine     Single thread TCP engine using direct buffers and non-blocking writes
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import android.media.AudioTrack;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/*
+ * One Selector watches the listening channel, the client channel and a wakeup pipe. The client
+ * is read into pooled direct buffers that are handed as is to the AudioTrack with non-blocking
+ * writes, so the PCM never goes through the Java heap. When every buffer is waiting for the
+ * AudioTrack, the client is not read anymore and TCP flow control throttles the sender.
+ * Only one client plays: a new one is rejected, queued, or takes over from the current one on a
+ * frame boundary without flushing what the AudioTrack already holds, depending on the policy.
+ * Between clients the AudioTrack keeps playing silence from a direct buffer, it is only stopped
+ * once idle for AudioWriter.TRACK_IDLE_TIMEOUT_NS. The PCM is never touched here, so sessions
+ * are not crossfaded. The engine runs on the service thread, which then takes the urgent audio
+ * priority of an AudioWriter; no write blocks, so it isn't watched.
+ */
+final class NioEngine {
+
+    private static final long sWritePollMs = 5;
+    private static final long sLivenessPollMs = 100;
+
+    private final Main mMain;
+    private final PlaybackMetrics mMetrics;
+    private final PlaybackMetrics.TrackPoll mTrackPoll = new PlaybackMetrics.TrackPoll();
+    private final AudioTrack mAudioTrack;
+    private final int mFrameSize;
+    private final Selector mSelector;
+    private final Pipe mWakeupPipe;
+    private final ServerSocketChannel mServerChannel;
+    private final ByteBuffer mWakeupBuffer = ByteBuffer.allocate(1);
+    private final ByteBuffer mSilence;
+
+    private final ArrayDeque<ByteBuffer> mFreeBuffers;
+    private final ArrayDeque<ByteBuffer> mPendingBuffers;
+    private final ArrayDeque<SocketChannel> mQueuedClients = new ArrayDeque<>();
+
+    private SocketChannel mClient = null;
+    private SelectionKey mClientKey = null;
+    private ByteBuffer mFillingBuffer = null;
+    private boolean mClientEnded = false;
+    private final LivenessMonitor mLiveness;
+    private long mFramesSincePlay = 0;
+    private boolean mTrackPlaying = false;
+    private long mIdleSinceNs = 0;
+
+    NioEngine(Main main, AudioTrack audioTrack, int frameSize, int sampleRate,
+              InetSocketAddress bindAddress, int bufferSizeInBytes, int bufferCount)
+            throws IOException {
+        mMain = main;
+        mLiveness = new LivenessMonitor((long) frameSize * sampleRate);
+        mMetrics = main.getMetrics();
+        mAudioTrack = audioTrack;
+        mFrameSize = frameSize;
+
+        final int alignedSize = Math.max(bufferSizeInBytes - bufferSizeInBytes % frameSize, frameSize);
+        mFreeBuffers = new ArrayDeque<>(bufferCount);
+        mPendingBuffers = new ArrayDeque<>(bufferCount);
+        for (int i = 0; i < bufferCount; ++i)
+            mFreeBuffers.add(ByteBuffer.allocateDirect(alignedSize));
+        /* zero filled */
+        mSilence = ByteBuffer.allocateDirect(alignedSize);
+
+        mSelector = Selector.open();
+        mWakeupPipe = Pipe.open();
+        mServerChannel = ServerSocketChannel.open();
+        try {
+            mWakeupPipe.source().configureBlocking(false);
+            mWakeupPipe.source().register(mSelector, SelectionKey.OP_READ);
+            mServerChannel.socket().setReceiveBufferSize(alignedSize);
+            mServerChannel.socket().bind(bindAddress);
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /* Any thread: make run() return */
+    void wakeup() {
+        try {
+            mWakeupPipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+        } catch (IOException ignored) {
+            mSelector.wakeup();
+        }
+    }
+
+    void close() {
+        closeClient();
+        stopTrack();
+        for (SocketChannel client : mQueuedClients) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mQueuedClients.clear();
+        try {
+            mServerChannel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            mWakeupPipe.sink().close();
+            mWakeupPipe.source().close();
+        } catch (IOException ignored) {
+        }
+        try {
+            mSelector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /* Serve clients until wakeup() is called. Throws if the engine can't be used anymore. */
+    void run() throws IOException {
+        while (true) {
+            int written = drainToAudioTrack();
+            if (written >= 0 && mClient == null && mTrackPlaying)
+                written = feedSilence();
+            if (written < 0) {
+                mMain.addLog(true, "AudioTrack write failed: " + written);
+                closeClient();
+                stopTrack();
+            }
+
+            /* Poll while the AudioTrack is full, it doesn't have a selectable fd */
+            mSelector.select(!mPendingBuffers.isEmpty() || (mClient == null && mTrackPlaying) ?
+                    sWritePollMs : (mClient != null ? sLivenessPollMs : 1000));
+
+            final Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                final SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.channel() == mWakeupPipe.source()) {
+                    mWakeupBuffer.clear();
+                    mWakeupPipe.source().read(mWakeupBuffer);
+                    closeClient();
+                    stopTrack();
+                    return;
+                } else if (key.isAcceptable())
+                    accept();
+                else if (key.isReadable())
+                    read();
+            }
+
+            final long now = System.nanoTime();
+            if (mClient != null && !mClientEnded && mLiveness.isExpired(now)) {
+                mMain.addLog(true, "No data for " + mLiveness.getSilenceNs(now) / 1000000 +
+                        " ms (threshold: " + mLiveness.getTimeoutNs() / 1000000 + " ms): " +
+                        mClient.socket());
+                closeClient();
+            }
+            if (mClient != null && mClientEnded && mPendingBuffers.isEmpty())
+                closeClient();
+            if (mClient == null && !mQueuedClients.isEmpty())
+                startQueuedClient();
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel client = mServerChannel.accept();
+        if (client == null)
+            return;
+        if (mClient != null) {
+            switch (mMain.getServerPolicy()) {
+                case Main.POLICY_NEWEST_WINS:
+                    handover(client);
+                    return;
+                case Main.POLICY_QUEUE:
+                    mMain.addLog(false, "Busy, queuing socket: " + client.socket());
+                    mQueuedClients.add(client);
+                    return;
+                default:
+                    mMain.addLog(true, "Busy, rejecting socket: " + client.socket());
+                    client.close();
+                    return;
+            }
+        }
+        startSession(client);
+        mMain.addLog(false, "New socket accepted: " + client.socket());
+    }
+
+    private void startSession(SocketChannel client) throws IOException {
+        startClient(client);
+        mFillingBuffer = mFreeBuffers.poll();
+        mFillingBuffer.clear();
+        if (!mTrackPlaying) {
+            mAudioTrack.play();
+            mTrackPlaying = true;
+            mFramesSincePlay = 0;
+        }
+        mMain.onSessionStart();
+    }
+
+    private void startClient(SocketChannel client) throws IOException {
+        client.configureBlocking(false);
+        mClient = client;
+        mClientKey = client.register(mSelector, SelectionKey.OP_READ);
+        mClientEnded = false;
+        mLiveness.reset(System.nanoTime());
+        mMain.setTcpLiveness(client.socket());
+    }
+
+    /*
+     * The whole frames already read keep playing, only the partial frame of the current client is
+     * dropped so that the new client starts on a frame boundary.
+     */
+    private void handover(SocketChannel client) throws IOException {
+        mMain.addLog(false, "Newest wins, " + client.socket() + " takes over " + mClient.socket());
+        try {
+            mClient.close();
+        } catch (IOException ignored) {
+        }
+        mMain.onSessionEnd();
+        if (mFillingBuffer == null) {
+            mFillingBuffer = mFreeBuffers.poll();
+            if (mFillingBuffer != null)
+                mFillingBuffer.clear();
+        } else {
+            final int position = mFillingBuffer.position();
+            mFillingBuffer.position(position - position % mFrameSize);
+        }
+        startClient(client);
+        /* every buffer is pending, the client is read again once one is written */
+        if (mFillingBuffer == null)
+            mClientKey.interestOps(0);
+        mMain.onSessionStart();
+    }
+
+    /* Start the oldest queued client still connected, once the previous one is closed */
+    private void startQueuedClient() {
+        SocketChannel client;
+        while ((client = mQueuedClients.poll()) != null) {
+            try {
+                startSession(client);
+            } catch (IOException e) {
+                mMain.addLog(true, "Queued socket failed: " + client.socket(), e);
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+                mClient = null;
+                mClientKey = null;
+                continue;
+            }
+            mMain.addLog(false, "Queued socket started: " + client.socket());
+            return;
+        }
+    }
+
+    private void read() {
+        int read;
+        try {
+            read = mClient.read(mFillingBuffer);
+        } catch (IOException e) {
+            mMain.addLog(true, "Socket triggered an IOException", e);
+            closeClient();
+            return;
+        }
+        if (read == -1) {
+            mMain.addLog(true, "Socket closed by the client");
+            mClientEnded = true;
+            mClientKey.interestOps(0);
+            queueFillingBuffer(true);
+            return;
+        }
+        if (read > 0) {
+            mMetrics.onRead(read);
+            mLiveness.onArrival(System.nanoTime(), read);
+            mMetrics.onJitter(mLiveness.getJitterNs());
+        }
+        queueFillingBuffer(false);
+    }
+
+    /* Queue the whole frames of the filling buffer, the partial frame moves to the next one */
+    private void queueFillingBuffer(boolean last) {
+        final int position = mFillingBuffer.position();
+        final int aligned = position - position % mFrameSize;
+        if (aligned == 0)
+            return;
+        final ByteBuffer next = last ? null : mFreeBuffers.poll();
+        if (!last && next == null) {
+            if (!mFillingBuffer.hasRemaining())
+                mClientKey.interestOps(0);
+            return;
+        }
+
+        mFillingBuffer.flip();
+        if (next != null) {
+            next.clear();
+            for (int i = aligned; i < position; ++i)
+                next.put(mFillingBuffer.get(i));
+        }
+        mFillingBuffer.limit(aligned);
+        mPendingBuffers.add(mFillingBuffer);
+        mFillingBuffer = next;
+    }
+
+    /*
+     * Keep the AudioTrack primed between clients, returns the bytes written or an AudioTrack
+     * error. The AudioTrack is stopped once idle for too long.
+     */
+    private int feedSilence() {
+        final long now = System.nanoTime();
+        if (now - mIdleSinceNs >= AudioWriter.TRACK_IDLE_TIMEOUT_NS) {
+            mMain.addLog(false, "AudioTrack idle for " +
+                    AudioWriter.TRACK_IDLE_TIMEOUT_NS / 1000000000L + " s, stopping it");
+            stopTrack();
+            return 0;
+        }
+        int total = 0;
+        while (true) {
+            mSilence.clear();
+            final int written = mAudioTrack.write(mSilence, mSilence.remaining(),
+                    AudioTrack.WRITE_NON_BLOCKING);
+            if (written <= 0)
+                return written < 0 ? written : total;
+            mFramesSincePlay += written / mFrameSize;
+            total += written;
+            if (written < mSilence.capacity())
+                return total;
+        }
+    }
+
+    private void stopTrack() {
+        if (!mTrackPlaying)
+            return;
+        mAudioTrack.flush();
+        mAudioTrack.stop();
+        mTrackPlaying = false;
+    }
+
+    private int drainToAudioTrack() {
+        int total = 0;
+        ByteBuffer buffer;
+        while ((buffer = mPendingBuffers.peek()) != null) {
+            final long writeStart = System.nanoTime();
+            final int written = mAudioTrack.write(buffer, buffer.remaining(), AudioTrack.WRITE_NON_BLOCKING);
+            if (written < 0)
+                return written;
+            if (written > 0) {
+                final long writeEnd = System.nanoTime();
+                mFramesSincePlay += written / mFrameSize;
+                mMetrics.onWrite(writeEnd - writeStart, written / mFrameSize);
+                mMetrics.pollTrack(mTrackPoll, mAudioTrack, mFramesSincePlay, writeEnd);
+            }
+            total += written;
+            if (buffer.hasRemaining())
+                break;
+            mPendingBuffers.poll();
+            mFreeBuffers.add(buffer);
+        }
+
+        if (mClientKey != null && !mClientEnded && mClientKey.interestOps() == 0 &&
+                !mFreeBuffers.isEmpty()) {
+            /* the filling buffer is full and waits for a buffer to carry its partial frame */
+            if (mFillingBuffer == null) {
+                mFillingBuffer = mFreeBuffers.poll();
+                mFillingBuffer.clear();
+            } else
+                queueFillingBuffer(false);
+            mClientKey.interestOps(SelectionKey.OP_READ);
+        }
+        return total;
+    }
+
+    private void closeClient() {
+        if (mClient == null)
+            return;
+        try {
+            mClient.close();
+        } catch (IOException ignored) {
+        }
+        mClient = null;
+        mClientKey = null;
+        mClientEnded = false;
+        if (mFillingBuffer != null)
+            mFreeBuffers.add(mFillingBuffer);
+        mFillingBuffer = null;
+        while (!mPendingBuffers.isEmpty())
+            mFreeBuffers.add(mPendingBuffers.poll());
+        /* the AudioTrack plays what it holds then silence, until the next client */
+        mIdleSinceNs = System.nanoTime();
+        mMain.onSessionEnd();
+    }
+}
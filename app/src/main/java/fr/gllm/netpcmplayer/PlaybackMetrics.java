@@ -0,0 +1,273 @@
+/*
+ *  PlaybackMetrics Lock-free counters of the network and AudioTrack paths
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Network counters are updated by every reader thread with atomics, AudioTrack counters only by
+ * the thread writing into the current AudioTrack with plain volatiles: a retiring AudioWriter
+ * stops reporting, and each writer polls its own AudioTrack with its own TrackPoll. Nothing is locked nor allocated on the hot
+ * paths; snapshot() can be called from any thread and only costs a few volatile reads.
+ * The actual latency is the jitter buffer of the fullest playing source plus the output latency:
+ * the frames written to the AudioTrack but not presented yet, according to its timestamp.
+ * The cost of each DSP stage is its share of one CPU between two snapshots.
+ * Jitter samples are also averaged apart depending on whether the power locks (CPU wakelock and
+ * Wi-Fi lock) were held, so that Wi-Fi power save shows as the jitter of the unlocked samples.
+ */
+final class PlaybackMetrics {
+
+    /* bucket i counts the reads of [2^(i-1); 2^i[ bytes, the last one everything bigger */
+    static final int READ_SIZE_BUCKETS = 17;
+    private static final long sTrackPollNs = 100000000L;
+    private static final long sReconnectWindowNs = 10000000000L;
+
+    /* network side, any reader thread */
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mReads = new AtomicLong();
+    private final AtomicLongArray mReadSizes = new AtomicLongArray(READ_SIZE_BUCKETS);
+    private final AtomicLong mSessions = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mLastSessionEndNs = new AtomicLong();
+    /* inter-arrival jitter of the last stream read */
+    private volatile long mJitterNs = 0;
+    /* jitter samples and their sum, [0] without the power locks, [1] with them */
+    private final AtomicLongArray mJitterSamples = new AtomicLongArray(2);
+    private final AtomicLongArray mJitterSumNs = new AtomicLongArray(2);
+    private volatile boolean mPowerLocked = false;
+
+    /* AudioTrack side, only written by the thread owning the current AudioTrack */
+    private volatile long mWrites = 0;
+    private volatile long mWriteBlockedNs = 0;
+    private volatile long mFramesWritten = 0;
+    private volatile long mTrackUnderruns = 0;
+    private volatile long mHeadLagFrames = 0;
+    private volatile long mMaxHeadLagFrames = 0;
+    private volatile long mConfiguredLatencyNs = 0;
+    private volatile long mBufferLatencyNs = 0;
+    private volatile long mOutputLatencyNs = 0;
+    private volatile DspChain mDsp = null;
+    private final EventTrace mTrace;
+
+    PlaybackMetrics(EventTrace trace) {
+        mTrace = trace;
+    }
+
+    /* Poll state of one AudioTrack, owned by the thread writing into it */
+    static final class TrackPoll {
+        private final AudioTimestamp mTimestamp = new AudioTimestamp();
+        private int mLastUnderruns = 0;
+        private long mLastPollNs = 0;
+    }
+
+    static final class Snapshot {
+        final long timeNs;
+        final long receivedBytes;
+        final long reads;
+        final long[] readSizes;
+        final long sessions;
+        final long reconnects;
+        final long jitterNs;
+        final long[] jitterSamples;
+        final long[] jitterSumNs;
+        final boolean powerLocked;
+        final long writes;
+        final long writeBlockedNs;
+        final long framesWritten;
+        final long trackUnderruns;
+        final long headLagFrames;
+        final long maxHeadLagFrames;
+        final long configuredLatencyNs;
+        final long bufferLatencyNs;
+        final long outputLatencyNs;
+        final DspChain dsp;
+        final long[] dspStageNs;
+
+        private Snapshot(PlaybackMetrics m) {
+            timeNs = System.nanoTime();
+            receivedBytes = m.mReceivedBytes.get();
+            reads = m.mReads.get();
+            readSizes = new long[READ_SIZE_BUCKETS];
+            for (int i = 0; i < READ_SIZE_BUCKETS; ++i)
+                readSizes[i] = m.mReadSizes.get(i);
+            sessions = m.mSessions.get();
+            reconnects = m.mReconnects.get();
+            jitterNs = m.mJitterNs;
+            jitterSamples = new long[2];
+            jitterSumNs = new long[2];
+            for (int i = 0; i < 2; ++i) {
+                jitterSamples[i] = m.mJitterSamples.get(i);
+                jitterSumNs[i] = m.mJitterSumNs.get(i);
+            }
+            powerLocked = m.mPowerLocked;
+            writes = m.mWrites;
+            writeBlockedNs = m.mWriteBlockedNs;
+            framesWritten = m.mFramesWritten;
+            trackUnderruns = m.mTrackUnderruns;
+            headLagFrames = m.mHeadLagFrames;
+            maxHeadLagFrames = m.mMaxHeadLagFrames;
+            configuredLatencyNs = m.mConfiguredLatencyNs;
+            bufferLatencyNs = m.mBufferLatencyNs;
+            outputLatencyNs = m.mOutputLatencyNs;
+            dsp = m.mDsp;
+            dspStageNs = new long[dsp != null ? dsp.getStageCount() : 0];
+            for (int i = 0; i < dspStageNs.length; ++i)
+                dspStageNs[i] = dsp.getStageNs(i);
+        }
+
+        /* Upper bound of the read size bucket containing the given fraction of the reads */
+        int getReadSizePercentile(double fraction) {
+            long total = 0;
+            for (long count : readSizes)
+                total += count;
+            long seen = 0;
+            for (int i = 0; i < READ_SIZE_BUCKETS; ++i) {
+                seen += readSizes[i];
+                if (total > 0 && seen >= total * fraction)
+                    return 1 << i;
+            }
+            return 0;
+        }
+
+        /* Mean jitter of the samples taken since a previous snapshot, "-" if none */
+        private String formatJitter(Snapshot previous, int locked) {
+            final long samples = jitterSamples[locked] - previous.jitterSamples[locked];
+            if (samples <= 0)
+                return "-";
+            return String.format(Locale.US, "%.1f",
+                    (jitterSumNs[locked] - previous.jitterSumNs[locked]) / 1e6 / samples);
+        }
+
+        /* Human readable rates since a previous snapshot */
+        String format(Snapshot previous) {
+            final double seconds = Math.max(timeNs - previous.timeNs, 1) / 1e9;
+            final StringBuilder dspCost = new StringBuilder();
+            if (dsp != null && dsp == previous.dsp) {
+                dspCost.append(", dsp:");
+                for (int i = 0; i < dspStageNs.length; ++i)
+                    dspCost.append(String.format(Locale.US, " %s %.2f%%", dsp.getStageName(i),
+                            (dspStageNs[i] - previous.dspStageNs[i]) / 1e7 / seconds));
+            }
+            return String.format(Locale.US,
+                    "in: %.1f kB/s, read p50/p99: %d/%d B, write blocked: %.0f%%, " +
+                            "underruns: +%d (%d), head lag: %d frames (max %d), sessions: %d, " +
+                            "reconnects: %d, jitter: %.1f ms (mean locked/unlocked: %s/%s, " +
+                            "locks %s), latency: configured: %d ms, " +
+                            "actual: %d ms (buffer: %d, output: %d)",
+                    (receivedBytes - previous.receivedBytes) / seconds / 1000,
+                    getReadSizePercentile(0.5), getReadSizePercentile(0.99),
+                    (writeBlockedNs - previous.writeBlockedNs) / 1e7 / seconds,
+                    trackUnderruns - previous.trackUnderruns, trackUnderruns,
+                    headLagFrames, maxHeadLagFrames, sessions, reconnects, jitterNs / 1e6,
+                    formatJitter(previous, 1), formatJitter(previous, 0),
+                    powerLocked ? "held" : "released",
+                    configuredLatencyNs / 1000000, (bufferLatencyNs + outputLatencyNs) / 1000000,
+                    bufferLatencyNs / 1000000, outputLatencyNs / 1000000) + dspCost;
+        }
+    }
+
+    Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /* Reader threads: one successful socket or packet read */
+    void onRead(int bytes) {
+        mReceivedBytes.addAndGet(bytes);
+        mReads.incrementAndGet();
+        mReadSizes.incrementAndGet(Math.min(32 - Integer.numberOfLeadingZeros(bytes),
+                READ_SIZE_BUCKETS - 1));
+    }
+
+    /* Reader threads: a client starts streaming, counted as a reconnect if one just ended */
+    void onSessionStart() {
+        mSessions.incrementAndGet();
+        final long lastEnd = mLastSessionEndNs.get();
+        if (lastEnd != 0 && System.nanoTime() - lastEnd < sReconnectWindowNs)
+            mReconnects.incrementAndGet();
+    }
+
+    /* Reader threads: jitter measured by the LivenessMonitor of a stream */
+    void onJitter(long jitterNs) {
+        mJitterNs = jitterNs;
+        final int locked = mPowerLocked ? 1 : 0;
+        mJitterSamples.incrementAndGet(locked);
+        mJitterSumNs.addAndGet(locked, jitterNs);
+    }
+
+    /* Any thread, under the service lock: the power locks were acquired or released */
+    void onPowerLocks(boolean held) {
+        mPowerLocked = held;
+    }
+
+    void onSessionEnd() {
+        mLastSessionEndNs.set(System.nanoTime());
+    }
+
+    /* Main thread: delay planned for the current AudioTrack */
+    void onLatencyPlan(long latencyNs) {
+        mConfiguredLatencyNs = latencyNs;
+    }
+
+    /* Main thread: DSP chain of the current AudioWriter */
+    void onDspChain(DspChain dsp) {
+        mDsp = dsp;
+    }
+
+    /* AudioTrack thread: time the buffered frames of the stream will take to be written */
+    void onBufferLatency(long latencyNs) {
+        mBufferLatencyNs = latencyNs;
+    }
+
+    /* AudioTrack thread: one write of frames that blocked blockedNs */
+    void onWrite(long blockedNs, int frames) {
+        mWrites++;
+        mWriteBlockedNs += blockedNs;
+        mFramesWritten += frames;
+    }
+
+    /*
+     * AudioTrack thread: sample the underrun count and the playback head against the frames
+     * written since play(), at most every 100ms.
+     */
+    void pollTrack(TrackPoll poll, AudioTrack audioTrack, long framesSincePlay, long nowNs) {
+        if (nowNs - poll.mLastPollNs < sTrackPollNs)
+            return;
+        poll.mLastPollNs = nowNs;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            /* the count is per AudioTrack, as the poll state */
+            final int underruns = audioTrack.getUnderrunCount();
+            final int delta = underruns - poll.mLastUnderruns;
+            poll.mLastUnderruns = underruns;
+            if (delta > 0) {
+                mTrackUnderruns += delta;
+                mTrace.trace(EventTrace.EVENT_TRACK_UNDERRUN, delta, mTrackUnderruns);
+            }
+        }
+        final long lag = framesSincePlay - (audioTrack.getPlaybackHeadPosition() & 0xffffffffL);
+        mHeadLagFrames = lag;
+        if (lag > mMaxHeadLagFrames)
+            mMaxHeadLagFrames = lag;
+        /* no timestamp until the first frames reach the device */
+        if (audioTrack.getTimestamp(poll.mTimestamp)) {
+            final int rate = audioTrack.getSampleRate();
+            final long presented = poll.mTimestamp.framePosition +
+                    (nowNs - poll.mTimestamp.nanoTime) * rate / 1000000000L;
+            mOutputLatencyNs = Math.max(framesSincePlay - presented, 0) * 1000000000L / rate;
+        }
+    }
+}
@@ -40,12 +40,22 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
 
     static final String KEY_RUN_ON_BOOT ="general_run_on_boot";
     static final String KEY_WAKELOCK ="general_wakelock";
+    static final String KEY_SILENCE_TIMEOUT ="general_silence_timeout";
+    static final String KEY_TRACE_FILE ="general_trace_file";
+    static final String KEY_CAPTURE_FILE ="general_capture_file";
     static final String KEY_AUDIO_ENCODING ="audio_encoding";
     static final String KEY_AUDIO_SAMPLE_RATE ="audio_samplerate";
     static final String KEY_AUDIO_CHANNELS ="audio_channels";
     static final String KEY_AUDIO_DELAY ="audio_delay";
+    static final String KEY_AUDIO_VOLUME ="audio_volume";
+    static final String KEY_AUDIO_DSP_GAIN ="audio_dsp_gain";
+    static final String KEY_AUDIO_DSP_BASS ="audio_dsp_bass";
+    static final String KEY_AUDIO_DSP_TREBLE ="audio_dsp_treble";
+    static final String KEY_AUDIO_DSP_LIMITER ="audio_dsp_limiter";
+    static final String KEY_SERVER_PROTOCOL ="server_protocol";
     static final String KEY_SERVER_PORT ="server_port";
     static final String KEY_SERVER_BINDADDR ="server_bindaddr";
+    static final String KEY_SERVER_POLICY ="server_policy";
 
     private static boolean isXLargeTablet(Context context) {
         return (context.getResources().getConfiguration().screenLayout
@@ -71,6 +81,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         private Main mMain;
         private SwitchPreference mRunPref;
         private SwitchPreference mRunOnBootPref;
+        private Preference mStatusPref;
+        private PlaybackMetrics.Snapshot mLastSnapshot = null;
+        private static final long sStatusPeriodMs = 1000;
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
@@ -79,7 +92,13 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
 
             final SharedPreferences sharedPrefs =
                     PreferenceManager.getDefaultSharedPreferences(getActivity());
+            findPreference("general_silence_timeout").setSummary(
+                    sharedPrefs.getString("general_silence_timeout", ""));
             findPreference("audio_delay").setSummary(sharedPrefs.getString("audio_delay", ""));
+            findPreference("audio_volume").setSummary(sharedPrefs.getString("audio_volume", ""));
+            findPreference("audio_dsp_gain").setSummary(sharedPrefs.getString("audio_dsp_gain", ""));
+            findPreference("audio_dsp_bass").setSummary(sharedPrefs.getString("audio_dsp_bass", ""));
+            findPreference("audio_dsp_treble").setSummary(sharedPrefs.getString("audio_dsp_treble", ""));
             findPreference("server_port").setSummary(sharedPrefs.getString("server_port", ""));
             findPreference("server_bindaddr").setSummary(sharedPrefs.getString("server_bindaddr", ""));
 
@@ -114,13 +133,26 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             mRunOnBootPref = (SwitchPreference) findPreference("general_run_on_boot");
             mRunOnBootPref.setOnPreferenceChangeListener(mRunOnBootListener);
 
-            findPreference("general_wakelock").setOnPreferenceChangeListener(mWakelockListener);
+            findPreference("general_wakelock").setOnPreferenceChangeListener(mGeneralListener);
+            findPreference("general_silence_timeout").setOnPreferenceChangeListener(
+                    mSilenceTimeoutListener);
             findPreference("audio_encoding").setOnPreferenceChangeListener(mGeneralListener);
             findPreference("audio_samplerate").setOnPreferenceChangeListener(mGeneralListener);
             findPreference("audio_channels").setOnPreferenceChangeListener(mGeneralListener);
             findPreference("audio_delay").setOnPreferenceChangeListener(mAudioDelayListener);
+            findPreference("audio_volume").setOnPreferenceChangeListener(mAudioVolumeListener);
+            findPreference("audio_dsp_gain").setOnPreferenceChangeListener(mAudioDspGainListener);
+            findPreference("audio_dsp_bass").setOnPreferenceChangeListener(mAudioDspGainListener);
+            findPreference("audio_dsp_treble").setOnPreferenceChangeListener(mAudioDspGainListener);
+            findPreference("audio_dsp_limiter").setOnPreferenceChangeListener(mGeneralListener);
+            findPreference("server_protocol").setOnPreferenceChangeListener(mGeneralListener);
             findPreference("server_port").setOnPreferenceChangeListener(mServerPortListener);
             findPreference("server_bindaddr").setOnPreferenceChangeListener(mServerBindAddrListener);
+            findPreference("server_policy").setOnPreferenceChangeListener(mGeneralListener);
+
+            mStatusPref = findPreference("general_status");
+            mLastSnapshot = null;
+            mHandler.post(mStatusRunnable);
 
             if (mRunOnBootPref.isChecked()) {
                 mRunPref.setChecked(true);
@@ -152,16 +184,6 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             }
         };
 
-        private final Preference.OnPreferenceChangeListener mWakelockListener =
-                new Preference.OnPreferenceChangeListener() {
-            @Override
-            public boolean onPreferenceChange(Preference preference, Object value) {
-                if (mMain.isRunning())
-                    mMain.setWakelockEnabled((Boolean) value);
-                return true;
-            }
-        };
-
         private final Preference.OnPreferenceChangeListener mGeneralListener =
                 new Preference.OnPreferenceChangeListener() {
             @Override
@@ -191,6 +213,66 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             }
         };
 
+        private final Preference.OnPreferenceChangeListener mAudioVolumeListener =
+                new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object value) {
+                String stringValue = value.toString();
+                try {
+                    int volume = Integer.parseInt(stringValue);
+                    if (volume >= 0 && volume <= 100) {
+                        preference.setSummary(stringValue);
+                        restartIfNeeded();
+                        return true;
+                    } else
+                        Toast.makeText(getActivity(), "Audio volume is invalid", Toast.LENGTH_SHORT)
+                                .show();
+                } catch (NumberFormatException ignored) {
+                }
+                return false;
+            }
+        };
+
+        private final Preference.OnPreferenceChangeListener mSilenceTimeoutListener =
+                new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object value) {
+                String stringValue = value.toString();
+                try {
+                    int timeout = Integer.parseInt(stringValue);
+                    if (Main.Arguments.isValidSilenceTimeout(timeout)) {
+                        preference.setSummary(stringValue);
+                        restartIfNeeded();
+                        return true;
+                    } else
+                        Toast.makeText(getActivity(), "Silence timeout is invalid",
+                                Toast.LENGTH_SHORT).show();
+                } catch (NumberFormatException ignored) {
+                }
+                return false;
+            }
+        };
+
+        private final Preference.OnPreferenceChangeListener mAudioDspGainListener =
+                new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object value) {
+                String stringValue = value.toString();
+                try {
+                    int gain = Integer.parseInt(stringValue);
+                    if (Main.Arguments.isValidDspGain(gain)) {
+                        preference.setSummary(stringValue);
+                        restartIfNeeded();
+                        return true;
+                    } else
+                        Toast.makeText(getActivity(), "Gain is invalid", Toast.LENGTH_SHORT)
+                                .show();
+                } catch (NumberFormatException ignored) {
+                }
+                return false;
+            }
+        };
+
         private final Preference.OnPreferenceChangeListener mServerPortListener =
                 new Preference.OnPreferenceChangeListener() {
             @Override
@@ -239,6 +321,7 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             mMain.start(getMainArguments(getActivity()));
         }
 
+        /* Main.start() applies what it can in place, the server is only restarted if needed */
         private final Runnable mRestartRunnable = new Runnable() {
             @Override
             public void run() {
@@ -247,6 +330,22 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             }
         };
 
+        /* Metrics are polled from the UI thread, the snapshot never waits for the service */
+        private final Runnable mStatusRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (mMain == null)
+                    return;
+                final PlaybackMetrics.Snapshot snapshot = mMain.getMetricsSnapshot();
+                if (!mMain.isRunning())
+                    mStatusPref.setSummary(R.string.general_status_summary_none);
+                else if (mLastSnapshot != null)
+                    mStatusPref.setSummary(snapshot.format(mLastSnapshot));
+                mLastSnapshot = snapshot;
+                mHandler.postDelayed(this, sStatusPeriodMs);
+            }
+        };
+
         private void restartIfNeeded() {
             mHandler.removeCallbacks(mRestartRunnable);
             mHandler.post(mRestartRunnable);
@@ -280,6 +379,7 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         }
 
         private void disconnectService() {
+            mHandler.removeCallbacks(mStatusRunnable);
             mMain.setOnErrorListener(null);
             mMain = null;
             getActivity().unbindService(mServiceConnection);
@@ -298,22 +398,34 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         }
     }
 
-    static int getIntPref(SharedPreferences prefs, String key) {
+    static int getIntPref(SharedPreferences prefs, String key, int defValue) {
         try {
-            return Integer.parseInt(prefs.getString(key, "-1"));
+            return Integer.parseInt(prefs.getString(key, Integer.toString(defValue)));
         } catch (NumberFormatException ignored) {
             return -1;
         }
     }
 
+    static int getIntPref(SharedPreferences prefs, String key) {
+        return getIntPref(prefs, key, -1);
+    }
+
     static Main.Arguments getMainArguments(Context context) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences (context);
         return new Main.Arguments(prefs.getBoolean(KEY_WAKELOCK, false),
+                getIntPref(prefs, KEY_SILENCE_TIMEOUT, 0),
                 getIntPref(prefs, KEY_AUDIO_SAMPLE_RATE),
                 getIntPref(prefs, KEY_AUDIO_CHANNELS),
                 getIntPref(prefs, KEY_AUDIO_ENCODING),
                 getIntPref(prefs, KEY_AUDIO_DELAY),
+                getIntPref(prefs, KEY_AUDIO_VOLUME, 100),
+                getIntPref(prefs, KEY_SERVER_PROTOCOL, Main.PROTOCOL_TCP),
                 getIntPref(prefs, KEY_SERVER_PORT),
-                prefs.getString(KEY_SERVER_BINDADDR, ""));
+                prefs.getString(KEY_SERVER_BINDADDR, ""),
+                getIntPref(prefs, KEY_SERVER_POLICY, Main.POLICY_MIX),
+                getIntPref(prefs, KEY_AUDIO_DSP_GAIN, 0),
+                getIntPref(prefs, KEY_AUDIO_DSP_BASS, 0),
+                getIntPref(prefs, KEY_AUDIO_DSP_TREBLE, 0),
+                prefs.getBoolean(KEY_AUDIO_DSP_LIMITER, false));
     }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+/*
+ *  Benchmarks    Shared settings of the playback core benchmarks
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Every benchmark processes blocks of FRAMES frames and declares them as operations, so the
+ * reported score is in ns per frame and the gc profiler "alloc.rate.norm" in bytes per frame.
+ */
+final class Benchmarks {
+
+    static final int FRAMES = 512;
+
+    private Benchmarks() {
+    }
+
+    /* A different tone per channel, at -6 dBFS */
+    static float[] sine(int samples, int channels) {
+        final float[] out = new float[samples];
+        for (int i = 0; i < samples; ++i)
+            out[i] = 0.5f * (float) Math.sin(i / channels * 0.01 * (i % channels + 1));
+        return out;
+    }
+}
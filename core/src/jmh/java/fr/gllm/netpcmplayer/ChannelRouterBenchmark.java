@@ -0,0 +1,61 @@
+/*
+ *  ChannelRouterBenchmark Cost of the channel remapping and downmix
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class ChannelRouterBenchmark {
+
+    /* 7.1 and 5.1 to stereo, 5.1 to quad, stereo swapped */
+    @Param({"7.1-stereo", "5.1-stereo", "5.1-quad", "swap"})
+    public String route;
+
+    private ChannelRouter mRouter;
+    private float[] mIn;
+    private float[] mOut;
+
+    @Setup
+    public void setup() {
+        if (route.equals("7.1-stereo"))
+            mRouter = ChannelRouter.forMasks(ChannelRouter.MASK_7POINT1, ChannelRouter.MASK_STEREO);
+        else if (route.equals("5.1-stereo"))
+            mRouter = ChannelRouter.forMasks(ChannelRouter.MASK_5POINT1, ChannelRouter.MASK_STEREO);
+        else if (route.equals("5.1-quad"))
+            mRouter = ChannelRouter.forMasks(ChannelRouter.MASK_5POINT1, ChannelRouter.MASK_QUAD);
+        else
+            mRouter = new ChannelRouter(
+                    new int[] { ChannelRouter.FRONT_RIGHT, ChannelRouter.FRONT_LEFT },
+                    new int[] { ChannelRouter.FRONT_LEFT, ChannelRouter.FRONT_RIGHT });
+        mIn = Benchmarks.sine(Benchmarks.FRAMES * mRouter.getInChannels(), mRouter.getInChannels());
+        mOut = new float[Benchmarks.FRAMES * mRouter.getOutChannels()];
+    }
+
+    @Benchmark
+    public float[] process() {
+        mRouter.process(mIn, Benchmarks.FRAMES, mOut);
+        return mOut;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *  DspChainBenchmark Cost of the DSP stages on a mixed block
+ *  Copyright (c)     2017 Thomas Guillem <thomas@gllm.fr>
+ *                    All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class DspChainBenchmark {
+
+    @Param({"2", "6", "8"})
+    public int channels;
+
+    /* every stage active, or all at their neutral setting */
+    @Param({"true", "false"})
+    public boolean active;
+
+    private DspChain mChain;
+    private float[] mBlock;
+    private float[] mSine;
+
+    @Setup
+    public void setup() {
+        final GainStage gain = new GainStage(channels, 48000);
+        final BiquadStage bass = new BiquadStage("bass", channels, 48000);
+        final BiquadStage treble = new BiquadStage("treble", channels, 48000);
+        final SoftLimiter limiter = new SoftLimiter(channels, 48000);
+        if (active) {
+            gain.setGainDb(6);
+            bass.setBand(BiquadStage.LOW_SHELF, 100, 6, 1);
+            treble.setBand(BiquadStage.HIGH_SHELF, 10000, -3, 1);
+            limiter.setEnabled(true);
+        }
+        mChain = new DspChain(gain, bass, treble, limiter);
+        mSine = Benchmarks.sine(Benchmarks.FRAMES * channels, channels);
+        mBlock = new float[mSine.length];
+    }
+
+    @Benchmark
+    public float[] process() {
+        System.arraycopy(mSine, 0, mBlock, 0, mSine.length);
+        mChain.process(mBlock, Benchmarks.FRAMES);
+        return mBlock;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *  FractionalResamplerBenchmark Cost of the drift compensation resampler
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class FractionalResamplerBenchmark {
+
+    @Param({"2", "4", "6", "8"})
+    public int channels;
+
+    /* 1 is the passthrough, the others a typical and the maximum drift */
+    @Param({"1.0", "1.0001", "0.999"})
+    public double ratio;
+
+    private FractionalResampler mResampler;
+    private float[] mIn;
+    private float[] mOut;
+
+    @Setup
+    public void setup() {
+        mResampler = new FractionalResampler(channels, Benchmarks.FRAMES);
+        mResampler.setRatio(ratio);
+        mIn = Benchmarks.sine(Benchmarks.FRAMES * channels, channels);
+        mOut = new float[mResampler.getMaxOutFrames(Benchmarks.FRAMES) * channels];
+    }
+
+    @Benchmark
+    public int process() {
+        return mResampler.process(mIn, Benchmarks.FRAMES, mOut, 0,
+                mResampler.getMaxOutFrames(Benchmarks.FRAMES));
+    }
+}
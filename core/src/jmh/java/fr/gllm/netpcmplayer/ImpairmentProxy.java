@@ -0,0 +1,217 @@
+/*
+ *  ImpairmentProxy TCP relay adding delay, jitter, reordering and stalls, for the load benchmarks
+ *  Copyright (c)   2017 Thomas Guillem <thomas@gllm.fr>
+ *                  All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Listens on the loopback and relays every connection to the target, from the sender to the
+ * receiver only. Each chunk read from a sender is released after the delay plus a uniform random
+ * jitter; a reordered chunk is held back longer. TCP delivers in order, so a held chunk delays
+ * the ones behind it: head of line blocking is how reordering shows through a stream. During a
+ * stall, nothing is released until the stall ends. The random draws are seeded, two runs of the
+ * same profile impair the same way.
+ */
+final class ImpairmentProxy implements Runnable {
+
+    private static final int sChunkBytes = 4096;
+
+    /* All durations in ms */
+    static final class Profile {
+        final int delayMs;
+        final int jitterMs;
+        final int reorderPercent;
+        final int reorderMs;
+        final int stallMs;
+        final int stallPeriodMs;
+
+        Profile(int delayMs, int jitterMs, int reorderPercent, int reorderMs, int stallMs,
+                int stallPeriodMs) {
+            this.delayMs = delayMs;
+            this.jitterMs = jitterMs;
+            this.reorderPercent = reorderPercent;
+            this.reorderMs = reorderMs;
+            this.stallMs = stallMs;
+            this.stallPeriodMs = stallPeriodMs;
+        }
+
+        /*
+         * "clean": relayed as is; "jitter": a Wi-Fi like jitter; "reorder": 2% of the chunks
+         * arrive 40 ms late; "stall": the network stops for 250 ms every second.
+         */
+        static Profile get(String name) {
+            switch (name) {
+                case "clean":
+                    return new Profile(0, 0, 0, 0, 0, 0);
+                case "jitter":
+                    return new Profile(5, 30, 0, 0, 0, 0);
+                case "reorder":
+                    return new Profile(5, 5, 2, 40, 0, 0);
+                case "stall":
+                    return new Profile(5, 5, 0, 0, 250, 1000);
+                default:
+                    throw new IllegalArgumentException("unknown impairment: " + name);
+            }
+        }
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final long releaseNs;
+
+        Chunk(byte[] data, int length, long releaseNs) {
+            this.data = data;
+            this.length = length;
+            this.releaseNs = releaseNs;
+        }
+    }
+
+    private final InetSocketAddress mTarget;
+    private final Profile mProfile;
+    private final long mSeed;
+    private final ServerSocket mServerSocket;
+    private final long mStartNs = System.nanoTime();
+    private final List<Socket> mSockets = new ArrayList<>();
+    private int mConnections = 0;
+
+    ImpairmentProxy(InetSocketAddress target, Profile profile, long seed) throws IOException {
+        mTarget = target;
+        mProfile = profile;
+        mSeed = seed;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+    }
+
+    /* Any thread: stop accepting and cut every relayed connection */
+    void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (mSockets) {
+            for (Socket socket : mSockets)
+                closeQuietly(socket);
+            mSockets.clear();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket from = mServerSocket.accept();
+                final Socket to = new Socket();
+                synchronized (mSockets) {
+                    mSockets.add(from);
+                    mSockets.add(to);
+                }
+                final long seed = mSeed + mConnections++;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        relay(from, to, new Random(seed));
+                    }
+                }, "ProxyRelay").start();
+            }
+        } catch (IOException ignored) {
+            /* closed */
+        }
+    }
+
+    /* Read from the sender, while a second thread releases the chunks to the receiver */
+    private void relay(final Socket from, final Socket to, Random random) {
+        final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        final Thread forwarder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                forward(to, queue);
+            }
+        }, "ProxyForwarder");
+        try {
+            to.setTcpNoDelay(true);
+            to.connect(mTarget);
+            forwarder.start();
+            final InputStream is = from.getInputStream();
+            long lastReleaseNs = 0;
+            while (true) {
+                final byte[] data = new byte[sChunkBytes];
+                final int read = is.read(data);
+                if (read == -1)
+                    break;
+                lastReleaseNs = Math.max(lastReleaseNs, getReleaseTime(System.nanoTime(), random));
+                queue.put(new Chunk(data, read, lastReleaseNs));
+            }
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            /* the end of the stream is released after the last chunk */
+            queue.add(new Chunk(null, -1, 0));
+            closeQuietly(from);
+        }
+    }
+
+    private long getReleaseTime(long arrivalNs, Random random) {
+        long delayMs = mProfile.delayMs;
+        if (mProfile.jitterMs > 0)
+            delayMs += random.nextInt(mProfile.jitterMs + 1);
+        if (mProfile.reorderPercent > 0 && random.nextInt(100) < mProfile.reorderPercent)
+            delayMs += mProfile.reorderMs;
+        long releaseNs = arrivalNs + delayMs * 1000000L;
+        if (mProfile.stallMs > 0) {
+            final long periodNs = mProfile.stallPeriodMs * 1000000L;
+            final long inPeriodNs = (releaseNs - mStartNs) % periodNs;
+            if (inPeriodNs < mProfile.stallMs * 1000000L)
+                releaseNs += mProfile.stallMs * 1000000L - inPeriodNs;
+        }
+        return releaseNs;
+    }
+
+    private void forward(Socket to, LinkedBlockingQueue<Chunk> queue) {
+        try {
+            final OutputStream os = to.getOutputStream();
+            while (true) {
+                final Chunk chunk = queue.take();
+                if (chunk.length == -1)
+                    break;
+                long left;
+                while ((left = chunk.releaseNs - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(this, left);
+                os.write(chunk.data, 0, chunk.length);
+            }
+            to.shutdownOutput();
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            closeQuietly(to);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  LoadSender    Headless sender of a PCM stream at its nominal rate, for the load benchmarks
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Sends a stream header, then PCM in bursts of burstMs of audio on an absolute schedule: a late
+ * burst doesn't shift the following ones, like a sender paced by its own sound card. The stream
+ * ends (FIN) after durationMs. Formats are named after their header and encoding:
+ *  - "pcm16", "float": a NPCM stream of 16 bits or float samples,
+ *  - "framed24", "framed16be": a NPCF stream of 24 bits or 16 bits big endian samples, a chunk
+ *    per burst.
+ */
+final class LoadSender implements Runnable {
+
+    private static final int sMagicNpcm = 0x4e50434d; /* "NPCM" */
+    private static final int sMagicNpcf = 0x4e504346; /* "NPCF" */
+
+    private final InetSocketAddress mAddress;
+    private final int mSampleRate;
+    private final int mChannelMask;
+    private final int mEncoding;
+    private final boolean mFramed;
+    private final int mBurstFrames;
+    private final long mBursts;
+    private volatile long mStartNs = 0;
+    private volatile boolean mQuit = false;
+    private volatile Socket mSocket = null;
+    private volatile IOException mError = null;
+
+    LoadSender(InetSocketAddress address, String format, int sampleRate, int channelMask,
+               int burstMs, int durationMs) {
+        mAddress = address;
+        mSampleRate = sampleRate;
+        mChannelMask = channelMask;
+        mEncoding = getEncoding(format);
+        mFramed = isFramed(format);
+        mBurstFrames = Math.max(1, sampleRate * burstMs / 1000);
+        mBursts = (long) sampleRate * durationMs / 1000 / mBurstFrames;
+    }
+
+    static int getEncoding(String format) {
+        switch (format) {
+            case "pcm16":
+                return PcmConverter.ENCODING_PCM_16BIT;
+            case "float":
+                return PcmConverter.ENCODING_PCM_FLOAT;
+            case "framed24":
+                return PcmConverter.ENCODING_PCM_24BIT;
+            case "framed16be":
+                return PcmConverter.ENCODING_PCM_16BIT_BE;
+            default:
+                throw new IllegalArgumentException("unknown format: " + format);
+        }
+    }
+
+    static boolean isFramed(String format) {
+        return format.startsWith("framed");
+    }
+
+    /* Local time at which frame left, the frames of a burst leave together; 0 before the start */
+    long getSendTimeNs(long frame) {
+        final long startNs = mStartNs;
+        if (startNs == 0)
+            return 0;
+        return startNs + frame / mBurstFrames * mBurstFrames * 1000000000L / mSampleRate;
+    }
+
+    /* Error that ended the stream early, null if none */
+    IOException getError() {
+        return mError;
+    }
+
+    /* Any thread: stop sending, run() returns shortly */
+    void quit() {
+        mQuit = true;
+        final Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        final Socket socket = new Socket();
+        mSocket = socket;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(mAddress);
+            final OutputStream os = socket.getOutputStream();
+            os.write(makeHeader());
+            final byte[] burst = makeBurst();
+            mStartNs = System.nanoTime();
+            for (long b = 0; b < mBursts && !mQuit; ++b) {
+                final long deadline = getSendTimeNs(b * mBurstFrames);
+                long left;
+                while ((left = deadline - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(this, left);
+                os.write(burst);
+            }
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            if (!mQuit)
+                mError = e;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private byte[] makeHeader() {
+        final byte[] header = new byte[16];
+        writeIntBE(header, 0, mFramed ? sMagicNpcf : sMagicNpcm);
+        writeIntBE(header, 4, mSampleRate);
+        writeIntBE(header, 8, mChannelMask);
+        writeIntBE(header, 12, mEncoding);
+        return header;
+    }
+
+    /* One burst of PCM, with its chunk headers if framed */
+    private byte[] makeBurst() {
+        final int channels = Integer.bitCount(mChannelMask);
+        final int frameSize = channels * PcmConverter.getBytesPerSample(mEncoding);
+        final int pcmBytes = mBurstFrames * frameSize;
+        final byte[] pcm = new byte[pcmBytes];
+        PcmConverter.fromFloat(mEncoding, Benchmarks.sine(mBurstFrames * channels, channels),
+                mBurstFrames * channels, pcm, 0);
+        if (!mFramed)
+            return pcm;
+        final int chunkBytes = FramedInputStream.MAX_CHUNK_SIZE / frameSize * frameSize;
+        final int chunks = (pcmBytes + chunkBytes - 1) / chunkBytes;
+        final byte[] burst = new byte[pcmBytes + chunks * 2];
+        int offset = 0;
+        for (int pos = 0; pos < pcmBytes; pos += chunkBytes) {
+            final int length = Math.min(chunkBytes, pcmBytes - pos);
+            offset += FramedInputStream.writeChunkHeader(length, burst, offset);
+            System.arraycopy(pcm, pos, burst, offset, length);
+            offset += length;
+        }
+        return burst;
+    }
+
+    private static void writeIntBE(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  LosslessDecoderBenchmark Cost of decoding NPCL frames
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class LosslessDecoderBenchmark {
+
+    /* s16, s24 packed */
+    @Param({"2", "258"})
+    public int encoding;
+
+    @Param({"2", "4", "6", "8"})
+    public int channels;
+
+    private LosslessDecoder mDecoder;
+    private ByteArrayInputStream mStream;
+
+    @Setup
+    public void setup() {
+        final int samples = Benchmarks.FRAMES * channels;
+        final byte[] pcm = new byte[samples * PcmConverter.getBytesPerSample(encoding)];
+        PcmConverter.fromFloat(encoding, Benchmarks.sine(samples, channels), samples, pcm, 0);
+        final LosslessEncoder encoder = new LosslessEncoder(encoding, channels);
+        final byte[] frame = new byte[encoder.getMaxFrameSize(Benchmarks.FRAMES)];
+        final int size = encoder.encode(pcm, 0, Benchmarks.FRAMES, frame, 0);
+        mStream = new ByteArrayInputStream(frame, 0, size);
+        mDecoder = new LosslessDecoder(encoding, channels);
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        /* the same frame again and again, rewinding doesn't allocate */
+        mStream.reset();
+        mDecoder.reset(mStream);
+        return mDecoder.decodeFrame();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  PcmConverterBenchmark Cost of the PCM <-> float conversions
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class PcmConverterBenchmark {
+
+    /* s16, s24 packed, float */
+    @Param({"2", "258", "4"})
+    public int encoding;
+
+    @Param({"2", "4", "6", "8"})
+    public int channels;
+
+    private byte[] mBytes;
+    private float[] mFloats;
+    private byte[] mBytes16;
+    private int mSeed = 1;
+
+    @Setup
+    public void setup() {
+        final int samples = Benchmarks.FRAMES * channels;
+        mFloats = Benchmarks.sine(samples, channels);
+        mBytes = new byte[samples * PcmConverter.getBytesPerSample(encoding)];
+        PcmConverter.fromFloat(encoding, mFloats, samples, mBytes, 0);
+        mBytes16 = new byte[samples * 2];
+    }
+
+    @Benchmark
+    public float[] toFloat() {
+        PcmConverter.toFloat(encoding, mBytes, 0, mFloats, Benchmarks.FRAMES * channels);
+        return mFloats;
+    }
+
+    @Benchmark
+    public byte[] fromFloat() {
+        PcmConverter.fromFloat(encoding, mFloats, Benchmarks.FRAMES * channels, mBytes, 0);
+        return mBytes;
+    }
+
+    @Benchmark
+    public byte[] fromFloatDithered() {
+        mSeed = PcmConverter.fromFloatDithered(mFloats, Benchmarks.FRAMES * channels, mBytes16, 0, mSeed);
+        return mBytes16;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ *  PcmRingBufferBenchmark Cost of a write and a read through the jitter ring
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/* Both sides run on the benchmark thread: this measures the copies and the atomics, not the waits */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class PcmRingBufferBenchmark {
+
+    @Param({"2", "4", "6", "8"})
+    public int channels;
+
+    private PcmRingBuffer mRing;
+    private byte[] mIn;
+    private byte[] mOut;
+
+    @Setup
+    public void setup() {
+        final int frameSize = channels * 2;
+        /* not a multiple of the block, so that copies wrap around */
+        mRing = new PcmRingBuffer(Benchmarks.FRAMES * frameSize * 3 + frameSize, frameSize);
+        mIn = new byte[Benchmarks.FRAMES * frameSize];
+        mOut = new byte[Benchmarks.FRAMES * frameSize];
+    }
+
+    @Benchmark
+    public int writeRead() {
+        mRing.write(mIn, 0, mIn.length);
+        return mRing.read(mOut, 0, mOut.length, 0);
+    }
+}
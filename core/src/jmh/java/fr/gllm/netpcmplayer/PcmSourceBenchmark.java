@@ -0,0 +1,80 @@
+/*
+ *  PcmSourceBenchmark Cost of one mixer input: ring, conversion, drift, resampling and mix
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The whole per source path of the AudioWriter loop, fed with one block per mixed block. The
+ * clock advances by the block duration, so the drift estimator runs at its real pace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class PcmSourceBenchmark {
+
+    @Param({"44100", "48000", "96000"})
+    public int sampleRate;
+
+    @Param({"2", "4", "6", "8"})
+    public int channels;
+
+    @Param({"2", "258"})
+    public int encoding;
+
+    private PcmSource mSource;
+    private byte[] mBlock;
+    private float[] mMix;
+    private long mNowNs;
+    private long mBlockNs;
+
+    @Setup
+    public void setup() {
+        final int frameSize = channels * PcmConverter.getBytesPerSample(encoding);
+        /* a 200ms jitter buffer kept half full */
+        mSource = new PcmSource(0, sampleRate / 5 * frameSize, sampleRate / 10, encoding,
+                channels, frameSize, sampleRate, Benchmarks.FRAMES, null, null);
+        mSource.tryAcquire("benchmark", false);
+        mBlock = new byte[Benchmarks.FRAMES * frameSize];
+        PcmConverter.fromFloat(encoding, Benchmarks.sine(Benchmarks.FRAMES * channels, channels),
+                Benchmarks.FRAMES * channels, mBlock, 0);
+        mMix = new float[Benchmarks.FRAMES * channels];
+        mBlockNs = Benchmarks.FRAMES * 1000000000L / sampleRate;
+
+        /* prebuffer up to the drift target */
+        final PcmRingBuffer ring = mSource.ring;
+        while (ring.getCapacity() - ring.getFill() >= mBlock.length &&
+                ring.getFill() < ring.getCapacity() / 2)
+            ring.write(mBlock, 0, mBlock.length);
+    }
+
+    @Benchmark
+    public boolean mix() {
+        final PcmRingBuffer ring = mSource.ring;
+        /* the ring write would block if the resampler consumed less than a block */
+        if (ring.getCapacity() - ring.getFill() >= mBlock.length)
+            ring.write(mBlock, 0, mBlock.length);
+        mNowNs += mBlockNs;
+        return mSource.mixInto(mMix, Benchmarks.FRAMES, mNowNs);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *  PolyphaseResamplerBenchmark Cost of the conversion to the native rate
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class PolyphaseResamplerBenchmark {
+
+    @Param({"2", "6", "8"})
+    public int channels;
+
+    /* to a 48 kHz device; 44101 doesn't fit a table and uses the nearest phase */
+    @Param({"44100", "44101", "96000", "8000"})
+    public int inRate;
+
+    private PolyphaseResampler.Filter mFilter;
+    private PolyphaseResampler mResampler;
+    private float[] mIn;
+    private float[] mOut;
+
+    @Setup
+    public void setup() {
+        mFilter = new PolyphaseResampler.Filter(inRate, 48000);
+        mResampler = new PolyphaseResampler(mFilter, channels, Benchmarks.FRAMES);
+        mIn = Benchmarks.sine(Benchmarks.FRAMES * channels, channels);
+        mOut = new float[mFilter.getMaxOutFrames(Benchmarks.FRAMES) * channels];
+    }
+
+    @Benchmark
+    public int process() {
+        return mResampler.process(mIn, Benchmarks.FRAMES, mOut, 0,
+                mFilter.getMaxOutFrames(Benchmarks.FRAMES));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  RtpReceiverBenchmark Cost of the RTP depacketizer, packets in order
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/* Two packets of FRAMES / 2 frames per invocation, the ring is drained by the benchmark thread */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class RtpReceiverBenchmark {
+
+    private static final int sPacketFrames = Benchmarks.FRAMES / 2;
+
+    @Param({"44100", "48000", "96000"})
+    public int sampleRate;
+
+    @Param({"2", "4", "6", "8"})
+    public int channels;
+
+    private RtpReceiver mReceiver;
+    private PcmRingBuffer mRing;
+    private byte[] mPacket;
+    private byte[] mOut;
+    private int mSeq = 0;
+    private long mTimestamp = 0;
+    private long mNowNs = 0;
+
+    @Setup
+    public void setup() {
+        final int frameSize = channels * 2;
+        mRing = new PcmRingBuffer(Benchmarks.FRAMES * frameSize * 2, frameSize);
+        mReceiver = new RtpReceiver(PcmConverter.ENCODING_PCM_16BIT, channels, sampleRate);
+        mReceiver.reset(mRing);
+        mPacket = new byte[12 + sPacketFrames * frameSize];
+        mPacket[0] = (byte) 0x80;
+        mPacket[1] = 96;
+        PcmConverter.fromFloat(PcmConverter.ENCODING_PCM_16BIT_BE,
+                Benchmarks.sine(sPacketFrames * channels, channels), sPacketFrames * channels,
+                mPacket, 12);
+        mOut = new byte[Benchmarks.FRAMES * frameSize];
+    }
+
+    private void push() {
+        mPacket[2] = (byte) (mSeq >> 8);
+        mPacket[3] = (byte) mSeq;
+        mPacket[4] = (byte) (mTimestamp >> 24);
+        mPacket[5] = (byte) (mTimestamp >> 16);
+        mPacket[6] = (byte) (mTimestamp >> 8);
+        mPacket[7] = (byte) mTimestamp;
+        mReceiver.push(mPacket, mPacket.length, mNowNs);
+        mSeq = (mSeq + 1) & 0xffff;
+        mTimestamp = (mTimestamp + sPacketFrames) & 0xffffffffL;
+    }
+
+    @Benchmark
+    public int depacketize() {
+        mNowNs += Benchmarks.FRAMES * 1000000000L / sampleRate;
+        push();
+        push();
+        return mRing.read(mOut, 0, mOut.length, 0);
+    }
+}
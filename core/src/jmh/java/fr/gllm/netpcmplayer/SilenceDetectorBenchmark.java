@@ -0,0 +1,59 @@
+/*
+ *  SilenceDetectorBenchmark Cost of the silence scan of the producer, on silence and on sound
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/* Silence is scanned in full, sound stops at its first word: the worst and the usual case */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.FRAMES)
+public class SilenceDetectorBenchmark {
+
+    @Param({"2", "8"})
+    public int channels;
+
+    @Param({"true", "false"})
+    public boolean silent;
+
+    private SilenceDetector mDetector;
+    private byte[] mBlock;
+
+    @Setup
+    public void setup() {
+        final int frameSize = channels * 2;
+        mDetector = new SilenceDetector(PcmConverter.ENCODING_PCM_16BIT, frameSize);
+        mBlock = new byte[Benchmarks.FRAMES * frameSize];
+        if (!silent)
+            PcmConverter.fromFloat(PcmConverter.ENCODING_PCM_16BIT,
+                    Benchmarks.sine(Benchmarks.FRAMES * channels, channels),
+                    Benchmarks.FRAMES * channels, mBlock, 0);
+    }
+
+    @Benchmark
+    public long scan() {
+        /* an odd offset, like a read that ended on a partial frame */
+        mDetector.scan(mBlock, 1, mBlock.length - 1);
+        return mDetector.getSilentFrames();
+    }
+}
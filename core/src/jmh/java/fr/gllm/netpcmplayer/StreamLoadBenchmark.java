@@ -0,0 +1,286 @@
+/*
+ *  StreamLoadBenchmark Receive path under load: senders, impaired network, readers and mixer
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A whole session per invocation, in real time over the loopback: each LoadSender streams
+ * through the ImpairmentProxy to a reader thread running the StreamReader loop of the service,
+ * into a PcmSource. The benchmark thread is the AudioWriter with a fake AudioTrack: it mixes a
+ * block every block duration, and the DSP and the track write are left out. The time score is
+ * the session length; the counters are what matters:
+ *  - underruns: gaps concealed by the sources,
+ *  - lateBlocks: blocks the fake sink itself mixed more than a block late (an overloaded host),
+ *  - latencyMeanUs, latencyMaxUs: from the send of a frame to its leaving the ring,
+ *  - receivedBytesPerSec: PCM bytes stored into the rings, over all the senders,
+ *  - failedSessions: streams that ended early or that the sink could not finish in time.
+ * ./gradlew :core:jmh -Pjmh.include=StreamLoad, parameters can be narrowed with -p.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamLoadBenchmark {
+
+    private static final int sMixRate = 48000;
+    private static final int sBlockFrames = 256;
+    private static final int sSessionMs = 2000;
+    private static final int sRingMs = 200;
+    private static final int sReadOnceBytes = 4096;
+    private static final int sHeaderTimeoutMs = 2000;
+    private static final int sPollMs = 100;
+    private static final long sSeed = 0x4e50434d;
+
+    @Param({"1", "4"})
+    public int senders;
+
+    @Param({"pcm16", "framed24"})
+    public String format;
+
+    @Param({"44100"})
+    public int sampleRate;
+
+    @Param({"5", "40"})
+    public int burstMs;
+
+    @Param({"clean", "jitter", "reorder", "stall"})
+    public String impairment;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long underruns;
+        public long lateBlocks;
+        public long latencyMeanUs;
+        public long latencyMaxUs;
+        public long receivedBytesPerSec;
+        public long failedSessions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            underruns = lateBlocks = latencyMeanUs = latencyMaxUs = receivedBytesPerSec = 0;
+            failedSessions = 0;
+        }
+    }
+
+    private ServerSocket mServerSocket;
+    private ImpairmentProxy mProxy;
+    private Thread mProxyThread;
+    private PcmSource[] mSources;
+    private int mFrameSize;
+    private float[] mMix;
+
+    /* per session */
+    private LoadSender[] mSenders;
+    private Thread[] mThreads;
+    private AtomicLongArray mReceived;
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final int encoding = LoadSender.getEncoding(format);
+        mFrameSize = 2 * PcmConverter.getBytesPerSample(encoding);
+        final PolyphaseResampler.Filter filter = sampleRate != sMixRate ?
+                new PolyphaseResampler.Filter(sampleRate, sMixRate) : null;
+        final int maxInFrames = filter != null ? filter.getInFrames(sBlockFrames) : sBlockFrames;
+        mSources = new PcmSource[senders];
+        for (int i = 0; i < senders; ++i)
+            mSources[i] = new PcmSource(i, sampleRate * sRingMs / 1000 * mFrameSize,
+                    sampleRate * sRingMs / 2000, encoding, 2, mFrameSize, sampleRate, maxInFrames,
+                    null, filter);
+        mMix = new float[sBlockFrames * 2];
+
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mServerSocket.setSoTimeout(sHeaderTimeoutMs);
+        mProxy = new ImpairmentProxy(new InetSocketAddress(mServerSocket.getInetAddress(),
+                mServerSocket.getLocalPort()), ImpairmentProxy.Profile.get(impairment), sSeed);
+        mProxyThread = new Thread(mProxy, "ImpairmentProxy");
+        mProxyThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mProxy.close();
+        mProxyThread.join();
+        mServerSocket.close();
+    }
+
+    @Benchmark
+    public void session(Counters counters) throws IOException, InterruptedException {
+        mSenders = new LoadSender[senders];
+        mThreads = new Thread[senders * 2];
+        mReceived = new AtomicLongArray(senders);
+        mFailed.set(0);
+        /* connect one sender at a time, so that the reader i reads the sender i */
+        for (int i = 0; i < senders; ++i) {
+            mSenders[i] = new LoadSender(mProxy.getAddress(), format, sampleRate,
+                    ChannelRouter.MASK_STEREO, burstMs, sSessionMs);
+            mThreads[2 * i] = new Thread(mSenders[i], "LoadSender");
+            mThreads[2 * i].start();
+            final Socket socket = mServerSocket.accept();
+            final int index = i;
+            mThreads[2 * i + 1] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read(socket, index);
+                }
+            }, "StreamReader");
+            mThreads[2 * i + 1].start();
+        }
+
+        final long startNs = System.nanoTime();
+        sink(counters, startNs + 2L * sSessionMs * 1000000L);
+        final long endNs = System.nanoTime();
+
+        for (LoadSender sender : mSenders)
+            sender.quit();
+        for (PcmSource source : mSources)
+            source.ring.close();
+        for (Thread thread : mThreads)
+            thread.join();
+        for (PcmSource source : mSources) {
+            /* a source the sink could not end is released here */
+            if (source.isActive() && !source.isEnded()) {
+                source.release();
+                mFailed.incrementAndGet();
+            }
+        }
+        long received = 0;
+        for (int i = 0; i < senders; ++i) {
+            received += mReceived.get(i);
+            if (mSenders[i].getError() != null)
+                mFailed.incrementAndGet();
+        }
+        counters.receivedBytesPerSec += received * 1000000000L / (endNs - startNs);
+        counters.failedSessions += mFailed.get();
+    }
+
+    /* Reader thread i: the part of Main.serverPlay() that a PCM session goes through */
+    private void read(Socket socket, final int index) {
+        final PcmSource source = mSources[index];
+        boolean acquired = false;
+        try {
+            socket.setSoTimeout(sHeaderTimeoutMs);
+            final PushbackInputStream is = new PushbackInputStream(socket.getInputStream(),
+                    StreamHeader.MAGIC_SIZE);
+            final StreamHeader header = StreamHeader.read(is);
+            if (header == null || header.encoding != LoadSender.getEncoding(format))
+                throw new ProtocolException("unexpected stream header: " + header);
+            if (!source.tryAcquire("load " + index, false))
+                throw new IllegalStateException("source " + index + " still in use");
+            acquired = true;
+            socket.setSoTimeout(sPollMs);
+            final LivenessMonitor liveness = new LivenessMonitor((long) sampleRate * mFrameSize);
+            liveness.reset(System.nanoTime());
+            final int result = StreamReader.run(header.codec == StreamHeader.CODEC_FRAMED ?
+                            new FramedInputStream(is, liveness) : is, source.ring, source,
+                    liveness, sReadOnceBytes, null, new StreamReader.Listener() {
+                        @Override
+                        public void onRead(int bytes, long jitterNs) {
+                            mReceived.addAndGet(index, bytes);
+                        }
+                    });
+            if (result != StreamReader.END_OF_STREAM)
+                mFailed.incrementAndGet();
+        } catch (IOException e) {
+            mFailed.incrementAndGet();
+            if (acquired)
+                source.ring.close();
+        } finally {
+            /* the sink plays what is left and ends the source */
+            if (acquired)
+                source.release();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /* The AudioWriter loop, paced by the clock instead of a blocking AudioTrack write */
+    private void sink(Counters counters, long deadlineNs) {
+        final long blockNs = sBlockFrames * 1000000000L / sMixRate;
+        final long[] underruns = new long[senders];
+        long latencySumNs = 0;
+        long latencyCount = 0;
+        long latencyMaxNs = 0;
+        int ended = 0;
+        long nextNs = System.nanoTime();
+        while (ended < senders) {
+            final long now = System.nanoTime();
+            if (now >= deadlineNs)
+                break;
+            Arrays.fill(mMix, 0f);
+            for (int i = 0; i < senders; ++i) {
+                final PcmSource source = mSources[i];
+                if (!source.isActive() || source.isEnded())
+                    continue;
+                if (source.isPlaying()) {
+                    final long sentNs = mSenders[i].getSendTimeNs(
+                            (mReceived.get(i) - source.ring.getFill()) / mFrameSize);
+                    if (sentNs != 0) {
+                        final long latencyNs = now - sentNs;
+                        latencySumNs += latencyNs;
+                        latencyCount++;
+                        latencyMaxNs = Math.max(latencyMaxNs, latencyNs);
+                    }
+                }
+                source.mixInto(mMix, sBlockFrames, now);
+                underruns[i] = source.getUnderrunCount();
+                if (source.isEnded()) {
+                    source.release();
+                    ended++;
+                }
+            }
+            PcmConverter.saturate(mMix, mMix.length);
+
+            nextNs += blockNs;
+            final long left = nextNs - System.nanoTime();
+            if (left > 0)
+                LockSupport.parkNanos(this, left);
+            else if (-left > blockNs) {
+                /* like an AudioTrack underrun: the lost time is not caught up */
+                counters.lateBlocks++;
+                nextNs = System.nanoTime();
+            }
+        }
+        for (long count : underruns)
+            counters.underruns += count;
+        if (latencyCount > 0) {
+            counters.latencyMeanUs += latencySumNs / latencyCount / 1000;
+            counters.latencyMaxUs = Math.max(counters.latencyMaxUs, latencyMaxNs / 1000);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  BiquadStage   Second order IIR equalizer band
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Coefficients from the RBJ audio EQ cookbook, computed by the thread setting the band and
+ * published as an immutable array; the filter runs in transposed direct form II with one state
+ * per channel, in double so that low bands stay stable. A flat band is bypassed.
+ */
+final class BiquadStage implements DspStage {
+
+    static final int LOW_SHELF = 0;
+    static final int HIGH_SHELF = 1;
+    static final int PEAKING = 2;
+
+    /* below, the states are flushed to 0 so that a long silence doesn't end in denormals */
+    private static final double sDenormal = 1e-20;
+
+    private final String mName;
+    private final int mChannels;
+    private final int mSampleRate;
+    /* b0, b1, b2, a1, a2 normalized by a0; null when flat */
+    private volatile double[] mCoefs = null;
+    /* processing thread only */
+    private double[] mCurrentCoefs = null;
+    private final double[] mZ1;
+    private final double[] mZ2;
+
+    BiquadStage(String name, int channels, int sampleRate) {
+        mName = name;
+        mChannels = channels;
+        mSampleRate = sampleRate;
+        mZ1 = new double[channels];
+        mZ2 = new double[channels];
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /* Any thread: q is the shelf slope or the peak quality factor */
+    void setBand(int type, double frequency, double gainDb, double q) {
+        if (gainDb == 0 || frequency <= 0 || frequency >= mSampleRate / 2.0 || q <= 0) {
+            mCoefs = null;
+            return;
+        }
+        final double a = Math.pow(10, gainDb / 40);
+        final double w0 = 2 * Math.PI * frequency / mSampleRate;
+        final double cos = Math.cos(w0);
+        final double sin = Math.sin(w0);
+        final double b0, b1, b2, a0, a1, a2;
+        if (type == PEAKING) {
+            final double alpha = sin / (2 * q);
+            b0 = 1 + alpha * a;
+            b1 = -2 * cos;
+            b2 = 1 - alpha * a;
+            a0 = 1 + alpha / a;
+            a1 = -2 * cos;
+            a2 = 1 - alpha / a;
+        } else {
+            final double alpha = sin / 2 * Math.sqrt((a + 1 / a) * (1 / q - 1) + 2);
+            final double sqrtA2 = 2 * Math.sqrt(a) * alpha;
+            final double sign = type == LOW_SHELF ? 1 : -1;
+            b0 = a * ((a + 1) - sign * (a - 1) * cos + sqrtA2);
+            b1 = sign * 2 * a * ((a - 1) - sign * (a + 1) * cos);
+            b2 = a * ((a + 1) - sign * (a - 1) * cos - sqrtA2);
+            a0 = (a + 1) + sign * (a - 1) * cos + sqrtA2;
+            a1 = -sign * 2 * ((a - 1) + sign * (a + 1) * cos);
+            a2 = (a + 1) + sign * (a - 1) * cos - sqrtA2;
+        }
+        mCoefs = new double[] { b0 / a0, b1 / a0, b2 / a0, a1 / a0, a2 / a0 };
+    }
+
+    @Override
+    public void process(float[] block, int frames) {
+        final double[] coefs = mCoefs;
+        if (coefs != mCurrentCoefs) {
+            /* the state of a bypassed band is stale */
+            if (mCurrentCoefs == null)
+                reset();
+            mCurrentCoefs = coefs;
+        }
+        if (coefs == null)
+            return;
+        final double b0 = coefs[0], b1 = coefs[1], b2 = coefs[2], a1 = coefs[3], a2 = coefs[4];
+        final int count = frames * mChannels;
+        for (int c = 0; c < mChannels; ++c) {
+            double z1 = mZ1[c];
+            double z2 = mZ2[c];
+            for (int i = c; i < count; i += mChannels) {
+                final double x = block[i];
+                final double y = b0 * x + z1;
+                z1 = b1 * x - a1 * y + z2;
+                z2 = b2 * x - a2 * y;
+                block[i] = (float) y;
+            }
+            mZ1[c] = Math.abs(z1) < sDenormal ? 0 : z1;
+            mZ2[c] = Math.abs(z2) < sDenormal ? 0 : z2;
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int c = 0; c < mChannels; ++c)
+            mZ1[c] = mZ2[c] = 0;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  ChannelRouter Matrix remapping and downmixing interleaved float channels
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Channels are identified by their AudioFormat CHANNEL_OUT_* position bit; in a channel mask, they
+ * are interleaved in the order of their bits, except mono which is centered. An input position
+ * that the output has is copied to it, whatever their order. A missing one is folded into its
+ * neighbours at -3 dB (ITU-R BS.775 like: the center to the left and right, a surround to the
+ * other surround of its side, else to the front), the left and right into the center; the LFE
+ * is dropped. The matrix is then scaled down so that no output can clip, and only its non zero
+ * coefficients are kept. It is immutable: every source shares it.
+ */
+final class ChannelRouter {
+
+    static final int FRONT_LEFT = 0x4;
+    static final int FRONT_RIGHT = 0x8;
+    static final int FRONT_CENTER = 0x10;
+    static final int LOW_FREQUENCY = 0x20;
+    static final int BACK_LEFT = 0x40;
+    static final int BACK_RIGHT = 0x80;
+    static final int FRONT_LEFT_OF_CENTER = 0x100;
+    static final int FRONT_RIGHT_OF_CENTER = 0x200;
+    static final int BACK_CENTER = 0x400;
+    static final int SIDE_LEFT = 0x800;
+    static final int SIDE_RIGHT = 0x1000;
+
+    static final int MASK_MONO = FRONT_LEFT;
+    static final int MASK_STEREO = FRONT_LEFT | FRONT_RIGHT;
+    static final int MASK_QUAD = MASK_STEREO | BACK_LEFT | BACK_RIGHT;
+    static final int MASK_5POINT1 = MASK_QUAD | FRONT_CENTER | LOW_FREQUENCY;
+    static final int MASK_7POINT1 = MASK_5POINT1 | SIDE_LEFT | SIDE_RIGHT;
+
+    private static final float sMinus3dB = 0.70710678f;
+    private static final int sMaxDepth = 4;
+
+    private final int mInChannels;
+    private final int mOutChannels;
+    /* for each output channel: its terms are mFirst[out] to mFirst[out + 1] - 1 */
+    private final int[] mFirst;
+    private final int[] mInIndex;
+    private final float[] mGains;
+
+    /*
+     * inPositions and outPositions give the position bit of each interleaved channel, so that any
+     * order can be remapped.
+     */
+    ChannelRouter(int[] inPositions, int[] outPositions) {
+        if (inPositions.length == 0 || outPositions.length == 0)
+            throw new IllegalArgumentException("no channels");
+        mInChannels = inPositions.length;
+        mOutChannels = outPositions.length;
+        int outMask = 0;
+        for (int position : outPositions)
+            outMask |= position;
+
+        final float[] matrix = new float[mOutChannels * mInChannels];
+        for (int in = 0; in < mInChannels; ++in)
+            fold(matrix, in, inPositions[in], 1f, outMask, outPositions, 0);
+
+        /* the loudest output takes at most a full scale input */
+        float maxSum = 1f;
+        for (int out = 0; out < mOutChannels; ++out) {
+            float sum = 0f;
+            for (int in = 0; in < mInChannels; ++in)
+                sum += matrix[out * mInChannels + in];
+            maxSum = Math.max(maxSum, sum);
+        }
+
+        int terms = 0;
+        for (float gain : matrix)
+            if (gain != 0f)
+                terms++;
+        mFirst = new int[mOutChannels + 1];
+        mInIndex = new int[terms];
+        mGains = new float[terms];
+        int term = 0;
+        for (int out = 0; out < mOutChannels; ++out) {
+            mFirst[out] = term;
+            for (int in = 0; in < mInChannels; ++in) {
+                final float gain = matrix[out * mInChannels + in];
+                if (gain != 0f) {
+                    mInIndex[term] = in;
+                    mGains[term++] = gain / maxSum;
+                }
+            }
+        }
+        mFirst[mOutChannels] = term;
+    }
+
+    /* Route between two AudioFormat channel masks, null if there is nothing to do */
+    static ChannelRouter forMasks(int inMask, int outMask) {
+        if (inMask == outMask)
+            return null;
+        return new ChannelRouter(getPositions(inMask), getPositions(outMask));
+    }
+
+    private static int[] getPositions(int mask) {
+        if (mask == MASK_MONO)
+            return new int[] { FRONT_CENTER };
+        final int[] positions = new int[Integer.bitCount(mask)];
+        for (int i = 0; i < positions.length; ++i) {
+            positions[i] = Integer.lowestOneBit(mask);
+            mask &= mask - 1;
+        }
+        return positions;
+    }
+
+    /*
+     * Pick the output mask for inMask among the ones the device supports: inMask itself, or the
+     * one keeping the most of its channels, then the smallest. An empty list means any mask.
+     */
+    static int pickOutputMask(int inMask, int[] supportedMasks) {
+        if (supportedMasks == null || supportedMasks.length == 0)
+            return inMask;
+        int best = 0;
+        for (int mask : supportedMasks) {
+            if (mask == inMask)
+                return inMask;
+            if (mask == 0 || Integer.bitCount(mask) > 8)
+                continue;
+            final int kept = Integer.bitCount(mask & inMask);
+            final int bestKept = Integer.bitCount(best & inMask);
+            if (best == 0 || kept > bestKept ||
+                    (kept == bestKept && Integer.bitCount(mask) < Integer.bitCount(best)))
+                best = mask;
+        }
+        return best != 0 ? best : MASK_STEREO;
+    }
+
+    /* Add gain from input channel in at position to the matrix, folded if the output lacks it */
+    private static void fold(float[] matrix, int in, int position, float gain, int outMask,
+                             int[] outPositions, int depth) {
+        if ((outMask & position) != 0) {
+            for (int out = 0; out < outPositions.length; ++out)
+                if (outPositions[out] == position)
+                    matrix[out * (matrix.length / outPositions.length) + in] += gain;
+            return;
+        }
+        if (depth == sMaxDepth)
+            return;
+        final int next = depth + 1;
+        switch (position) {
+            case FRONT_LEFT:
+            case FRONT_RIGHT:
+                fold(matrix, in, FRONT_CENTER, gain, outMask, outPositions, next);
+                break;
+            case FRONT_CENTER:
+                if ((outMask & MASK_STEREO) == MASK_STEREO) {
+                    fold(matrix, in, FRONT_LEFT, gain * sMinus3dB, outMask, outPositions, next);
+                    fold(matrix, in, FRONT_RIGHT, gain * sMinus3dB, outMask, outPositions, next);
+                } else
+                    fold(matrix, in, FRONT_LEFT, gain, outMask, outPositions, next);
+                break;
+            case LOW_FREQUENCY:
+                break;
+            case FRONT_LEFT_OF_CENTER:
+                fold(matrix, in, FRONT_LEFT, gain, outMask, outPositions, next);
+                break;
+            case FRONT_RIGHT_OF_CENTER:
+                fold(matrix, in, FRONT_RIGHT, gain, outMask, outPositions, next);
+                break;
+            case BACK_LEFT:
+                fold(matrix, in, (outMask & SIDE_LEFT) != 0 ? SIDE_LEFT : FRONT_LEFT,
+                        gain * sMinus3dB, outMask, outPositions, next);
+                break;
+            case BACK_RIGHT:
+                fold(matrix, in, (outMask & SIDE_RIGHT) != 0 ? SIDE_RIGHT : FRONT_RIGHT,
+                        gain * sMinus3dB, outMask, outPositions, next);
+                break;
+            case SIDE_LEFT:
+                fold(matrix, in, (outMask & BACK_LEFT) != 0 ? BACK_LEFT : FRONT_LEFT,
+                        gain * sMinus3dB, outMask, outPositions, next);
+                break;
+            case SIDE_RIGHT:
+                fold(matrix, in, (outMask & BACK_RIGHT) != 0 ? BACK_RIGHT : FRONT_RIGHT,
+                        gain * sMinus3dB, outMask, outPositions, next);
+                break;
+            case BACK_CENTER:
+                fold(matrix, in, BACK_LEFT, gain * sMinus3dB, outMask, outPositions, next);
+                fold(matrix, in, BACK_RIGHT, gain * sMinus3dB, outMask, outPositions, next);
+                break;
+            default:
+                break;
+        }
+    }
+
+    int getInChannels() {
+        return mInChannels;
+    }
+
+    int getOutChannels() {
+        return mOutChannels;
+    }
+
+    /* Route frames from in to out, both interleaved and starting at their first sample */
+    void process(float[] in, int frames, float[] out) {
+        final int inChannels = mInChannels;
+        final int outChannels = mOutChannels;
+        final int[] first = mFirst;
+        final int[] inIndex = mInIndex;
+        final float[] gains = mGains;
+        int inBase = 0;
+        int o = 0;
+        for (int f = 0; f < frames; ++f, inBase += inChannels) {
+            for (int c = 0; c < outChannels; ++c) {
+                float acc = 0f;
+                for (int t = first[c]; t < first[c + 1]; ++t)
+                    acc += in[inBase + inIndex[t]] * gains[t];
+                out[o++] = acc;
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  ClockSync     NTP like offset between the sender clock and the local one
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * The receiver sends a request with its time t0 to the UDP clock port of the sender, which
+ * answers with the time it received it (t1) and sent the answer (t2), in its own clock; the
+ * receiver gets it at t3. All fields are big endian:
+ *  0: "NPCK", 4: sequence number, 8: t0, 16: t1, 24: t2 (the request is PACKET_SIZE bytes too)
+ * offset = ((t1 - t0) + (t2 - t3)) / 2 is the sender time minus the local time, exact when both
+ * ways take as long. The offset of the exchange with the shortest round trip among the last ones
+ * is kept: it is the one the least skewed by queuing. Times are in ns, the local clock is
+ * System.nanoTime(), the clock of the AudioTrack timestamps.
+ * Only one thread exchanges packets, the offset can be read from any thread.
+ */
+final class ClockSync {
+
+    static final int PACKET_SIZE = 32;
+    private static final int sMagic = 0x4e50434b; /* "NPCK" */
+    private static final int sWindow = 8;
+
+    private final long[] mOffsets = new long[sWindow];
+    private final long[] mRoundTrips = new long[sWindow];
+    private int mSamples = 0;
+    private int mSequence = 0;
+    private long mLastT0 = 0;
+
+    private volatile boolean mSynced = false;
+    private volatile long mOffsetNs = 0;
+    private volatile long mRoundTripNs = 0;
+
+    /* Exchanging thread: fill out with the next request, returns its size */
+    int writeRequest(byte[] out, long t0) {
+        mLastT0 = t0;
+        writeIntBE(out, 0, sMagic);
+        writeIntBE(out, 4, ++mSequence);
+        writeLongBE(out, 8, t0);
+        writeLongBE(out, 16, 0);
+        writeLongBE(out, 24, 0);
+        return PACKET_SIZE;
+    }
+
+    /*
+     * Exchanging thread: account for an answer received at t3. Returns false if it is not the
+     * answer of the last request (stale, duplicated or invalid).
+     */
+    boolean onResponse(byte[] packet, int length, long t3) {
+        if (length < PACKET_SIZE || readIntBE(packet, 0) != sMagic ||
+                readIntBE(packet, 4) != mSequence || readLongBE(packet, 8) != mLastT0)
+            return false;
+        final long t0 = mLastT0;
+        final long t1 = readLongBE(packet, 16);
+        final long t2 = readLongBE(packet, 24);
+        final long roundTrip = (t3 - t0) - (t2 - t1);
+        if (roundTrip < 0 || t2 < t1)
+            return false;
+        /* answered once */
+        mLastT0 = 0;
+
+        final int slot = mSamples++ % sWindow;
+        mOffsets[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+        mRoundTrips[slot] = roundTrip;
+        int best = 0;
+        final int count = Math.min(mSamples, sWindow);
+        for (int i = 1; i < count; ++i)
+            if (mRoundTrips[i] < mRoundTrips[best])
+                best = i;
+        mRoundTripNs = mRoundTrips[best];
+        mOffsetNs = mOffsets[best];
+        mSynced = true;
+        return true;
+    }
+
+    /*
+     * Sender side: turn a request received at t1 into its answer in place, t2 is the time it is
+     * sent. Returns the size of the answer, -1 if the packet is not a request.
+     */
+    static int writeResponse(byte[] packet, int length, long t1, long t2) {
+        if (length < PACKET_SIZE || readIntBE(packet, 0) != sMagic)
+            return -1;
+        writeLongBE(packet, 16, t1);
+        writeLongBE(packet, 24, t2);
+        return PACKET_SIZE;
+    }
+
+    boolean isSynced() {
+        return mSynced;
+    }
+
+    /* Sender time minus local time */
+    long getOffsetNs() {
+        return mOffsetNs;
+    }
+
+    /* Round trip of the exchange the offset comes from, bounds its error */
+    long getRoundTripNs() {
+        return mRoundTripNs;
+    }
+
+    private static int readIntBE(byte[] b, int offset) {
+        return (b[offset] << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) |
+                (b[offset + 3] & 0xff);
+    }
+
+    private static long readLongBE(byte[] b, int offset) {
+        return ((long) readIntBE(b, offset) << 32) | (readIntBE(b, offset + 4) & 0xffffffffL);
+    }
+
+    private static void writeIntBE(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static void writeLongBE(byte[] b, int offset, long value) {
+        writeIntBE(b, offset, (int) (value >> 32));
+        writeIntBE(b, offset + 4, (int) value);
+    }
+}
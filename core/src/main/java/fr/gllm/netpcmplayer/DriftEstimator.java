@@ -0,0 +1,93 @@
+/*
+ *  DriftEstimator  Sender/receiver clock drift estimation from the buffer fill
+ *  Copyright (c)   2017 Thomas Guillem <thomas@gllm.fr>
+ *                  All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * The network jitter is filtered out by a one second moving average of the fill, then a slow
+ * PI loop turns the fill error (in seconds) into a resampling ratio: the integral part converges
+ * to the clock drift, the proportional part brings the fill back to the target in about 30s.
+ */
+final class DriftEstimator {
+
+    private static final double sFilterTimeConstantS = 1.0;
+    private static final double sKp = 1.0 / 30.0;
+    private static final double sKi = sKp * sKp / 4.0;
+    private static final double sMaxCorrection = 0.001;
+    private static final long sUpdatePeriodNs = 250000000L;
+
+    private final int mSampleRate;
+    private final int mTargetFillInFrames;
+    private double mAvgFill;
+    private double mIntegral;
+    private double mRatio;
+    private long mLastNs;
+    private long mLastUpdateNs;
+
+    DriftEstimator(int sampleRate, int targetFillInFrames) {
+        mSampleRate = sampleRate;
+        mTargetFillInFrames = targetFillInFrames;
+        reset();
+    }
+
+    void reset() {
+        mAvgFill = mTargetFillInFrames;
+        mIntegral = 0;
+        mRatio = 1.0;
+        mLastNs = mLastUpdateNs = 0;
+    }
+
+    /* Forget the time of the last update, not the drift: the next update only starts a period */
+    void restartClock() {
+        mLastNs = mLastUpdateNs = 0;
+    }
+
+    int getTargetFill() {
+        return mTargetFillInFrames;
+    }
+
+    /* Input frames consumed per output frame, > 1 when the sender runs faster than the DAC */
+    double getRatio() {
+        return mRatio;
+    }
+
+    /* Estimated sender clock drift relative to the DAC, in ppm */
+    double getDriftPpm() {
+        return mIntegral * 1e6;
+    }
+
+    /* Filtered fill, in frames */
+    int getAverageFill() {
+        return (int) mAvgFill;
+    }
+
+    double update(long nowNs, int fillInFrames) {
+        if (mLastNs == 0) {
+            mLastNs = mLastUpdateNs = nowNs;
+            return mRatio;
+        }
+        final double dt = (nowNs - mLastNs) / 1e9;
+        mLastNs = nowNs;
+        mAvgFill += (fillInFrames - mAvgFill) * Math.min(dt / sFilterTimeConstantS, 1.0);
+
+        if (nowNs - mLastUpdateNs < sUpdatePeriodNs)
+            return mRatio;
+        final double period = (nowNs - mLastUpdateNs) / 1e9;
+        mLastUpdateNs = nowNs;
+
+        final double error = (mAvgFill - mTargetFillInFrames) / mSampleRate;
+        mIntegral += sKi * error * period;
+        mIntegral = Math.max(-sMaxCorrection, Math.min(sMaxCorrection, mIntegral));
+        final double correction = mIntegral + sKp * error;
+        mRatio = 1.0 + Math.max(-sMaxCorrection, Math.min(sMaxCorrection, correction));
+        return mRatio;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *  DspChain      Ordered DSP stages with their processing time
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * The chain is built once with its stages, then run by the AudioWriter thread on each block.
+ * The time spent in each stage is accumulated with two System.nanoTime() per stage and block,
+ * readable from any thread.
+ */
+final class DspChain {
+
+    private final DspStage[] mStages;
+    /* only written by the processing thread */
+    private final AtomicLongArray mStageNs;
+
+    DspChain(DspStage... stages) {
+        mStages = stages.clone();
+        mStageNs = new AtomicLongArray(stages.length);
+    }
+
+    int getStageCount() {
+        return mStages.length;
+    }
+
+    String getStageName(int stage) {
+        return mStages[stage].getName();
+    }
+
+    /* Time spent processing in a stage since the chain was created */
+    long getStageNs(int stage) {
+        return mStageNs.get(stage);
+    }
+
+    void process(float[] block, int frames) {
+        long start = System.nanoTime();
+        for (int i = 0; i < mStages.length; ++i) {
+            mStages[i].process(block, frames);
+            final long end = System.nanoTime();
+            mStageNs.lazySet(i, mStageNs.get(i) + end - start);
+            start = end;
+        }
+    }
+
+    void reset() {
+        for (DspStage stage : mStages)
+            stage.reset();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *  DspStage      Processing stage of the mixed blocks
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * A stage works in place on interleaved float frames, at the rate and with the channels of the
+ * AudioTrack. process() and reset() are only called by the AudioWriter thread, on every block:
+ * they must not allocate, block nor lock. Parameters are set from any thread and picked up on
+ * the next block.
+ */
+interface DspStage {
+
+    String getName();
+
+    /* Process frames of block, starting at its first sample */
+    void process(float[] block, int frames);
+
+    /* Forget the past blocks, the next one doesn't follow them */
+    void reset();
+}
@@ -0,0 +1,224 @@
+/*
+ *  EventTrace    Lock-free ring of binary trace records, optionally memory mapped
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Any thread claims the next record with a single atomic increment and fills it in place, nothing
+ * is locked nor allocated. Records are only formatted when read back. A record is 256 bytes:
+ *  0: sequence number, -1 while being written
+ *  8: wall clock time in ms
+ * 16: event id, 20: text length
+ * 24: first argument, 32: second argument
+ * 40: text, truncated to MAX_TEXT latin-1 characters
+ * When backed by a file, the ring is memory mapped: the kernel keeps the records of a crashed
+ * process and the next instance recovers them.
+ */
+final class EventTrace {
+
+    static final int EVENT_LOG = 0;
+    static final int EVENT_ERROR = 1;
+    static final int EVENT_SOURCE_UNDERRUN = 2;
+    static final int EVENT_TRACK_UNDERRUN = 3;
+    static final int EVENT_RTP_LOSS = 4;
+
+    static final int MAX_TEXT = 216;
+    private static final int sRecordSize = 256;
+    private static final int sHeaderSize = 16;
+    private static final long sFileMagic = 0x4e50434d54524331L; /* "NPCMTRC1" */
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final AtomicLong mNext = new AtomicLong();
+    /* in memory copy of the sequence numbers, orders the record writes with the readers */
+    private final AtomicLongArray mCommits;
+    private final List<String> mRecovered;
+
+    /* Heap only trace, capacity must be a power of 2 */
+    EventTrace(int capacity) {
+        this(capacity, ByteBuffer.allocate(getSize(capacity)), false);
+    }
+
+    /* Trace mapped on file, the records it already holds are recovered first */
+    EventTrace(int capacity, File file) throws IOException {
+        this(capacity, map(file, getSize(capacity)), true);
+    }
+
+    private EventTrace(int capacity, ByteBuffer buffer, boolean recover) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("invalid trace capacity: " + capacity);
+        mCapacity = capacity;
+        mBuffer = buffer;
+        mCommits = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i)
+            mCommits.set(i, -1);
+        mRecovered = recover ? recover() : Collections.<String>emptyList();
+
+        mBuffer.putLong(0, sFileMagic);
+        mBuffer.putInt(8, capacity);
+        for (int i = 0; i < capacity; ++i)
+            mBuffer.putLong(offset(i), -1);
+    }
+
+    private static int getSize(int capacity) {
+        return sHeaderSize + capacity * sRecordSize;
+    }
+
+    private static ByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int offset(int slot) {
+        return sHeaderSize + slot * sRecordSize;
+    }
+
+    private int getSlot(long seq) {
+        return (int) (seq & (mCapacity - 1));
+    }
+
+    /* Any thread: record a typed event */
+    void trace(int id, long arg0, long arg1) {
+        final long seq = claim();
+        final int off = offset(getSlot(seq));
+        mBuffer.putLong(off + 8, System.currentTimeMillis());
+        mBuffer.putInt(off + 16, id);
+        mBuffer.putInt(off + 20, 0);
+        mBuffer.putLong(off + 24, arg0);
+        mBuffer.putLong(off + 32, arg1);
+        commit(seq);
+    }
+
+    /* Any thread: record a text event, the text is copied without allocation */
+    void trace(int id, CharSequence text) {
+        final long seq = claim();
+        final int off = offset(getSlot(seq));
+        final int length = Math.min(text.length(), MAX_TEXT);
+        mBuffer.putLong(off + 8, System.currentTimeMillis());
+        mBuffer.putInt(off + 16, id);
+        mBuffer.putInt(off + 20, length);
+        for (int i = 0; i < length; ++i) {
+            final char c = text.charAt(i);
+            mBuffer.put(off + 40 + i, (byte) (c < 256 ? c : '?'));
+        }
+        commit(seq);
+    }
+
+    private long claim() {
+        final long seq = mNext.getAndIncrement();
+        final int slot = getSlot(seq);
+        /* full barrier: the record is marked invalid before any field changes */
+        mCommits.getAndSet(slot, -1);
+        mBuffer.putLong(offset(slot), -1);
+        return seq;
+    }
+
+    private void commit(long seq) {
+        final int slot = getSlot(seq);
+        mBuffer.putLong(offset(slot), seq);
+        mCommits.lazySet(slot, seq);
+    }
+
+    /*
+     * Formatted records of this instance, oldest first. A record overwritten while being read is
+     * skipped.
+     */
+    List<String> format() {
+        final long next = mNext.get();
+        final long first = Math.max(0, next - mCapacity);
+        final List<String> out = new ArrayList<>((int) (next - first));
+        final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.getDefault());
+        for (long seq = first; seq < next; ++seq) {
+            final int slot = getSlot(seq);
+            if (mCommits.get(slot) != seq)
+                continue;
+            final String line = formatRecord(sdf, offset(slot));
+            if (mCommits.get(slot) == seq)
+                out.add(line);
+        }
+        return out;
+    }
+
+    /* Formatted records left by the previous instance in the trace file, oldest first */
+    List<String> getRecovered() {
+        return mRecovered;
+    }
+
+    private List<String> recover() {
+        if (mBuffer.getLong(0) != sFileMagic || mBuffer.getInt(8) != mCapacity)
+            return Collections.emptyList();
+        final ArrayList<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < mCapacity; ++i)
+            if (mBuffer.getLong(offset(i)) >= 0)
+                slots.add(i);
+        Collections.sort(slots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                final long seqA = mBuffer.getLong(offset(a));
+                final long seqB = mBuffer.getLong(offset(b));
+                return seqA < seqB ? -1 : (seqA == seqB ? 0 : 1);
+            }
+        });
+        final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.getDefault());
+        final List<String> out = new ArrayList<>(slots.size());
+        for (int slot : slots)
+            out.add(formatRecord(sdf, offset(slot)));
+        return out;
+    }
+
+    private String formatRecord(SimpleDateFormat sdf, int off) {
+        final String time = sdf.format(new Date(mBuffer.getLong(off + 8)));
+        final int id = mBuffer.getInt(off + 16);
+        final long arg0 = mBuffer.getLong(off + 24);
+        final long arg1 = mBuffer.getLong(off + 32);
+        switch (id) {
+            case EVENT_LOG:
+                return time + " V/ " + getText(off);
+            case EVENT_ERROR:
+                return time + " E/ " + getText(off);
+            case EVENT_SOURCE_UNDERRUN:
+                return time + " W/ source " + arg0 + " underrun (" + arg1 + " total)";
+            case EVENT_TRACK_UNDERRUN:
+                return time + " W/ AudioTrack underruns: +" + arg0 + " (" + arg1 + " total)";
+            case EVENT_RTP_LOSS:
+                return time + " W/ rtp: lost: " + arg0 + ", concealed frames: " + arg1;
+            default:
+                return time + " ?/ event " + id + ": " + arg0 + ", " + arg1;
+        }
+    }
+
+    private String getText(int off) {
+        final int length = Math.min(Math.max(mBuffer.getInt(off + 20), 0), MAX_TEXT);
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; ++i)
+            chars[i] = (char) (mBuffer.get(off + 40 + i) & 0xff);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  FractionalResampler  Variable ratio resampler for small clock corrections
+ *  Copyright (c)        2017 Thomas Guillem <thomas@gllm.fr>
+ *                       All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * 4-point Hermite interpolation over interleaved float frames. It is only meant for ratios very
+ * close to 1 (drift compensation), where its passband error is inaudible. With a ratio of
+ * exactly 1 the input frames are passed through unchanged, one frame late.
+ */
+final class FractionalResampler {
+
+    private final int mChannels;
+    private final float[] mWork;
+    private int mWorkFrames;
+    private double mPos;
+    private double mRatio = 1.0;
+
+    FractionalResampler(int channels, int maxInFrames) {
+        mChannels = channels;
+        mWork = new float[(maxInFrames + 4) * channels];
+        reset();
+    }
+
+    void reset() {
+        /* one frame of silence so that the first interpolation has its left neighbour */
+        for (int i = 0; i < mChannels; ++i)
+            mWork[i] = 0f;
+        mWorkFrames = 1;
+        mPos = 1.0;
+    }
+
+    void setRatio(double ratio) {
+        mRatio = ratio;
+    }
+
+    /* Output frames needed for inFrames of input at the current ratio, with margin */
+    int getMaxOutFrames(int inFrames) {
+        return (int) Math.ceil(inFrames / mRatio) + 2;
+    }
+
+    /*
+     * Consume all inFrames (at most the maxInFrames given at creation) and return the number of
+     * frames written to out, starting at frame outOffset. maxOutFrames must be at least
+     * getMaxOutFrames(inFrames).
+     */
+    int process(float[] in, int inFrames, float[] out, int outOffset, int maxOutFrames) {
+        final int channels = mChannels;
+        final float[] work = mWork;
+        System.arraycopy(in, 0, work, mWorkFrames * channels, inFrames * channels);
+        mWorkFrames += inFrames;
+
+        int outFrames = 0;
+        int outIdx = outOffset * channels;
+        double pos = mPos;
+        final double ratio = mRatio;
+        /* Hermite needs frames i - 1 to i + 2 */
+        while (outFrames < maxOutFrames) {
+            final int i = (int) pos;
+            if (i + 2 >= mWorkFrames)
+                break;
+            final float t = (float) (pos - i);
+            int xm1 = (i - 1) * channels;
+            int x0 = xm1 + channels;
+            int x1 = x0 + channels;
+            int x2 = x1 + channels;
+            for (int c = 0; c < channels; ++c) {
+                final float ym1 = work[xm1++], y0 = work[x0++], y1 = work[x1++], y2 = work[x2++];
+                final float c1 = 0.5f * (y1 - ym1);
+                final float c2 = ym1 - 2.5f * y0 + 2f * y1 - 0.5f * y2;
+                final float c3 = 0.5f * (y2 - ym1) + 1.5f * (y0 - y1);
+                out[outIdx++] = ((c3 * t + c2) * t + c1) * t + y0;
+            }
+            ++outFrames;
+            pos += ratio;
+        }
+
+        /* keep the frames still needed by the next interpolations */
+        final int keepFrom = Math.max((int) pos - 1, 0);
+        final int keep = mWorkFrames - keepFrom;
+        if (keep > 0 && keepFrom > 0)
+            System.arraycopy(work, keepFrom * channels, work, 0, keep * channels);
+        mWorkFrames = Math.max(keep, 0);
+        mPos = pos - keepFrom;
+        return outFrames;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  FramedInputStream PCM payload of a NPCF or NPCT stream, with keepalives
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                    All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/*
+ * After its header, a NPCF stream is a sequence of chunks: a 16 bits big endian byte count, then
+ * that many bytes of PCM. An empty chunk is a keepalive, the sender is alive but has nothing to
+ * play; it is reported to the LivenessMonitor and never returned as data.
+ * A NPCT stream is the same, except that every chunk header continues with the 64 bits big endian
+ * presentation time of its first frame, in ns of the sender clock; its chunks hold whole frames.
+ * A read returns bytes of at most one chunk. The parsing state survives a SocketTimeoutException
+ * thrown by the underlying stream, the read can be retried.
+ */
+final class FramedInputStream extends InputStream {
+
+    static final int MAX_CHUNK_SIZE = 65535;
+
+    private final InputStream mIn;
+    private final LivenessMonitor mLiveness;
+    /* null for a NPCF stream */
+    private final PresentationClock mClock;
+    private final int mHeaderSize;
+    /* chunk header read so far, mHeaderBytes of mHeaderSize */
+    private final byte[] mHeader = new byte[10];
+    private int mHeaderBytes = 0;
+    /* PCM bytes left in the current chunk */
+    private int mRemaining = 0;
+    /* for read(), nothing is allocated per read */
+    private final byte[] mByte = new byte[1];
+
+    FramedInputStream(InputStream in, LivenessMonitor liveness) {
+        this(in, liveness, null);
+    }
+
+    /* Timestamped stream, the presentation times go to clock */
+    FramedInputStream(InputStream in, LivenessMonitor liveness, PresentationClock clock) {
+        mIn = in;
+        mLiveness = liveness;
+        mClock = clock;
+        mHeaderSize = clock != null ? 10 : 2;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(mByte, 0, 1) == -1 ? -1 : mByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (mRemaining == 0) {
+            /* never past the header, the PCM is read straight into b */
+            final int read = mIn.read(mHeader, mHeaderBytes, mHeaderSize - mHeaderBytes);
+            if (read == -1) {
+                if (mHeaderBytes != 0)
+                    throw new ProtocolException("truncated chunk header");
+                return -1;
+            }
+            mHeaderBytes += read;
+            if (mHeaderBytes < mHeaderSize)
+                continue;
+            mHeaderBytes = 0;
+            mRemaining = (mHeader[0] & 0xff) << 8 | mHeader[1] & 0xff;
+            if (mRemaining == 0)
+                mLiveness.onKeepalive(System.nanoTime());
+            else if (mClock != null)
+                mClock.onAnchor(readPts());
+        }
+        final int read = mIn.read(b, off, Math.min(len, mRemaining));
+        if (read == -1)
+            throw new ProtocolException("truncated chunk");
+        mRemaining -= read;
+        if (mClock != null)
+            mClock.onPayload(read);
+        return read;
+    }
+
+    private long readPts() {
+        long pts = 0;
+        for (int i = 2; i < 10; ++i)
+            pts = pts << 8 | mHeader[i] & 0xff;
+        return pts;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.min(mIn.available(), mRemaining);
+    }
+
+    /* Chunk header for length bytes of PCM, 0 for a keepalive */
+    static int writeChunkHeader(int length, byte[] out, int offset) {
+        if (length < 0 || length > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("invalid chunk size: " + length);
+        out[offset] = (byte) (length >> 8);
+        out[offset + 1] = (byte) length;
+        return 2;
+    }
+
+    /* Chunk header of a NPCT stream, ptsNs is the presentation time of the first frame */
+    static int writeChunkHeader(int length, long ptsNs, byte[] out, int offset) {
+        writeChunkHeader(length, out, offset);
+        for (int i = 0; i < 8; ++i)
+            out[offset + 2 + i] = (byte) (ptsNs >> (56 - 8 * i));
+        return 10;
+    }
+}
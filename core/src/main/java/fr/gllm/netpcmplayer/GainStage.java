@@ -0,0 +1,74 @@
+/*
+ *  GainStage     Gain with a linear ramp to each new value
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * A change of gain is ramped over sRampMs so that it doesn't click; a unity gain costs nothing.
+ */
+final class GainStage implements DspStage {
+
+    private static final int sRampMs = 20;
+
+    private final int mChannels;
+    private final int mRampFrames;
+    private volatile float mTarget = 1f;
+    /* processing thread only */
+    private float mGain = 1f;
+    private float mStep = 0f;
+    private float mRampTarget = 1f;
+    private int mRampLeft = 0;
+
+    GainStage(int channels, int sampleRate) {
+        mChannels = channels;
+        mRampFrames = Math.max(sampleRate * sRampMs / 1000, 1);
+    }
+
+    @Override
+    public String getName() {
+        return "gain";
+    }
+
+    /* Any thread */
+    void setGainDb(float gainDb) {
+        mTarget = (float) Math.pow(10, gainDb / 20);
+    }
+
+    @Override
+    public void process(float[] block, int frames) {
+        final float target = mTarget;
+        if (target != mRampTarget) {
+            mRampTarget = target;
+            mRampLeft = mRampFrames;
+            mStep = (target - mGain) / mRampFrames;
+        }
+        int i = 0;
+        final int count = frames * mChannels;
+        for (; mRampLeft > 0 && i < count; i += mChannels, mRampLeft--) {
+            mGain += mStep;
+            for (int c = 0; c < mChannels; ++c)
+                block[i + c] *= mGain;
+        }
+        if (mRampLeft == 0)
+            mGain = mRampTarget;
+        if (mGain == 1f)
+            return;
+        final float gain = mGain;
+        for (; i < count; ++i)
+            block[i] *= gain;
+    }
+
+    @Override
+    public void reset() {
+        mGain = mRampTarget = mTarget;
+        mRampLeft = 0;
+    }
+}
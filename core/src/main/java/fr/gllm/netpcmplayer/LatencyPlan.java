@@ -0,0 +1,95 @@
+/*
+ *  LatencyPlan   Split of the configured delay between the jitter buffer and the AudioTrack
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Everything is planned in frames, stream frames for the jitter buffer and AudioTrack frames for
+ * the AudioTrack, so that the delay doesn't depend on the sample size nor the channel count.
+ * The AudioTrack gets as little as it can play without underrunning: its minimum buffer rounded
+ * to whole bursts of the device, doubled so that one block is written while the other plays.
+ * The rest of the delay absorbs the network jitter: it is the fill the jitter buffer is kept at,
+ * the buffer itself holds as much again above it for the bursts. With a short delay, the
+ * AudioTrack is not doubled anymore before the plan gives up.
+ */
+final class LatencyPlan {
+
+    /* configured delay, in stream frames */
+    final int totalFrames;
+    /* target fill of the jitter buffer, in stream frames */
+    final int ringFrames;
+    /* AudioTrack buffer and writes, in AudioTrack frames */
+    final int trackFrames;
+    final int writeFrames;
+    final int sampleRate;
+    final int trackSampleRate;
+
+    private LatencyPlan(int totalFrames, int ringFrames, int trackFrames, int writeFrames,
+                        int sampleRate, int trackSampleRate) {
+        this.totalFrames = totalFrames;
+        this.ringFrames = ringFrames;
+        this.trackFrames = trackFrames;
+        this.writeFrames = writeFrames;
+        this.sampleRate = sampleRate;
+        this.trackSampleRate = trackSampleRate;
+    }
+
+    /*
+     * minTrackFrames is the minimum AudioTrack buffer, burstFrames the buffer of the device mixer
+     * (0 if unknown), both in AudioTrack frames. minRingFrames is the smallest useful jitter
+     * buffer. Returns null if the delay is too low.
+     */
+    static LatencyPlan plan(int delayInMs, int sampleRate, int trackSampleRate, int minTrackFrames,
+                            int burstFrames, int minRingFrames) {
+        if (delayInMs <= 0 || sampleRate <= 0 || trackSampleRate <= 0 || minTrackFrames <= 0)
+            throw new IllegalArgumentException("invalid latency plan input");
+        final int totalFrames = (int) ((long) delayInMs * sampleRate / 1000);
+        int trackFrames = minTrackFrames;
+        if (burstFrames > 0)
+            trackFrames = (trackFrames + burstFrames - 1) / burstFrames * burstFrames;
+
+        if (totalFrames - toStreamFrames(2 * trackFrames, sampleRate, trackSampleRate) >= minRingFrames)
+            trackFrames *= 2;
+        else if (totalFrames - toStreamFrames(trackFrames, sampleRate, trackSampleRate) < minRingFrames)
+            return null;
+        final int ringFrames = totalFrames - toStreamFrames(trackFrames, sampleRate, trackSampleRate);
+        return new LatencyPlan(totalFrames, ringFrames, trackFrames, Math.max(trackFrames / 2, 1),
+                sampleRate, trackSampleRate);
+    }
+
+    private static int toStreamFrames(int trackFrames, int sampleRate, int trackSampleRate) {
+        return (int) (((long) trackFrames * sampleRate + trackSampleRate - 1) / trackSampleRate);
+    }
+
+    /* Capacity of the jitter buffer, in stream frames */
+    int getRingCapacityFrames() {
+        return ringFrames * 2;
+    }
+
+    long getTotalNs() {
+        return totalFrames * 1000000000L / sampleRate;
+    }
+
+    long getRingNs() {
+        return ringFrames * 1000000000L / sampleRate;
+    }
+
+    long getTrackNs() {
+        return trackFrames * 1000000000L / trackSampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "total: " + totalFrames + " frames (" + getTotalNs() / 1000000 + " ms), ring: " +
+                ringFrames + " (" + getRingNs() / 1000000 + " ms), track: " + trackFrames + " (" +
+                getTrackNs() / 1000000 + " ms), write: " + writeFrames;
+    }
+}
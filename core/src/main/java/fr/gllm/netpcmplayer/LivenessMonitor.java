@@ -0,0 +1,102 @@
+/*
+ *  LivenessMonitor  Inter-arrival jitter and adaptive end of session threshold
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                   All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Only used by the thread reading the stream. The jitter is the RFC 3550 one computed on the
+ * wire: the transit of a read is its arrival time minus the media time of the bytes received
+ * before it, the jitter is the smoothed absolute difference of consecutive transits. When the
+ * byte rate is unknown (compressed streams), consecutive inter-arrival times are compared instead.
+ * A keepalive refreshes the arrival time without any media, so the next transit starts over.
+ * The session is only considered dead after a silence longer than a threshold growing with the
+ * jitter: a hiccup is concealed by the mixer while a dead peer is dropped within a second or so.
+ */
+final class LivenessMonitor {
+
+    static final long MIN_TIMEOUT_NS = 1000000000L;
+    static final long MAX_TIMEOUT_NS = 8000000000L;
+    private static final int sJitterFactor = 32;
+
+    /* 0 when the byte rate is unknown */
+    private final double mNsPerByte;
+    private long mStartNs;
+    private long mBytes;
+    private long mLastArrivalNs;
+    private long mLastTransitNs;
+    private boolean mHasTransit;
+    private double mJitterNs;
+    private long mLongestGapNs;
+    private long mKeepalives;
+
+    LivenessMonitor(long bytesPerSecond) {
+        mNsPerByte = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+    }
+
+    void reset(long nowNs) {
+        mStartNs = mLastArrivalNs = nowNs;
+        mBytes = 0;
+        mHasTransit = false;
+        mJitterNs = 0;
+        mLongestGapNs = 0;
+        mKeepalives = 0;
+    }
+
+    /* Bytes of media arrived */
+    void onArrival(long nowNs, int bytes) {
+        final long gapNs = nowNs - mLastArrivalNs;
+        if (gapNs > mLongestGapNs)
+            mLongestGapNs = gapNs;
+        final long transitNs = mNsPerByte > 0 ? nowNs - mStartNs - (long) (mBytes * mNsPerByte) :
+                gapNs;
+        if (mHasTransit)
+            mJitterNs += (Math.abs(transitNs - mLastTransitNs) - mJitterNs) / 16;
+        mLastTransitNs = transitNs;
+        mHasTransit = true;
+        mLastArrivalNs = nowNs;
+        mBytes += bytes;
+    }
+
+    /* The sender is alive but has nothing to play */
+    void onKeepalive(long nowNs) {
+        mLastArrivalNs = nowNs;
+        mHasTransit = false;
+        /* the media clock restarts with the next media bytes */
+        mStartNs = nowNs;
+        mBytes = 0;
+        mKeepalives++;
+    }
+
+    long getJitterNs() {
+        return (long) mJitterNs;
+    }
+
+    long getLongestGapNs() {
+        return mLongestGapNs;
+    }
+
+    long getKeepaliveCount() {
+        return mKeepalives;
+    }
+
+    long getSilenceNs(long nowNs) {
+        return nowNs - mLastArrivalNs;
+    }
+
+    /* Silence after which the peer is considered dead */
+    long getTimeoutNs() {
+        return Math.min(MIN_TIMEOUT_NS + sJitterFactor * (long) mJitterNs, MAX_TIMEOUT_NS);
+    }
+
+    boolean isExpired(long nowNs) {
+        return getSilenceNs(nowNs) > getTimeoutNs();
+    }
+}
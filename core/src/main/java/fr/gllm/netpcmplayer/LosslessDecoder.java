@@ -0,0 +1,223 @@
+/*
+ *  LosslessDecoder Decoder of the NPCL lossless PCM frames
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/*
+ * A NPCL stream is a sequence of independent frames, FLAC like but much simpler:
+ *  - 'N', 'L', then the number of PCM frames in the block as a 16 bits big endian integer,
+ *    0 for a keepalive frame which ends there,
+ *  - one bit packed sub-frame per channel: 3 bits of predictor order (0 to 4, the fixed FLAC
+ *    polynomials), 5 bits of Rice parameter, then the samples:
+ *    - Rice parameter 31: every sample verbatim, on the bits of the encoding,
+ *    - otherwise: "order" warmup samples verbatim, then the residuals, zigzag mapped and Rice
+ *      coded (quotient in unary as zeros ended by a one, then the low bits),
+ *  - padding to the next byte.
+ * Samples are 8 (unsigned), 16 or 24 bits, the decoded PCM is little endian.
+ */
+final class LosslessDecoder {
+
+    static final int SYNC0 = 'N';
+    static final int SYNC1 = 'L';
+    static final int MAX_ORDER = 4;
+    static final int RICE_VERBATIM = 31;
+    static final int MAX_QUOTIENT = 1 << 16;
+    static final int MAX_BLOCK_FRAMES = 8192;
+
+    private final int mChannels;
+    private final int mBits;
+    private final int mBytesPerSample;
+    private final int[] mSamples = new int[MAX_BLOCK_FRAMES];
+    private final byte[] mOut;
+
+    /* bit reader, refilled from the stream by chunks */
+    private final byte[] mIn = new byte[4096];
+    private InputStream mStream = null;
+    private int mInPos = 0;
+    private int mInLength = 0;
+    private long mBitBuffer = 0;
+    private int mBitCount = 0;
+
+    LosslessDecoder(int encoding, int channels) {
+        if (!isSupported(encoding))
+            throw new IllegalArgumentException("invalid encoding: " + encoding);
+        mChannels = channels;
+        mBytesPerSample = PcmConverter.getBytesPerSample(encoding);
+        mBits = mBytesPerSample * 8;
+        mOut = new byte[MAX_BLOCK_FRAMES * channels * mBytesPerSample];
+    }
+
+    static boolean isSupported(int encoding) {
+        return encoding == PcmConverter.ENCODING_PCM_8BIT ||
+                encoding == PcmConverter.ENCODING_PCM_16BIT ||
+                encoding == PcmConverter.ENCODING_PCM_24BIT;
+    }
+
+    void reset(InputStream stream) {
+        mStream = stream;
+        mInPos = mInLength = 0;
+        mBitBuffer = 0;
+        mBitCount = 0;
+    }
+
+    /* Decoded PCM of the last frame */
+    byte[] getOutput() {
+        return mOut;
+    }
+
+    /*
+     * Decode the next frame into getOutput(). Returns the number of PCM frames, 0 for a
+     * keepalive, or -1 if the stream ended cleanly between two frames.
+     */
+    int decodeFrame() throws IOException {
+        final int sync0 = nextByte();
+        if (sync0 == -1)
+            return -1;
+        if (sync0 != SYNC0 || readBits(8) != SYNC1)
+            throw new ProtocolException("lossless frame sync lost");
+        final int frames = readBits(16);
+        if (frames == 0)
+            return 0;
+        if (frames > MAX_BLOCK_FRAMES)
+            throw new ProtocolException("invalid lossless frame size: " + frames);
+
+        for (int channel = 0; channel < mChannels; ++channel) {
+            final int order = readBits(3);
+            final int rice = readBits(5);
+            if (order > MAX_ORDER)
+                throw new ProtocolException("invalid lossless predictor order: " + order);
+            decodeSubFrame(frames, order, rice);
+            storeChannel(channel, frames);
+        }
+        /* frames end on a byte boundary */
+        mBitCount -= mBitCount % 8;
+        return frames;
+    }
+
+    private void decodeSubFrame(int frames, int order, int rice) throws IOException {
+        final int[] s = mSamples;
+        if (rice == RICE_VERBATIM) {
+            for (int i = 0; i < frames; ++i)
+                s[i] = readSigned(mBits);
+            return;
+        }
+        final int warmup = Math.min(order, frames);
+        for (int i = 0; i < warmup; ++i)
+            s[i] = readSigned(mBits);
+        for (int i = warmup; i < frames; ++i) {
+            final int q = readUnary();
+            final int zigzag = (q << rice) | readBits(rice);
+            final int residual = (zigzag >>> 1) ^ -(zigzag & 1);
+            switch (order) {
+                case 0:
+                    s[i] = residual;
+                    break;
+                case 1:
+                    s[i] = residual + s[i - 1];
+                    break;
+                case 2:
+                    s[i] = residual + 2 * s[i - 1] - s[i - 2];
+                    break;
+                case 3:
+                    s[i] = residual + 3 * (s[i - 1] - s[i - 2]) + s[i - 3];
+                    break;
+                default:
+                    s[i] = residual + 4 * (s[i - 1] + s[i - 3]) - 6 * s[i - 2] - s[i - 4];
+                    break;
+            }
+        }
+    }
+
+    private void storeChannel(int channel, int frames) {
+        final int stride = mChannels * mBytesPerSample;
+        int j = channel * mBytesPerSample;
+        switch (mBytesPerSample) {
+            case 1:
+                for (int i = 0; i < frames; ++i, j += stride)
+                    mOut[j] = (byte) (mSamples[i] + 128);
+                break;
+            case 2:
+                for (int i = 0; i < frames; ++i, j += stride) {
+                    mOut[j] = (byte) mSamples[i];
+                    mOut[j + 1] = (byte) (mSamples[i] >> 8);
+                }
+                break;
+            default:
+                for (int i = 0; i < frames; ++i, j += stride) {
+                    mOut[j] = (byte) mSamples[i];
+                    mOut[j + 1] = (byte) (mSamples[i] >> 8);
+                    mOut[j + 2] = (byte) (mSamples[i] >> 16);
+                }
+                break;
+        }
+    }
+
+    /* Next byte of the stream, -1 at the end */
+    private int nextByte() throws IOException {
+        if (mInPos == mInLength) {
+            final int read = mStream.read(mIn, 0, mIn.length);
+            if (read <= 0)
+                return -1;
+            mInPos = 0;
+            mInLength = read;
+        }
+        return mIn[mInPos++] & 0xff;
+    }
+
+    private void fill(int bits) throws IOException {
+        while (mBitCount < bits) {
+            final int b = nextByte();
+            if (b == -1)
+                throw new EOFException("lossless frame truncated");
+            mBitBuffer = (mBitBuffer << 8) | b;
+            mBitCount += 8;
+        }
+    }
+
+    /* Up to 32 bits, unsigned */
+    private int readBits(int bits) throws IOException {
+        if (bits == 0)
+            return 0;
+        fill(bits);
+        mBitCount -= bits;
+        return (int) ((mBitBuffer >>> mBitCount) & ((1L << bits) - 1));
+    }
+
+    private int readSigned(int bits) throws IOException {
+        final int shift = 32 - bits;
+        return (readBits(bits) << shift) >> shift;
+    }
+
+    private int readUnary() throws IOException {
+        int q = 0;
+        while (true) {
+            if (mBitCount == 0)
+                fill(8);
+            final long pending = mBitBuffer & ((1L << mBitCount) - 1);
+            if (pending == 0) {
+                q += mBitCount;
+                mBitCount = 0;
+                if (q > MAX_QUOTIENT)
+                    throw new ProtocolException("invalid lossless residual");
+                continue;
+            }
+            final int highest = 63 - Long.numberOfLeadingZeros(pending);
+            q += mBitCount - 1 - highest;
+            mBitCount = highest;
+            return q;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  LosslessEncoder Encoder of the NPCL lossless PCM frames
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Reference encoder of the format described in LosslessDecoder, for senders written in Java.
+ * Each channel picks the fixed predictor with the smallest residuals, and falls back to
+ * verbatim samples when Rice coding doesn't pay off.
+ */
+final class LosslessEncoder {
+
+    private final int mChannels;
+    private final int mBits;
+    private final int mBytesPerSample;
+    private final int[] mSamples = new int[LosslessDecoder.MAX_BLOCK_FRAMES];
+    private final int[] mResiduals = new int[LosslessDecoder.MAX_BLOCK_FRAMES];
+
+    /* bit writer state */
+    private byte[] mOut;
+    private int mOutPos;
+    private long mBitBuffer;
+    private int mBitCount;
+
+    LosslessEncoder(int encoding, int channels) {
+        if (!LosslessDecoder.isSupported(encoding))
+            throw new IllegalArgumentException("invalid encoding: " + encoding);
+        mChannels = channels;
+        mBytesPerSample = PcmConverter.getBytesPerSample(encoding);
+        mBits = mBytesPerSample * 8;
+    }
+
+    /* Worst case size of an encoded frame: every channel verbatim */
+    int getMaxFrameSize(int frames) {
+        return 4 + mChannels * (1 + frames * mBytesPerSample) + 1;
+    }
+
+    /* Keepalive frame, for a sender with nothing to play: returns the number of bytes written */
+    static int encodeKeepalive(byte[] out, int outOffset) {
+        out[outOffset] = (byte) LosslessDecoder.SYNC0;
+        out[outOffset + 1] = (byte) LosslessDecoder.SYNC1;
+        out[outOffset + 2] = 0;
+        out[outOffset + 3] = 0;
+        return 4;
+    }
+
+    /* Encode frames of interleaved PCM into out, returns the number of bytes written */
+    int encode(byte[] pcm, int offset, int frames, byte[] out, int outOffset) {
+        if (frames <= 0 || frames > LosslessDecoder.MAX_BLOCK_FRAMES)
+            throw new IllegalArgumentException("invalid frame count: " + frames);
+        mOut = out;
+        mOutPos = outOffset;
+        mBitBuffer = 0;
+        mBitCount = 0;
+        writeBits(LosslessDecoder.SYNC0, 8);
+        writeBits(LosslessDecoder.SYNC1, 8);
+        writeBits(frames, 16);
+
+        for (int channel = 0; channel < mChannels; ++channel) {
+            loadChannel(pcm, offset, channel, frames);
+            encodeSubFrame(frames);
+        }
+        if (mBitCount > 0)
+            writeBits(0, 8 - mBitCount);
+        mOut = null;
+        return mOutPos - outOffset;
+    }
+
+    private void loadChannel(byte[] pcm, int offset, int channel, int frames) {
+        final int stride = mChannels * mBytesPerSample;
+        int j = offset + channel * mBytesPerSample;
+        switch (mBytesPerSample) {
+            case 1:
+                for (int i = 0; i < frames; ++i, j += stride)
+                    mSamples[i] = (pcm[j] & 0xff) - 128;
+                break;
+            case 2:
+                for (int i = 0; i < frames; ++i, j += stride)
+                    mSamples[i] = (short) ((pcm[j] & 0xff) | (pcm[j + 1] << 8));
+                break;
+            default:
+                for (int i = 0; i < frames; ++i, j += stride)
+                    mSamples[i] = (pcm[j] & 0xff) | ((pcm[j + 1] & 0xff) << 8) | (pcm[j + 2] << 16);
+                break;
+        }
+    }
+
+    private void encodeSubFrame(int frames) {
+        /* the order with the smallest residuals wins */
+        int bestOrder = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int order = 0; order <= LosslessDecoder.MAX_ORDER && order < frames; ++order) {
+            long sum = 0;
+            for (int i = order; i < frames; ++i)
+                sum += Math.abs((long) computeResidual(order, i));
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+
+        final int count = frames - bestOrder;
+        long maxZigzag = 0;
+        long zigzagSum = 0;
+        for (int i = bestOrder; i < frames; ++i) {
+            final int r = computeResidual(bestOrder, i);
+            final int zigzag = (r << 1) ^ (r >> 31);
+            mResiduals[i] = zigzag;
+            zigzagSum += zigzag & 0xffffffffL;
+            maxZigzag = Math.max(maxZigzag, zigzag & 0xffffffffL);
+        }
+
+        /* Rice parameter around the log2 of the mean, then check it beats verbatim samples */
+        int rice = 0;
+        while (rice < 30 && ((long) count << (rice + 1)) < zigzagSum)
+            rice++;
+        long riceBits = (long) count * (rice + 1);
+        for (int i = bestOrder; i < frames; ++i)
+            riceBits += (mResiduals[i] & 0xffffffffL) >>> rice;
+        final boolean verbatim = count == 0 || (maxZigzag >>> rice) > LosslessDecoder.MAX_QUOTIENT ||
+                riceBits >= (long) count * mBits;
+
+        if (verbatim) {
+            writeBits(0, 3);
+            writeBits(LosslessDecoder.RICE_VERBATIM, 5);
+            for (int i = 0; i < frames; ++i)
+                writeBits(mSamples[i], mBits);
+            return;
+        }
+        writeBits(bestOrder, 3);
+        writeBits(rice, 5);
+        for (int i = 0; i < bestOrder; ++i)
+            writeBits(mSamples[i], mBits);
+        for (int i = bestOrder; i < frames; ++i) {
+            final int zigzag = mResiduals[i];
+            int q = zigzag >>> rice;
+            while (q >= 32) {
+                writeBits(0, 32);
+                q -= 32;
+            }
+            writeBits(1, q + 1);
+            writeBits(zigzag, rice);
+        }
+    }
+
+    private int computeResidual(int order, int i) {
+        final int[] s = mSamples;
+        switch (order) {
+            case 0:
+                return s[i];
+            case 1:
+                return s[i] - s[i - 1];
+            case 2:
+                return s[i] - 2 * s[i - 1] + s[i - 2];
+            case 3:
+                return s[i] - 3 * (s[i - 1] - s[i - 2]) - s[i - 3];
+            default:
+                return s[i] - 4 * (s[i - 1] + s[i - 3]) + 6 * s[i - 2] + s[i - 4];
+        }
+    }
+
+    /* Up to 32 bits, the low bits of value */
+    private void writeBits(int value, int bits) {
+        if (bits == 0)
+            return;
+        mBitBuffer = (mBitBuffer << bits) | (value & ((1L << bits) - 1));
+        mBitCount += bits;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            mOut[mOutPos++] = (byte) (mBitBuffer >>> mBitCount);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *  PcmConverter  Conversions between PCM bytes and float samples
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Input encodings are either the AudioFormat ones (little endian) or the extra ones below, that
+ * the AudioTrack can't take as is. Everything is converted to float in [-1; 1] for processing.
+ */
+final class PcmConverter {
+
+    /* same values as the AudioFormat ones, this module doesn't depend on Android */
+    static final int ENCODING_PCM_16BIT = 2;
+    static final int ENCODING_PCM_8BIT = 3;
+    static final int ENCODING_PCM_FLOAT = 4;
+    static final int ENCODING_PCM_16BIT_BE = 0x101;
+    static final int ENCODING_PCM_24BIT = 0x102;
+    static final int ENCODING_PCM_24BIT_BE = 0x103;
+    static final int ENCODING_PCM_32BIT = 0x104;
+    static final int ENCODING_PCM_32BIT_BE = 0x105;
+    static final int ENCODING_PCM_FLOAT_BE = 0x106;
+
+    private PcmConverter() {
+    }
+
+    static int getBytesPerSample(int encoding) {
+        switch (encoding) {
+            case ENCODING_PCM_8BIT:
+                return 1;
+            case ENCODING_PCM_16BIT:
+            case ENCODING_PCM_16BIT_BE:
+                return 2;
+            case ENCODING_PCM_24BIT:
+            case ENCODING_PCM_24BIT_BE:
+                return 3;
+            case ENCODING_PCM_32BIT:
+            case ENCODING_PCM_32BIT_BE:
+            case ENCODING_PCM_FLOAT:
+            case ENCODING_PCM_FLOAT_BE:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    static boolean isBigEndian(int encoding) {
+        return encoding == ENCODING_PCM_16BIT_BE || encoding == ENCODING_PCM_24BIT_BE ||
+                encoding == ENCODING_PCM_32BIT_BE || encoding == ENCODING_PCM_FLOAT_BE;
+    }
+
+    /* More than 16 bits of resolution, worth a float AudioTrack */
+    static boolean isHighResolution(int encoding) {
+        return getBytesPerSample(encoding) > 2;
+    }
+
+    /* Decode samples into floats in [-1; 1], float samples are sanitized */
+    static void toFloat(int encoding, byte[] src, int srcOffset, float[] dst, int samples) {
+        int j = srcOffset;
+        switch (encoding) {
+            case ENCODING_PCM_8BIT:
+                for (int i = 0; i < samples; ++i)
+                    dst[i] = ((src[j++] & 0xff) - 128) * (1f / 128f);
+                break;
+            case ENCODING_PCM_16BIT:
+                for (int i = 0; i < samples; ++i, j += 2)
+                    dst[i] = (short) ((src[j] & 0xff) | (src[j + 1] << 8)) * (1f / 32768f);
+                break;
+            case ENCODING_PCM_16BIT_BE:
+                for (int i = 0; i < samples; ++i, j += 2)
+                    dst[i] = (short) ((src[j] << 8) | (src[j + 1] & 0xff)) * (1f / 32768f);
+                break;
+            case ENCODING_PCM_24BIT:
+                for (int i = 0; i < samples; ++i, j += 3)
+                    dst[i] = ((src[j] & 0xff) | ((src[j + 1] & 0xff) << 8) | (src[j + 2] << 16)) *
+                            (1f / 8388608f);
+                break;
+            case ENCODING_PCM_24BIT_BE:
+                for (int i = 0; i < samples; ++i, j += 3)
+                    dst[i] = ((src[j] << 16) | ((src[j + 1] & 0xff) << 8) | (src[j + 2] & 0xff)) *
+                            (1f / 8388608f);
+                break;
+            case ENCODING_PCM_32BIT:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    dst[i] = readIntLE(src, j) * (1f / 2147483648f);
+                break;
+            case ENCODING_PCM_32BIT_BE:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    dst[i] = readIntBE(src, j) * (1f / 2147483648f);
+                break;
+            case ENCODING_PCM_FLOAT:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    dst[i] = toFiniteSample(readIntLE(src, j));
+                break;
+            case ENCODING_PCM_FLOAT_BE:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    dst[i] = toFiniteSample(readIntBE(src, j));
+                break;
+            default:
+                throw new IllegalArgumentException("invalid encoding: " + encoding);
+        }
+    }
+
+    /* Encode floats, with saturation */
+    static void fromFloat(int encoding, float[] src, int samples, byte[] dst, int dstOffset) {
+        int j = dstOffset;
+        switch (encoding) {
+            case ENCODING_PCM_8BIT:
+                for (int i = 0; i < samples; ++i)
+                    dst[j++] = (byte) (clamp(Math.round(src[i] * 128f), 127) + 128);
+                break;
+            case ENCODING_PCM_16BIT:
+                for (int i = 0; i < samples; ++i, j += 2) {
+                    final int v = clamp(Math.round(src[i] * 32768f), 32767);
+                    dst[j] = (byte) v;
+                    dst[j + 1] = (byte) (v >> 8);
+                }
+                break;
+            case ENCODING_PCM_16BIT_BE:
+                for (int i = 0; i < samples; ++i, j += 2) {
+                    final int v = clamp(Math.round(src[i] * 32768f), 32767);
+                    dst[j] = (byte) (v >> 8);
+                    dst[j + 1] = (byte) v;
+                }
+                break;
+            case ENCODING_PCM_24BIT:
+                for (int i = 0; i < samples; ++i, j += 3) {
+                    final int v = clamp(Math.round(src[i] * 8388608f), 8388607);
+                    dst[j] = (byte) v;
+                    dst[j + 1] = (byte) (v >> 8);
+                    dst[j + 2] = (byte) (v >> 16);
+                }
+                break;
+            case ENCODING_PCM_24BIT_BE:
+                for (int i = 0; i < samples; ++i, j += 3) {
+                    final int v = clamp(Math.round(src[i] * 8388608f), 8388607);
+                    dst[j] = (byte) (v >> 16);
+                    dst[j + 1] = (byte) (v >> 8);
+                    dst[j + 2] = (byte) v;
+                }
+                break;
+            case ENCODING_PCM_32BIT:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    writeIntLE(dst, j, (int) Math.max(Math.min(src[i] * 2147483648.0, 2147483647.0),
+                            -2147483648.0));
+                break;
+            case ENCODING_PCM_32BIT_BE:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    writeIntBE(dst, j, (int) Math.max(Math.min(src[i] * 2147483648.0, 2147483647.0),
+                            -2147483648.0));
+                break;
+            case ENCODING_PCM_FLOAT:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    writeIntLE(dst, j, Float.floatToRawIntBits(src[i]));
+                break;
+            case ENCODING_PCM_FLOAT_BE:
+                for (int i = 0; i < samples; ++i, j += 4)
+                    writeIntBE(dst, j, Float.floatToRawIntBits(src[i]));
+                break;
+            default:
+                throw new IllegalArgumentException("invalid encoding: " + encoding);
+        }
+    }
+
+    /*
+     * Encode floats into 16 bits little endian with TPDF dither. The dither noise comes from a
+     * xorshift generator whose state is passed and returned, so nothing is allocated.
+     */
+    static int fromFloatDithered(float[] src, int samples, byte[] dst, int dstOffset, int seed) {
+        int x = seed != 0 ? seed : 0x9e3779b9;
+        for (int i = 0, j = dstOffset; i < samples; ++i, j += 2) {
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            /* difference of two uniform 16 bit values: triangular in ]-1; 1[ LSB */
+            final float tpdf = ((x & 0xffff) - (x >>> 16)) * (1f / 65536f);
+            final int v = clamp(Math.round(src[i] * 32768f + tpdf), 32767);
+            dst[j] = (byte) v;
+            dst[j + 1] = (byte) (v >> 8);
+        }
+        return x;
+    }
+
+    /* Clamp floats in place to [-1; 1] */
+    static void saturate(float[] samples, int count) {
+        for (int i = 0; i < count; ++i) {
+            final float v = samples[i];
+            samples[i] = v > 1f ? 1f : (v < -1f ? -1f : v);
+        }
+    }
+
+    /*
+     * Float sample from the network: NaN and infinities are silenced, they would otherwise reach
+     * a float AudioTrack and poison the state of the DSP filters for good. The rest is clamped.
+     */
+    private static float toFiniteSample(int bits) {
+        if ((bits & 0x7f800000) == 0x7f800000)
+            return 0f;
+        final float v = Float.intBitsToFloat(bits);
+        return v > 1f ? 1f : (v < -1f ? -1f : v);
+    }
+
+    private static int clamp(int v, int max) {
+        return v > max ? max : (v < -max - 1 ? -max - 1 : v);
+    }
+
+    private static int readIntLE(byte[] b, int offset) {
+        return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8) | ((b[offset + 2] & 0xff) << 16) |
+                (b[offset + 3] << 24);
+    }
+
+    private static int readIntBE(byte[] b, int offset) {
+        return (b[offset] << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) |
+                (b[offset + 3] & 0xff);
+    }
+
+    private static void writeIntLE(byte[] b, int offset, int v) {
+        b[offset] = (byte) v;
+        b[offset + 1] = (byte) (v >> 8);
+        b[offset + 2] = (byte) (v >> 16);
+        b[offset + 3] = (byte) (v >> 24);
+    }
+
+    private static void writeIntBE(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >> 24);
+        b[offset + 1] = (byte) (v >> 16);
+        b[offset + 2] = (byte) (v >> 8);
+        b[offset + 3] = (byte) v;
+    }
+}
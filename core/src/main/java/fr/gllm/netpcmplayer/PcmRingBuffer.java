@@ -0,0 +1,268 @@
+/*
+ *  PcmRingBuffer Lock-free single producer/single consumer PCM buffer
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * One thread writes (the network reader), one thread reads (the audio writer). Positions are
+ * absolute byte counters, so fill = write - read and no slot is wasted. The producer can write
+ * partial frames but the consumer only ever sees whole frames. A SilenceDetector, if set, scans
+ * what the producer writes before it is published.
+ */
+final class PcmRingBuffer {
+
+    private static final long sWaitNs = 2000000L;
+
+    private final byte[] mBuffer;
+    private final int mCapacity;
+    private final int mFrameSize;
+
+    private final AtomicLong mWritePos = new AtomicLong();
+    private final AtomicLong mReadPos = new AtomicLong();
+    private volatile boolean mEndOfStream = false;
+    private volatile boolean mClosed = false;
+    private volatile Thread mWaitingProducer = null;
+    private volatile Thread mWaitingConsumer = null;
+    /* producer only */
+    private SilenceDetector mSilenceDetector = null;
+
+    /* counters, each one is only written by a single side */
+    private volatile int mMaxFill = 0;
+    private volatile int mMinFill = Integer.MAX_VALUE;
+    private volatile long mUnderruns = 0;
+    private volatile long mProducerWaits = 0;
+
+    PcmRingBuffer(int capacityInBytes, int frameSize) {
+        if (frameSize <= 0 || capacityInBytes < frameSize)
+            throw new IllegalArgumentException("invalid ring size: " + capacityInBytes + "/" + frameSize);
+        mFrameSize = frameSize;
+        mCapacity = capacityInBytes - capacityInBytes % frameSize;
+        mBuffer = new byte[mCapacity];
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /* Bytes currently queued, including a trailing partial frame */
+    int getFill() {
+        return (int) (mWritePos.get() - mReadPos.get());
+    }
+
+    int getMaxFill() {
+        return mMaxFill;
+    }
+
+    int getMinFill() {
+        final int minFill = mMinFill;
+        return minFill == Integer.MAX_VALUE ? 0 : minFill;
+    }
+
+    long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    long getProducerWaitCount() {
+        return mProducerWaits;
+    }
+
+    long getWrittenBytes() {
+        return mWritePos.get();
+    }
+
+    long getReadBytes() {
+        return mReadPos.get();
+    }
+
+    /* Consumer side: reset the min/max fill watermarks */
+    void resetWatermarks() {
+        mMaxFill = 0;
+        mMinFill = Integer.MAX_VALUE;
+    }
+
+    /* Only call this while neither the producer nor the consumer is running */
+    void reset() {
+        mWritePos.set(0);
+        mReadPos.set(0);
+        mEndOfStream = false;
+        mClosed = false;
+        mUnderruns = 0;
+        mProducerWaits = 0;
+        resetWatermarks();
+    }
+
+    /* Producer side, before writing: scan what is written, null to stop */
+    void setSilenceDetector(SilenceDetector detector) {
+        mSilenceDetector = detector;
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    /* Producer side: no more data will be written, the consumer drains what is left */
+    void setEndOfStream() {
+        mEndOfStream = true;
+        wake(mWaitingConsumer);
+    }
+
+    /* Either side: abort, pending and future calls return immediately */
+    void close() {
+        mClosed = true;
+        wake(mWaitingConsumer);
+        wake(mWaitingProducer);
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /*
+     * Producer side: wait for free space and return the number of contiguous writable bytes,
+     * or 0 if the buffer was closed.
+     */
+    private int awaitWritable(long writePos) {
+        int free = mCapacity - (int) (writePos - mReadPos.get());
+        if (free == 0) {
+            mProducerWaits++;
+            mWaitingProducer = Thread.currentThread();
+            while (!mClosed && (free = mCapacity - (int) (writePos - mReadPos.get())) == 0)
+                LockSupport.parkNanos(this, sWaitNs);
+            mWaitingProducer = null;
+            if (mClosed)
+                return 0;
+        }
+        final int offset = (int) (writePos % mCapacity);
+        return Math.min(free, mCapacity - offset);
+    }
+
+    private void commitWrite(long writePos, int count) {
+        final long newWritePos = writePos + count;
+        mWritePos.lazySet(newWritePos);
+        final int fill = (int) (newWritePos - mReadPos.get());
+        if (fill > mMaxFill)
+            mMaxFill = fill;
+        wake(mWaitingConsumer);
+    }
+
+    /*
+     * Producer side: read from the stream directly into the ring, blocking while it is full.
+     * Returns the number of bytes stored, -1 on EOF or if the buffer was closed.
+     */
+    int write(InputStream is, int maxBytes) throws IOException {
+        final long writePos = mWritePos.get();
+        final int writable = awaitWritable(writePos);
+        if (writable == 0)
+            return -1;
+        final int read = is.read(mBuffer, (int) (writePos % mCapacity), Math.min(writable, maxBytes));
+        if (read <= 0)
+            return -1;
+        if (mSilenceDetector != null)
+            mSilenceDetector.scan(mBuffer, (int) (writePos % mCapacity), read);
+        commitWrite(writePos, read);
+        return read;
+    }
+
+    /*
+     * Producer side: copy all the bytes into the ring, blocking while it is full.
+     * Returns false if the buffer was closed.
+     */
+    boolean write(byte[] src, int offset, int length) {
+        while (length > 0) {
+            final long writePos = mWritePos.get();
+            final int writable = awaitWritable(writePos);
+            if (writable == 0)
+                return false;
+            final int count = Math.min(writable, length);
+            final int ringOffset = (int) (writePos % mCapacity);
+            System.arraycopy(src, offset, mBuffer, ringOffset, count);
+            /* the copy in the ring is scanned: always the same array, whatever the source */
+            if (mSilenceDetector != null)
+                mSilenceDetector.scan(mBuffer, ringOffset, count);
+            commitWrite(writePos, count);
+            offset += count;
+            length -= count;
+        }
+        return true;
+    }
+
+    /*
+     * Consumer side: wait until at least minBytes are queued (or the stream ended), at most
+     * timeoutNs. Returns false if the buffer was closed.
+     */
+    boolean awaitFill(int minBytes, long timeoutNs) {
+        minBytes = Math.min(minBytes, mCapacity);
+        if (getFill() >= minBytes)
+            return true;
+        final long deadline = System.nanoTime() + timeoutNs;
+        mWaitingConsumer = Thread.currentThread();
+        while (!mClosed && !mEndOfStream && getFill() < minBytes) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0)
+                break;
+            LockSupport.parkNanos(this, Math.min(left, sWaitNs));
+        }
+        mWaitingConsumer = null;
+        return !mClosed;
+    }
+
+    /*
+     * Consumer side: copy up to maxBytes whole frames, waiting at most timeoutNs for data.
+     * Returns the number of bytes copied (0 on timeout), or -1 once the stream ended and
+     * everything was drained, or if the buffer was closed.
+     */
+    int read(byte[] dst, int offset, int maxBytes, long timeoutNs) {
+        final long readPos = mReadPos.get();
+        int avail = (int) (mWritePos.get() - readPos);
+        avail -= avail % mFrameSize;
+        if (avail == 0) {
+            if (mEndOfStream || mClosed)
+                return -1;
+            mUnderruns++;
+            if (!awaitFill(mFrameSize, timeoutNs))
+                return -1;
+            avail = (int) (mWritePos.get() - readPos);
+            avail -= avail % mFrameSize;
+            if (avail == 0)
+                return mEndOfStream ? -1 : 0;
+        }
+        if (mClosed)
+            return -1;
+
+        int count = Math.min(avail, maxBytes - maxBytes % mFrameSize);
+        final int ringOffset = (int) (readPos % mCapacity);
+        final int first = Math.min(count, mCapacity - ringOffset);
+        System.arraycopy(mBuffer, ringOffset, dst, offset, first);
+        if (first < count)
+            System.arraycopy(mBuffer, 0, dst, offset + first, count - first);
+
+        final int fill = avail - count;
+        if (fill < mMinFill)
+            mMinFill = fill;
+        mReadPos.lazySet(readPos + count);
+        wake(mWaitingProducer);
+        return count;
+    }
+}
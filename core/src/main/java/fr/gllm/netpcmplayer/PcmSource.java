@@ -0,0 +1,514 @@
+/*
+ *  PcmSource     One input of the mixer: jitter buffer, drift compensation and gain
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The ring holds frames at the rate of the stream, they are mixed at the rate of the AudioTrack:
+ * after the drift compensation, a PolyphaseResampler converts them when both rates differ.
+ * The channels of the AudioTrack are routed first, so that a downmix resamples fewer channels.
+ * A source is acquired by a network thread, which becomes the producer of its ring, and is
+ * consumed by the AudioWriter thread. It goes back to the free pool once both sides released it,
+ * so a ring is never reset while a producer may still write into it.
+ * A session fades in when it starts and decays to silence when it ends, a source taken over fades
+ * out while the new one fades in, so that sessions following each other on a running AudioTrack
+ * are crossfaded instead of cut.
+ * A timestamped source is scheduled against its PresentationClock instead of its fill: the
+ * AudioWriter tells when the next block will be heard, the error to the presentation time of
+ * the next frame drives the drift resampler, so that small errors are slewed by inserting or
+ * dropping fractions of frames. Larger errors are caught up at once: frames are dropped, or
+ * silence is played until the source is due. When it starts playing (or resumes after an
+ * underrun), nothing is heard yet, so it is aligned exactly on the frame.
+ * The producer measures the digital silence it writes; while the AudioWriter is paused on it,
+ * the source is held at its target fill, so that it resumes with a full jitter buffer.
+ */
+final class PcmSource {
+
+    private static final long sPrebufferTimeoutNs = 2000000000L;
+    private static final int sConcealMs = 5;
+    private static final int sCrossfadeMs = 20;
+    private static final int sSyncSlewMs = 20;
+    private static final long sNoSync = Long.MIN_VALUE;
+
+    final int index;
+    final PcmRingBuffer ring;
+
+    private final int mEncoding;
+    private final int mSampleRate;
+    private final int mMixRate;
+    /* channels of the stream, then of the AudioTrack */
+    private final int mInChannels;
+    private final int mChannels;
+    private final int mFrameSize;
+    private final int mMaxInFrames;
+    private final DriftEstimator mDriftEstimator;
+    private final SilenceDetector mSilence;
+    private final FractionalResampler mResampler;
+    /* null when the stream is at the rate of the AudioTrack */
+    private final PolyphaseResampler.Filter mConverterFilter;
+    private final PolyphaseResampler mConverter;
+    private final byte[] mBytes;
+    private final float[] mInFloats;
+    /* null when the stream has the channels of the AudioTrack */
+    private final ChannelRouter mRouter;
+    private final float[] mRoutedFloats;
+    private final float[] mDriftFloats;
+    /* resampled frames not mixed yet */
+    private final float[] mFifo;
+    private int mFifoFrames;
+    /* last frame mixed, decayed into a gap; positions in the decay and in the fade in after it */
+    private final float[] mLastFrame;
+    private final int mConcealFrames;
+    private final int mCrossfadeFrames;
+    private int mConcealPos;
+    private int mFadeInPos;
+    /* mCrossfadeFrames at the start of the session, mConcealFrames after a gap */
+    private int mFadeInFrames;
+    private int mFadeOutPos;
+
+    private final AtomicInteger mRefs = new AtomicInteger(0);
+    private volatile String mName = null;
+    private volatile float mGain = 1f;
+    private volatile boolean mRetired = false;
+    private volatile boolean mTakingOver = false;
+    /* timestamped sources only, mClockBaseFrame is the stream frame of the first ring frame */
+    private volatile PresentationClock mClock = null;
+    private long mClockBaseFrame;
+    private volatile long mSyncErrorNs = 0;
+
+    /* AudioWriter thread only */
+    private boolean mPrebuffering;
+    private long mPrebufferStartNs;
+    private boolean mEnding;
+    private boolean mFadingOut;
+    private boolean mEnded;
+    private long mUnderruns;
+    private long mPresentationNs;
+    private long mSyncDrops;
+    /* the next block mixed is the first one after a prebuffering */
+    private boolean mSyncStart;
+
+    /*
+     * targetFillInFrames is the fill the drift correction keeps the ring at, below its capacity.
+     * maxInFrames is the largest block mixed at once. router maps the channels of the stream to
+     * the ones of the mix, converterFilter converts sampleRate to the rate of the mix, both are
+     * null if they are the same.
+     */
+    PcmSource(int index, int ringSizeInBytes, int targetFillInFrames, int encoding,
+              int inChannels, int frameSize, int sampleRate, int maxInFrames, ChannelRouter router,
+              PolyphaseResampler.Filter converterFilter) {
+        this.index = index;
+        ring = new PcmRingBuffer(ringSizeInBytes, frameSize);
+        mEncoding = encoding;
+        mSampleRate = sampleRate;
+        mInChannels = inChannels;
+        final int channels = router != null ? router.getOutChannels() : inChannels;
+        mChannels = channels;
+        mFrameSize = frameSize;
+        mMaxInFrames = maxInFrames;
+        mDriftEstimator = new DriftEstimator(sampleRate, targetFillInFrames);
+        mSilence = new SilenceDetector(encoding, frameSize);
+        ring.setSilenceDetector(mSilence);
+        mResampler = new FractionalResampler(channels, maxInFrames);
+        mBytes = new byte[maxInFrames * frameSize];
+        mInFloats = new float[maxInFrames * inChannels];
+        mRouter = router;
+        mRoutedFloats = router != null ? new float[maxInFrames * channels] : null;
+        final int maxDriftFrames = maxInFrames * 2 + 8;
+        mConverterFilter = converterFilter;
+        if (converterFilter != null) {
+            mConverter = new PolyphaseResampler(converterFilter, channels, maxDriftFrames);
+            mDriftFloats = new float[maxDriftFrames * channels];
+            mFifo = new float[(maxInFrames + converterFilter.getMaxOutFrames(maxDriftFrames)) *
+                    channels];
+        } else {
+            mConverter = null;
+            mDriftFloats = null;
+            mFifo = new float[maxDriftFrames * channels];
+        }
+        mLastFrame = new float[channels];
+        mMixRate = converterFilter != null ? converterFilter.outRate : sampleRate;
+        mConcealFrames = Math.max(mMixRate * sConcealMs / 1000, 1);
+        mCrossfadeFrames = Math.max(mMixRate * sCrossfadeMs / 1000, 1);
+    }
+
+    /*
+     * Network thread: take this source if it is free. A source taking over ends every other one
+     * once it starts playing.
+     */
+    boolean tryAcquire(String name, boolean takeover) {
+        /* claim it, reset it, then publish it to the AudioWriter */
+        if (!mRefs.compareAndSet(0, -1))
+            return false;
+        mName = name;
+        mGain = 1f;
+        mRetired = false;
+        mTakingOver = takeover;
+        mClock = null;
+        mSyncErrorNs = 0;
+        mSyncDrops = 0;
+        mSyncStart = false;
+        mPresentationNs = 0;
+        ring.reset();
+        mSilence.reset();
+        mDriftEstimator.reset();
+        mResampler.reset();
+        if (mConverter != null)
+            mConverter.reset();
+        mFifoFrames = 0;
+        Arrays.fill(mLastFrame, 0f);
+        mConcealPos = mConcealFrames;
+        mFadeInPos = 0;
+        mFadeInFrames = mCrossfadeFrames;
+        mFadeOutPos = 0;
+        mPrebuffering = true;
+        mPrebufferStartNs = 0;
+        mEnding = mFadingOut = mEnded = false;
+        mUnderruns = 0;
+        mRefs.set(2);
+        return true;
+    }
+
+    /* Called once by the producer and once by the AudioWriter when they are done */
+    void release() {
+        mRefs.decrementAndGet();
+    }
+
+    boolean isActive() {
+        return mRefs.get() > 0;
+    }
+
+    /*
+     * AudioWriter being replaced: the producer should end this source and continue into a source
+     * of the new AudioWriter, this one still plays what it buffered.
+     */
+    void retire() {
+        mRetired = true;
+    }
+
+    boolean isRetired() {
+        return mRetired;
+    }
+
+    boolean isTakingOver() {
+        return mTakingOver;
+    }
+
+    /* AudioWriter thread: the other sources were ended */
+    void endTakeover() {
+        mTakingOver = false;
+    }
+
+    /* AudioWriter thread: end now, dropping what was not mixed, and abort the producer */
+    void abort() {
+        ring.close();
+        mEnded = true;
+        mFifoFrames = 0;
+    }
+
+    /* AudioWriter thread: fade out over the next blocks, then abort */
+    void fadeOut() {
+        if (mFadingOut || mEnded)
+            return;
+        mFadingOut = true;
+        mFadeOutPos = 0;
+    }
+
+    boolean isFadingOut() {
+        return mFadingOut;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /*
+     * Producer, before writing into the ring: schedule this source against clock. baseFrame is
+     * the frame of the stream the ring starts with.
+     */
+    void setClock(PresentationClock clock, long baseFrame) {
+        mClockBaseFrame = baseFrame;
+        mClock = clock;
+    }
+
+    boolean isTimestamped() {
+        return mClock != null;
+    }
+
+    /* AudioWriter thread, before mixInto(): local time at which the next block will be heard */
+    void setPresentationTime(long presentationNs) {
+        mPresentationNs = presentationNs;
+    }
+
+    /* Last error to the presentation times, positive when late */
+    long getSyncErrorNs() {
+        return mSyncErrorNs;
+    }
+
+    /* Times frames were dropped or silence inserted to catch up */
+    long getSyncDropCount() {
+        return mSyncDrops;
+    }
+
+    void setGain(float gain) {
+        mGain = gain;
+    }
+
+    float getGain() {
+        return mGain;
+    }
+
+    double getDriftPpm() {
+        return mDriftEstimator.getDriftPpm();
+    }
+
+    long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    /* Frames of digital silence written last, in frames of the stream */
+    long getSilentFrames() {
+        return mSilence.getSilentFrames();
+    }
+
+    /*
+     * AudioWriter thread, instead of mixInto() while the AudioTrack is paused on silence: keep
+     * the newest frames up to the target fill, the ones to resume with, and drop the older ones.
+     */
+    void holdSilence() {
+        skipFrames(ring.getFill() / mFrameSize - mDriftEstimator.getTargetFill());
+        /* the time paused says nothing about the drift */
+        mDriftEstimator.restartClock();
+    }
+
+    /* AudioWriter thread: true once the stream ended and everything was mixed */
+    boolean isEnded() {
+        return mEnded;
+    }
+
+    boolean isPlaying() {
+        return !mPrebuffering && !mEnded;
+    }
+
+    /*
+     * AudioWriter thread: add frames of this source into mix, applying its gain. Returns false
+     * while prebuffering (nothing was added). A gap is concealed: the last frame decays to silence
+     * within a few ms instead of being cut, and the source fades in when it plays again. The end of
+     * the stream is concealed the same way before the source ends.
+     */
+    boolean mixInto(float[] mix, int frames, long nowNs) {
+        if (mEnded)
+            return false;
+        if (mEnding || (mPrebuffering && mFadingOut)) {
+            /* nothing more will be mixed, only the decay of the last frame is left */
+            if (conceal(mix, 0, frames, mGain) > 0)
+                return true;
+            if (mFadingOut)
+                abort();
+            mEnded = true;
+            return false;
+        }
+        if (mPrebuffering) {
+            /* wait for the jitter buffer to refill, or the end of the stream */
+            if (mPrebufferStartNs == 0)
+                mPrebufferStartNs = nowNs;
+            final boolean due = ring.getFill() >= mFrameSize && getLateFrames() != sNoSync;
+            if (!due && ring.getFill() < mDriftEstimator.getTargetFill() * mFrameSize &&
+                    !ring.isClosed() && !ring.isEndOfStream() &&
+                    nowNs - mPrebufferStartNs < sPrebufferTimeoutNs)
+                return conceal(mix, 0, frames, mGain) > 0;
+            mPrebuffering = false;
+            mSyncStart = true;
+            mConcealPos = mConcealFrames;
+        }
+
+        int syncFill = -1;
+        final long late = getLateFrames();
+        if (late != sNoSync && mSyncStart) {
+            final long earlyFrames = -late * mMixRate / mSampleRate;
+            if (earlyFrames >= frames) {
+                conceal(mix, 0, frames, mGain);
+                return true;
+            }
+            mSyncStart = false;
+            if (earlyFrames > 0) {
+                /* start within this block */
+                final int silence = (int) earlyFrames;
+                System.arraycopy(mFifo, 0, mFifo, silence * mChannels, mFifoFrames * mChannels);
+                Arrays.fill(mFifo, 0, silence * mChannels, 0f);
+                mFifoFrames += silence;
+            } else if (late > 0)
+                dropFrames(mix, frames, late);
+        } else if (late != sNoSync) {
+            final int slewFrames = mSampleRate * sSyncSlewMs / 1000;
+            if (late < -slewFrames) {
+                /* early: play silence until the source is due */
+                conceal(mix, 0, frames, mGain);
+                return true;
+            }
+            if (late > slewFrames)
+                dropFrames(mix, frames, late);
+            else
+                syncFill = (int) Math.max(mDriftEstimator.getTargetFill() + late, 0);
+        }
+
+        boolean gap = false;
+        while (mFifoFrames < frames) {
+            final double ratio = mDriftEstimator.update(nowNs,
+                    syncFill >= 0 ? syncFill : ring.getFill() / mFrameSize);
+            mResampler.setRatio(ratio);
+            final int missing = mConverterFilter != null ?
+                    mConverterFilter.getInFrames(frames - mFifoFrames) : frames - mFifoFrames;
+            final int needed = Math.min((int) Math.ceil(missing * ratio) + 1, mMaxInFrames);
+            final int read = ring.read(mBytes, 0, needed * mFrameSize, 0);
+            if (read == -1) {
+                mEnding = true;
+                gap = true;
+                break;
+            }
+            if (read == 0) {
+                /* underrun: play what is left then rebuffer */
+                mUnderruns++;
+                mPrebuffering = true;
+                mPrebufferStartNs = nowNs;
+                gap = true;
+                break;
+            }
+            final int inFrames = read / mFrameSize;
+            PcmConverter.toFloat(mEncoding, mBytes, 0, mInFloats, inFrames * mInChannels);
+            float[] floats = mInFloats;
+            if (mRouter != null) {
+                mRouter.process(mInFloats, inFrames, mRoutedFloats);
+                floats = mRoutedFloats;
+            }
+            if (mConverter == null) {
+                mFifoFrames += mResampler.process(floats, inFrames, mFifo, mFifoFrames,
+                        mResampler.getMaxOutFrames(inFrames));
+                continue;
+            }
+            final int driftFrames = mResampler.process(floats, inFrames, mDriftFloats, 0,
+                    mResampler.getMaxOutFrames(inFrames));
+            mFifoFrames += mConverter.process(mDriftFloats, driftFrames, mFifo, mFifoFrames,
+                    mConverterFilter.getMaxOutFrames(driftFrames));
+        }
+
+        int mixed = Math.min(mFifoFrames, frames);
+        if (mFadingOut)
+            mixed = Math.min(mixed, mCrossfadeFrames - mFadeOutPos);
+        final int count = mixed * mChannels;
+        final float gain = mGain;
+        int i = 0;
+        if (mFadingOut) {
+            for (; i < count; i += mChannels, mFadeOutPos++) {
+                final float fadeGain = gain * (mCrossfadeFrames - mFadeOutPos - 1) / mCrossfadeFrames *
+                        Math.min(mFadeInPos + 1 + i / mChannels, mFadeInFrames) / mFadeInFrames;
+                for (int c = 0; c < mChannels; ++c)
+                    mix[i + c] += mFifo[i + c] * fadeGain;
+            }
+            mFadeInPos = Math.min(mFadeInPos + mixed, mFadeInFrames);
+        }
+        for (; mFadeInPos < mFadeInFrames && i < count; i += mChannels, mFadeInPos++) {
+            final float fadeGain = gain * (mFadeInPos + 1) / mFadeInFrames;
+            for (int c = 0; c < mChannels; ++c)
+                mix[i + c] += mFifo[i + c] * fadeGain;
+        }
+        for (; i < count; ++i)
+            mix[i] += mFifo[i] * gain;
+        if (mixed > 0) {
+            System.arraycopy(mFifo, count - mChannels, mLastFrame, 0, mChannels);
+            if (mFadingOut) {
+                /* a gap during the fade out decays from where the fade is */
+                final float fadeGain = (mCrossfadeFrames - mFadeOutPos) / (float) mCrossfadeFrames;
+                for (int c = 0; c < mChannels; ++c)
+                    mLastFrame[c] *= fadeGain;
+            }
+        }
+        mFifoFrames -= mixed;
+        if (mFifoFrames > 0)
+            System.arraycopy(mFifo, count, mFifo, 0, mFifoFrames * mChannels);
+
+        if (mFadingOut && mFadeOutPos >= mCrossfadeFrames) {
+            /* faded out: nothing is left to conceal */
+            abort();
+            return count > 0;
+        }
+        if (gap) {
+            mConcealPos = 0;
+            mFadeInPos = 0;
+            mFadeInFrames = mConcealFrames;
+            final boolean concealed = conceal(mix, mixed, frames - mixed, gain) > 0;
+            if (mEnding && mConcealPos >= mConcealFrames)
+                mEnded = true;
+            return concealed || count > 0;
+        }
+        return count > 0;
+    }
+
+    /*
+     * Frames between the presentation time given by the AudioWriter and the one of the next frame
+     * to mix, positive when late, sNoSync if the source is not scheduled (yet).
+     */
+    private long getLateFrames() {
+        final PresentationClock clock = mClock;
+        if (clock == null || mPresentationNs == 0)
+            return sNoSync;
+        /* frames read from the ring but not mixed yet, in stream frames */
+        long pending = (long) mFifoFrames * mSampleRate / mMixRate + 2;
+        if (mConverter != null)
+            pending += PolyphaseResampler.TAPS / 2;
+        final long frame = mClockBaseFrame + ring.getReadBytes() / mFrameSize - pending;
+        final long targetNs = clock.getLocalTimeNs(frame);
+        if (targetNs == PresentationClock.UNKNOWN)
+            return sNoSync;
+        final long errorNs = mPresentationNs - targetNs;
+        mSyncErrorNs = errorNs;
+        return errorNs * mSampleRate / 1000000000L;
+    }
+
+    /* Catch up at once: drop up to count frames, what was playing decays into the next ones */
+    private void dropFrames(float[] mix, int frames, long count) {
+        mSyncDrops++;
+        mConcealPos = 0;
+        conceal(mix, 0, frames, mGain);
+        mFadeInPos = 0;
+        mFadeInFrames = mConcealFrames;
+        mFifoFrames = 0;
+        mResampler.reset();
+        if (mConverter != null)
+            mConverter.reset();
+        skipFrames(count);
+    }
+
+    /* Drop up to count frames of the ring */
+    private void skipFrames(long count) {
+        while (count > 0) {
+            final int read = ring.read(mBytes, 0, (int) Math.min(count, mMaxInFrames) * mFrameSize, 0);
+            if (read <= 0)
+                break;
+            count -= read / mFrameSize;
+        }
+    }
+
+    /* Continue the decay of the last frame into a gap, returns the number of frames concealed */
+    private int conceal(float[] mix, int offset, int frames, float gain) {
+        final int concealed = Math.min(frames, mConcealFrames - mConcealPos);
+        for (int f = 0; f < concealed; ++f, ++mConcealPos) {
+            final float decay = gain * (mConcealFrames - mConcealPos - 1) / mConcealFrames;
+            final int base = (offset + f) * mChannels;
+            for (int c = 0; c < mChannels; ++c)
+                mix[base + c] += mLastFrame[c] * decay;
+        }
+        return concealed;
+    }
+}
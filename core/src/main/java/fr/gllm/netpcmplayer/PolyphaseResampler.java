@@ -0,0 +1,196 @@
+/*
+ *  PolyphaseResampler  Windowed sinc sample rate converter for fixed rate ratios
+ *  Copyright (c)       2017 Thomas Guillem <thomas@gllm.fr>
+ *                      All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * The ratio inRate / outRate is reduced to M / L: output frame n is at input position n * M / L,
+ * tracked exactly as an integer frame and a numerator over L. Each position is filtered by one
+ * of the phases of a Kaiser windowed sinc, cut below the lowest of the two Nyquist frequencies.
+ * The phases are precomputed in a Filter shared by every resampler of the same rates; when L is
+ * too large for a table (unusual rates), the nearest of MAX_PHASES phases is used.
+ * The output is TAPS / 2 input frames late.
+ */
+final class PolyphaseResampler {
+
+    static final int TAPS = 32;
+    static final int MAX_PHASES = 512;
+    private static final double sKaiserBeta = 8.6;
+    /* fraction of the lowest Nyquist frequency kept, the transition band is above */
+    private static final double sPassband = 0.91;
+    private static final int sHistory = TAPS / 2 - 1;
+
+    /* Precomputed phases for one rate pair, immutable */
+    static final class Filter {
+        final int inRate;
+        final int outRate;
+        /* input frames advanced per output frame: mStep / mDenominator */
+        private final int mStep;
+        private final int mDenominator;
+        private final int mPhases;
+        /* TAPS coefficients per phase, phase after phase */
+        private final float[] mCoefs;
+
+        Filter(int inRate, int outRate) {
+            if (inRate <= 0 || outRate <= 0)
+                throw new IllegalArgumentException("invalid rates: " + inRate + " -> " + outRate);
+            this.inRate = inRate;
+            this.outRate = outRate;
+            final int gcd = gcd(inRate, outRate);
+            mStep = inRate / gcd;
+            mDenominator = outRate / gcd;
+            mPhases = Math.min(mDenominator, MAX_PHASES);
+            mCoefs = new float[mPhases * TAPS];
+
+            final double cutoff = sPassband * Math.min(1.0, (double) outRate / inRate);
+            final double i0Beta = besselI0(sKaiserBeta);
+            for (int p = 0; p < mPhases; ++p) {
+                final double frac = (double) p / mPhases;
+                double sum = 0;
+                for (int k = 0; k < TAPS; ++k) {
+                    /* distance in input frames between tap k and the output position */
+                    final double x = k - sHistory - frac;
+                    final double r = x / (TAPS / 2);
+                    final double window = r * r >= 1 ? 0 :
+                            besselI0(sKaiserBeta * Math.sqrt(1 - r * r)) / i0Beta;
+                    final double coef = cutoff * sinc(cutoff * x) * window;
+                    mCoefs[p * TAPS + k] = (float) coef;
+                    sum += coef;
+                }
+                /* unity gain at DC for every phase */
+                for (int k = 0; k < TAPS; ++k)
+                    mCoefs[p * TAPS + k] /= sum;
+            }
+        }
+
+        /* Output frames produced for inFrames of input, with margin */
+        int getMaxOutFrames(int inFrames) {
+            return (int) ((long) inFrames * mDenominator / mStep) + 2;
+        }
+
+        /* Input frames needed for outFrames of output, with margin */
+        int getInFrames(int outFrames) {
+            return (int) (((long) outFrames * mStep + mDenominator - 1) / mDenominator) + 1;
+        }
+    }
+
+    private final Filter mFilter;
+    private final int mChannels;
+    private final float[] mWork;
+    private int mWorkFrames;
+    /* position of the next output frame: mPos + mFrac / denominator, in mWork frames */
+    private int mPos;
+    private int mFrac;
+
+    PolyphaseResampler(Filter filter, int channels, int maxInFrames) {
+        mFilter = filter;
+        mChannels = channels;
+        mWork = new float[(maxInFrames + TAPS + 1) * channels];
+        reset();
+    }
+
+    void reset() {
+        /* silence before the first frame, for the taps on the left of the first outputs */
+        for (int i = 0; i < sHistory * mChannels; ++i)
+            mWork[i] = 0f;
+        mWorkFrames = sHistory;
+        mPos = sHistory;
+        mFrac = 0;
+    }
+
+    /*
+     * Consume all inFrames (at most the maxInFrames given at creation) and return the number of
+     * frames written to out, starting at frame outOffset. maxOutFrames must be at least
+     * getMaxOutFrames(inFrames) of the filter.
+     */
+    int process(float[] in, int inFrames, float[] out, int outOffset, int maxOutFrames) {
+        final int channels = mChannels;
+        final float[] work = mWork;
+        final float[] coefs = mFilter.mCoefs;
+        final int step = mFilter.mStep;
+        final int denominator = mFilter.mDenominator;
+        final int phases = mFilter.mPhases;
+        final int intStep = step / denominator;
+        final int fracStep = step % denominator;
+        System.arraycopy(in, 0, work, mWorkFrames * channels, inFrames * channels);
+        mWorkFrames += inFrames;
+
+        int outFrames = 0;
+        int outIdx = outOffset * channels;
+        int pos = mPos;
+        int frac = mFrac;
+        /* the last tap of position pos is frame pos + TAPS / 2 */
+        while (outFrames < maxOutFrames && pos + TAPS / 2 < mWorkFrames) {
+            int phase = phases == denominator ? frac :
+                    (int) (((long) frac * phases + denominator / 2) / denominator);
+            int first = pos - sHistory;
+            if (phase == phases) {
+                phase = 0;
+                first++;
+            }
+            final int coefBase = phase * TAPS;
+            for (int c = 0; c < channels; ++c) {
+                float acc = 0f;
+                int idx = first * channels + c;
+                for (int k = 0; k < TAPS; ++k, idx += channels)
+                    acc += coefs[coefBase + k] * work[idx];
+                out[outIdx++] = acc;
+            }
+            ++outFrames;
+            pos += intStep;
+            frac += fracStep;
+            if (frac >= denominator) {
+                frac -= denominator;
+                pos++;
+            }
+        }
+
+        /* keep the frames still needed by the next outputs */
+        final int keepFrom = Math.min(pos - sHistory, mWorkFrames);
+        final int keep = mWorkFrames - keepFrom;
+        if (keep > 0 && keepFrom > 0)
+            System.arraycopy(work, keepFrom * channels, work, 0, keep * channels);
+        mWorkFrames = keep;
+        mPos = pos - keepFrom;
+        mFrac = frac;
+        return outFrames;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0)
+            return 1;
+        final double px = Math.PI * x;
+        return Math.sin(px) / px;
+    }
+
+    /* Modified Bessel function of the first kind, order 0 */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        final double halfX = x / 2;
+        for (int k = 1; k < 64; ++k) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12)
+                break;
+        }
+        return sum;
+    }
+}
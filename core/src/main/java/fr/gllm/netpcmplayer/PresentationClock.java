@@ -0,0 +1,81 @@
+/*
+ *  PresentationClock When each frame of a timestamped stream should be heard
+ *  Copyright (c)     2017 Thomas Guillem <thomas@gllm.fr>
+ *                    All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * The stream reader anchors a frame of the stream (counted from its first one) to the
+ * presentation time the sender gave it; the following frames are played at the nominal rate
+ * from there. The anchor is published with a sequence lock: the reader never waits and the
+ * AudioWriter retries in the rare case it read a half updated anchor.
+ */
+final class PresentationClock {
+
+    static final long UNKNOWN = Long.MIN_VALUE;
+
+    private final ClockSync mSync;
+    private final int mSampleRate;
+    private final int mFrameSize;
+
+    private volatile int mVersion = 0;
+    private volatile long mAnchorFrame;
+    private volatile long mAnchorPtsNs;
+    private volatile boolean mAnchored = false;
+    /* reader thread only, published through mDeliveredFrames */
+    private long mDeliveredBytes = 0;
+    private volatile long mDeliveredFrames = 0;
+
+    PresentationClock(ClockSync sync, int sampleRate, int frameSize) {
+        mSync = sync;
+        mSampleRate = sampleRate;
+        mFrameSize = frameSize;
+    }
+
+    /* Reader thread: the next payload byte starts a frame presented at ptsNs, sender clock */
+    void onAnchor(long ptsNs) {
+        mVersion++;
+        mAnchorFrame = mDeliveredBytes / mFrameSize;
+        mAnchorPtsNs = ptsNs;
+        mAnchored = true;
+        mVersion++;
+    }
+
+    /* Reader thread: bytes of payload returned by the stream */
+    void onPayload(int bytes) {
+        mDeliveredBytes += bytes;
+        mDeliveredFrames = mDeliveredBytes / mFrameSize;
+    }
+
+    /* Frames of the stream delivered so far, where a source taking the stream over starts */
+    long getDeliveredFrames() {
+        return mDeliveredFrames;
+    }
+
+    ClockSync getSync() {
+        return mSync;
+    }
+
+    /* Local time (System.nanoTime()) at which frame should be heard, UNKNOWN before the sync */
+    long getLocalTimeNs(long frame) {
+        if (!mAnchored || !mSync.isSynced())
+            return UNKNOWN;
+        long anchorFrame;
+        long anchorPts;
+        int version;
+        do {
+            version = mVersion;
+            anchorFrame = mAnchorFrame;
+            anchorPts = mAnchorPtsNs;
+        } while ((version & 1) != 0 || version != mVersion);
+        return anchorPts - mSync.getOffsetNs() +
+                (frame - anchorFrame) * 1000000000L / mSampleRate;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ *  RtpReceiver   RTP L8/L16/L24 depacketizer with reordering and loss concealment
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * Packets are kept in a small window indexed by sequence number and released in order into the
+ * PCM ring. A missing packet is waited for until either sReorderDepth packets are queued behind
+ * it or sReorderTimeoutNs elapsed, then it is declared lost. Lost frames are counted from the
+ * RTP timestamps and concealed by repeating the last packet with a fade out to silence; the next
+ * good packet fades back in.
+ */
+final class RtpReceiver {
+
+    static final int MAX_PACKET_SIZE = 8192;
+    static final int HEADER_SIZE = 12;
+
+    private static final int sWindowSize = 64; /* power of 2 */
+    private static final int sReorderDepth = 8;
+    private static final long sReorderTimeoutNs = 20000000L;
+
+    private static final class Slot {
+        final byte[] data = new byte[MAX_PACKET_SIZE];
+        boolean valid;
+        int seq;
+        long timestamp;
+        int frames;
+    }
+
+    private PcmRingBuffer mRing;
+    private final int mEncoding;
+    private final int mChannels;
+    private final int mBytesPerSample;
+    private final boolean mSwap;
+    private final int mFrameSize;
+    private final int mFadeFrames;
+    private final int mMaxConcealFrames;
+    private final Slot[] mSlots = new Slot[sWindowSize];
+
+    private boolean mStarted;
+    private long mSsrc;
+    private int mNextSeq;
+    private int mHighestSeq;
+    private int mPending;
+    private long mHoleSinceNs;
+    private long mExpectedTimestamp;
+    private boolean mConcealed;
+    private float mConcealGain;
+
+    /* last delivered packet, source of the concealment */
+    private final float[] mLastFloats;
+    private int mLastFrames;
+    private final float[] mFloats;
+    private final byte[] mBytes;
+
+    private volatile long mReceived;
+    private volatile long mLost;
+    private volatile long mLate;
+    private volatile long mReordered;
+    private volatile long mInvalid;
+    private volatile long mConcealedFrames;
+
+    RtpReceiver(int encoding, int channels, int sampleRate) {
+        mEncoding = encoding;
+        mChannels = channels;
+        mBytesPerSample = PcmConverter.getBytesPerSample(encoding);
+        mFrameSize = mBytesPerSample * channels;
+        mSwap = mBytesPerSample > 1 && !PcmConverter.isBigEndian(encoding);
+        mFadeFrames = Math.max(sampleRate / 100, 1);
+        mMaxConcealFrames = sampleRate;
+        for (int i = 0; i < sWindowSize; ++i)
+            mSlots[i] = new Slot();
+        final int maxSamples = MAX_PACKET_SIZE / mBytesPerSample;
+        mLastFloats = new float[maxSamples];
+        mFloats = new float[maxSamples];
+        mBytes = new byte[MAX_PACKET_SIZE];
+    }
+
+    /* Start a new stream, released into the given ring */
+    void reset(PcmRingBuffer ring) {
+        mRing = ring;
+        for (Slot slot : mSlots)
+            slot.valid = false;
+        mStarted = false;
+        mPending = 0;
+        mHoleSinceNs = 0;
+        mConcealed = false;
+        mLastFrames = 0;
+        mReceived = mLost = mLate = mReordered = mInvalid = mConcealedFrames = 0;
+    }
+
+    long getReceivedCount() {
+        return mReceived;
+    }
+
+    long getLostCount() {
+        return mLost;
+    }
+
+    long getLateCount() {
+        return mLate;
+    }
+
+    long getReorderedCount() {
+        return mReordered;
+    }
+
+    long getInvalidCount() {
+        return mInvalid;
+    }
+
+    long getConcealedFrames() {
+        return mConcealedFrames;
+    }
+
+    /* Parse and queue one datagram. Returns false if the ring was closed. */
+    boolean push(byte[] packet, int length, long nowNs) {
+        if (length < HEADER_SIZE || (packet[0] & 0xc0) != 0x80) {
+            mInvalid++;
+            return !mRing.isClosed();
+        }
+        int headerSize = HEADER_SIZE + 4 * (packet[0] & 0x0f);
+        if ((packet[0] & 0x10) != 0) {
+            if (length < headerSize + 4) {
+                mInvalid++;
+                return !mRing.isClosed();
+            }
+            headerSize += 4 + 4 * (((packet[headerSize + 2] & 0xff) << 8) | (packet[headerSize + 3] & 0xff));
+        }
+        if ((packet[0] & 0x20) != 0)
+            length -= packet[length - 1] & 0xff;
+        final int payloadSize = length - headerSize;
+        if (payloadSize <= 0 || payloadSize % mFrameSize != 0) {
+            mInvalid++;
+            return !mRing.isClosed();
+        }
+
+        final int seq = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+        final long timestamp = readUInt32(packet, 4);
+        final long ssrc = readUInt32(packet, 8);
+        mReceived++;
+
+        if (!mStarted || ssrc != mSsrc) {
+            /* new stream: play what is left of the old one and resync */
+            if (mStarted && !flush())
+                return false;
+            mStarted = true;
+            mSsrc = ssrc;
+            mNextSeq = mHighestSeq = seq;
+            mExpectedTimestamp = timestamp;
+        }
+
+        int distance = (short) (seq - mNextSeq);
+        if (distance < 0) {
+            mLate++;
+            return !mRing.isClosed();
+        }
+        if (distance >= sWindowSize) {
+            /* too far ahead, give up on everything before it */
+            if (!flush())
+                return false;
+            mNextSeq = mHighestSeq = seq;
+            distance = 0;
+        }
+
+        final Slot slot = mSlots[seq & (sWindowSize - 1)];
+        if (slot.valid && slot.seq == seq)
+            return !mRing.isClosed(); /* duplicate */
+        if ((short) (seq - mHighestSeq) < 0)
+            mReordered++;
+        else
+            mHighestSeq = seq;
+        slot.valid = true;
+        slot.seq = seq;
+        slot.timestamp = timestamp;
+        slot.frames = payloadSize / mFrameSize;
+        /* RTP linear payloads are big endian, the ring uses the configured endianness */
+        if (!mSwap)
+            System.arraycopy(packet, headerSize, slot.data, 0, payloadSize);
+        else
+            swapBytes(packet, headerSize, slot.data, payloadSize, mBytesPerSample);
+        mPending++;
+
+        return release(nowNs);
+    }
+
+    /* Release packets waiting behind a hole once it is too old. Returns false if the ring was closed. */
+    boolean poll(long nowNs) {
+        return release(nowNs);
+    }
+
+    private boolean release(long nowNs) {
+        while (mPending > 0) {
+            final Slot slot = mSlots[mNextSeq & (sWindowSize - 1)];
+            if (slot.valid && slot.seq == mNextSeq) {
+                if (!deliver(slot))
+                    return false;
+                mHoleSinceNs = 0;
+                continue;
+            }
+            if (mHoleSinceNs == 0)
+                mHoleSinceNs = nowNs;
+            if (mPending < sReorderDepth && nowNs - mHoleSinceNs < sReorderTimeoutNs)
+                break;
+            mLost++;
+            mNextSeq = (mNextSeq + 1) & 0xffff;
+        }
+        return !mRing.isClosed();
+    }
+
+    /* Deliver every queued packet, in order */
+    private boolean flush() {
+        while (mPending > 0) {
+            final Slot slot = mSlots[mNextSeq & (sWindowSize - 1)];
+            if (slot.valid && slot.seq == mNextSeq) {
+                if (!deliver(slot))
+                    return false;
+            } else {
+                mLost++;
+                mNextSeq = (mNextSeq + 1) & 0xffff;
+            }
+        }
+        mHoleSinceNs = 0;
+        return true;
+    }
+
+    private boolean deliver(Slot slot) {
+        slot.valid = false;
+        mPending--;
+        mNextSeq = (mNextSeq + 1) & 0xffff;
+
+        final int gap = (int) (slot.timestamp - mExpectedTimestamp);
+        if (gap > 0 && gap <= mMaxConcealFrames && mLastFrames > 0) {
+            if (!conceal(gap))
+                return false;
+        }
+        mExpectedTimestamp = (slot.timestamp + slot.frames) & 0xffffffffL;
+
+        final int samples = slot.frames * mChannels;
+        if (mConcealed) {
+            /* fade back in from where the concealment left off */
+            PcmConverter.toFloat(mEncoding, slot.data, 0, mFloats, samples);
+            final int fadeFrames = Math.min(slot.frames, mFadeFrames);
+            for (int f = 0, i = 0; f < fadeFrames; ++f) {
+                final float gain = mConcealGain + (1f - mConcealGain) * f / fadeFrames;
+                for (int c = 0; c < mChannels; ++c, ++i)
+                    mFloats[i] *= gain;
+            }
+            PcmConverter.fromFloat(mEncoding, mFloats, samples, slot.data, 0);
+            mConcealed = false;
+        }
+
+        PcmConverter.toFloat(mEncoding, slot.data, 0, mLastFloats, samples);
+        mLastFrames = slot.frames;
+        return mRing.write(slot.data, 0, slot.frames * mFrameSize);
+    }
+
+    private boolean conceal(int frames) {
+        if (!mConcealed) {
+            mConcealed = true;
+            mConcealGain = 1f;
+        }
+        mConcealedFrames += frames;
+        final float step = 1f / mFadeFrames;
+        while (frames > 0) {
+            final int count = Math.min(frames, mLastFrames);
+            for (int f = 0, i = 0; f < count; ++f) {
+                final float gain = mConcealGain;
+                for (int c = 0; c < mChannels; ++c, ++i)
+                    mFloats[i] = mLastFloats[i] * gain;
+                mConcealGain = gain > step ? gain - step : 0f;
+            }
+            PcmConverter.fromFloat(mEncoding, mFloats, count * mChannels, mBytes, 0);
+            if (!mRing.write(mBytes, 0, count * mFrameSize))
+                return false;
+            frames -= count;
+        }
+        return true;
+    }
+
+    private static long readUInt32(byte[] b, int offset) {
+        return ((long) (b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) |
+                ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private static void swapBytes(byte[] src, int srcOffset, byte[] dst, int length, int width) {
+        for (int i = 0; i < length; i += width)
+            for (int j = 0; j < width; ++j)
+                dst[i + j] = src[srcOffset + i + width - 1 - j];
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  SilenceDetector Length of the digital silence at the end of a stream
+ *  Copyright (c)   2017 Thomas Guillem <thomas@gllm.fr>
+ *                  All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.nio.ByteBuffer;
+
+/*
+ * The producer of a ring scans what it writes before publishing it: the bytes are ORed 8 at a
+ * time, and the scan stops at the first group of words that isn't silent, so that audio costs
+ * a few words per write and only silence is read in full. Digital silence is all zero bytes, or
+ * 0x80 for unsigned 8 bits; dither or a -0.0f float is sound. A write with any sound in it ends
+ * the silence, even if it ends silent: the run is at most one write short. The consumer reads
+ * the length of the run, published after the scan and before the bytes: once it sees frames in
+ * the ring, their scan is accounted for. The ring scans its own array after the copy, so the
+ * view over it is made once, whatever array the producer copies from.
+ */
+final class SilenceDetector {
+
+    private static final int sGroupBytes = 64;
+
+    private final long mSilentWord;
+    private final int mFrameSize;
+    /* producer only */
+    private byte[] mArray = null;
+    private ByteBuffer mView = null;
+    private long mRunBytes = 0;
+    private volatile long mSilentFrames = 0;
+
+    SilenceDetector(int encoding, int frameSize) {
+        mSilentWord = encoding == PcmConverter.ENCODING_PCM_8BIT ? 0x8080808080808080L : 0L;
+        mFrameSize = frameSize;
+    }
+
+    /* Producer, before the first write */
+    void reset() {
+        mRunBytes = 0;
+        mSilentFrames = 0;
+    }
+
+    /* Producer: account for length bytes about to be published, always from the same array */
+    void scan(byte[] b, int offset, int length) {
+        if (isSilent(b, offset, length))
+            mRunBytes += length;
+        else
+            mRunBytes = 0;
+        mSilentFrames = mRunBytes / mFrameSize;
+    }
+
+    /* Frames of silence since the last sound (or the start) */
+    long getSilentFrames() {
+        return mSilentFrames;
+    }
+
+    private boolean isSilent(byte[] b, int offset, int length) {
+        if (b != mArray) {
+            /* the ring scans its own array: wrapped once, on the first scan */
+            mArray = b;
+            mView = ByteBuffer.wrap(b);
+        }
+        final ByteBuffer view = mView;
+        final long silent = mSilentWord;
+        final int end = offset + length;
+        int i = offset;
+        for (; i + sGroupBytes <= end; i += sGroupBytes) {
+            final long acc = (view.getLong(i) ^ silent) | (view.getLong(i + 8) ^ silent) |
+                    (view.getLong(i + 16) ^ silent) | (view.getLong(i + 24) ^ silent) |
+                    (view.getLong(i + 32) ^ silent) | (view.getLong(i + 40) ^ silent) |
+                    (view.getLong(i + 48) ^ silent) | (view.getLong(i + 56) ^ silent);
+            if (acc != 0)
+                return false;
+        }
+        long acc = 0;
+        for (; i + 8 <= end; i += 8)
+            acc |= view.getLong(i) ^ silent;
+        for (; i < end; ++i)
+            acc |= (b[i] ^ (byte) silent) & 0xff;
+        return acc == 0;
+    }
+}
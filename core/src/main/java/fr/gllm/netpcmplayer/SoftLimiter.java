@@ -0,0 +1,77 @@
+/*
+ *  SoftLimiter   Peak limiter with a soft knee below the ceiling
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+/*
+ * The peak of each frame, over all channels so that the image doesn't move, is mapped through a
+ * curve that is linear up to the knee and then bends exponentially towards the ceiling, which it
+ * never reaches. The gain this takes is applied at once (no look ahead, so no added latency) and
+ * released back to unity with a time constant of sReleaseMs, so that the limiting doesn't
+ * follow the waveform. The output never exceeds the ceiling.
+ */
+final class SoftLimiter implements DspStage {
+
+    private static final float sKnee = 0.5f;        /* -6 dBFS */
+    private static final float sCeiling = 0.944f;   /* -0.5 dBFS */
+    private static final int sReleaseMs = 80;
+
+    private final int mChannels;
+    private final float mRelease;
+    private volatile boolean mEnabled = false;
+    /* processing thread only */
+    private float mEnvelope = 1f;
+
+    SoftLimiter(int channels, int sampleRate) {
+        mChannels = channels;
+        mRelease = (float) Math.exp(-1000.0 / (sReleaseMs * (double) sampleRate));
+    }
+
+    @Override
+    public String getName() {
+        return "limiter";
+    }
+
+    /* Any thread */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    @Override
+    public void process(float[] block, int frames) {
+        if (!mEnabled) {
+            mEnvelope = 1f;
+            return;
+        }
+        final int channels = mChannels;
+        final float range = sCeiling - sKnee;
+        float envelope = mEnvelope;
+        for (int i = 0, count = frames * channels; i < count; i += channels) {
+            float peak = 0f;
+            for (int c = 0; c < channels; ++c)
+                peak = Math.max(peak, Math.abs(block[i + c]));
+            float gain = 1f;
+            if (peak > sKnee)
+                gain = (sKnee + range * (1f - (float) Math.exp((sKnee - peak) / range))) / peak;
+            envelope = gain < envelope ? gain : gain + (envelope - gain) * mRelease;
+            if (envelope == 1f)
+                continue;
+            for (int c = 0; c < channels; ++c)
+                block[i + c] *= envelope;
+        }
+        mEnvelope = envelope;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 1f;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *  StreamHeader  Optional format header at the start of a TCP stream
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
+
+/*
+ * A stream may start with either:
+ *  - "NPCM", then the sample rate, the AudioFormat channel mask and the encoding (see
+ *    PcmConverter), as 32 bits big endian integers,
+ *  - "NPCL", the same fields, then frames of the lossless format described in LosslessDecoder,
+ *  - "NPCF", the same fields, then PCM in chunks that allow keepalives (see FramedInputStream),
+ *  - "NPCT", the same fields and the UDP port of the sender clock (see ClockSync), then PCM in
+ *    chunks carrying their presentation time, for receivers playing in sync,
+ *  - a WAV RIFF header, up to the start of its data chunk.
+ * Anything else is raw PCM in the configured format, the peeked bytes are pushed back.
+ */
+final class StreamHeader {
+
+    static final int MAGIC_SIZE = 4;
+    static final int CODEC_NONE = 0;
+    static final int CODEC_LOSSLESS = 1;
+    static final int CODEC_FRAMED = 2;
+    static final int CODEC_TIMESTAMPED = 3;
+    private static final int sMagicNpcm = 0x4e50434d; /* "NPCM" */
+    private static final int sMagicNpcl = 0x4e50434c; /* "NPCL" */
+    private static final int sMagicNpcf = 0x4e504346; /* "NPCF" */
+    private static final int sMagicNpct = 0x4e504354; /* "NPCT" */
+    private static final int sMagicRiff = 0x52494646; /* "RIFF" */
+    private static final int sMagicWave = 0x57415645; /* "WAVE" */
+    private static final int sChunkFmt = 0x666d7420;  /* "fmt " */
+    private static final int sChunkData = 0x64617461; /* "data" */
+    private static final int sWavFormatPcm = 1;
+    private static final int sWavFormatFloat = 3;
+    private static final int sWavFormatExtensible = 0xfffe;
+    private static final int sMaxChunkSkip = 1 << 20;
+    /* AudioFormat channel masks */
+    private static final int sChannelMono = 0x4;
+    private static final int sChannelStereo = 0xc;
+    private static final int sChannelQuad = 0xcc;
+    private static final int sChannel5Point1 = 0xfc;
+    private static final int sChannel7Point1 = 0x18fc;
+
+    final int sampleRate;
+    final int channelMask;
+    final int encoding;
+    /* encoding is the one of the decoded PCM when the stream is compressed or framed */
+    final int codec;
+    /* UDP port of the sender clock, 0 unless timestamped */
+    final int clockPort;
+
+    private StreamHeader(int sampleRate, int channelMask, int encoding, int codec) {
+        this(sampleRate, channelMask, encoding, codec, 0);
+    }
+
+    private StreamHeader(int sampleRate, int channelMask, int encoding, int codec, int clockPort) {
+        this.sampleRate = sampleRate;
+        this.channelMask = channelMask;
+        this.encoding = encoding;
+        this.codec = codec;
+        this.clockPort = clockPort;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + " Hz, mask: 0x" + Integer.toHexString(channelMask) + ", encoding: " +
+                encoding + (codec == CODEC_LOSSLESS ? ", lossless" :
+                (codec == CODEC_FRAMED ? ", framed" :
+                (codec == CODEC_TIMESTAMPED ? ", timestamped, clock port: " + clockPort : "")));
+    }
+
+    /*
+     * Parse the header at the start of the stream, is must be able to push back MAGIC_SIZE bytes.
+     * Returns null if the stream has no header, throws a ProtocolException if it is malformed.
+     */
+    static StreamHeader read(PushbackInputStream is) throws IOException {
+        final byte[] magic = new byte[MAGIC_SIZE];
+        int count = 0;
+        while (count < MAGIC_SIZE) {
+            final int read = is.read(magic, count, MAGIC_SIZE - count);
+            if (read == -1)
+                break;
+            count += read;
+        }
+        if (count < MAGIC_SIZE) {
+            is.unread(magic, 0, count);
+            return null;
+        }
+
+        switch (readIntBE(magic, 0)) {
+            case sMagicNpcm:
+                return new StreamHeader(readIntBE(is), readIntBE(is), readIntBE(is), CODEC_NONE);
+            case sMagicNpcf:
+                return new StreamHeader(readIntBE(is), readIntBE(is), readIntBE(is), CODEC_FRAMED);
+            case sMagicNpct: {
+                final StreamHeader header = new StreamHeader(readIntBE(is), readIntBE(is),
+                        readIntBE(is), CODEC_TIMESTAMPED, readIntBE(is));
+                if (header.clockPort <= 0 || header.clockPort > 65535)
+                    throw new ProtocolException("invalid clock port: " + header.clockPort);
+                return header;
+            }
+            case sMagicNpcl: {
+                final StreamHeader header = new StreamHeader(readIntBE(is), readIntBE(is),
+                        readIntBE(is), CODEC_LOSSLESS);
+                if (!LosslessDecoder.isSupported(header.encoding))
+                    throw new ProtocolException("encoding not handled by the lossless codec: " +
+                            header.encoding);
+                return header;
+            }
+            case sMagicRiff:
+                return readWav(is);
+            default:
+                is.unread(magic);
+                return null;
+        }
+    }
+
+    private static StreamHeader readWav(PushbackInputStream is) throws IOException {
+        readIntLE(is); /* RIFF size, meaningless for a live stream */
+        if (readIntBE(is) != sMagicWave)
+            throw new ProtocolException("RIFF stream is not a WAVE");
+
+        StreamHeader header = null;
+        while (true) {
+            final int id = readIntBE(is);
+            final int size = readIntLE(is);
+            if (id == sChunkData) {
+                if (header == null)
+                    throw new ProtocolException("WAVE data chunk before the fmt chunk");
+                return header;
+            }
+            if (id == sChunkFmt) {
+                if (size < 16)
+                    throw new ProtocolException("WAVE fmt chunk too small: " + size);
+                header = readWavFmt(is, size);
+            } else if (size < 0 || size > sMaxChunkSkip) {
+                throw new ProtocolException("WAVE chunk too big: " + size);
+            } else {
+                skip(is, size);
+            }
+            if ((size & 1) != 0)
+                skip(is, 1);
+        }
+    }
+
+    private static StreamHeader readWavFmt(PushbackInputStream is, int size) throws IOException {
+        int format = readShortLE(is);
+        final int channels = readShortLE(is);
+        final int sampleRate = readIntLE(is);
+        readIntLE(is); /* byte rate */
+        readShortLE(is); /* block align */
+        final int bits = readShortLE(is);
+        int left = size - 16;
+
+        int channelMask = getDefaultChannelMask(channels);
+        if (format == sWavFormatExtensible && left >= 24) {
+            readShortLE(is); /* extension size */
+            readShortLE(is); /* valid bits */
+            final int wavMask = readIntLE(is);
+            /* the sub format GUID starts with the format tag */
+            format = readShortLE(is);
+            left -= 10;
+            /* WAVE speaker positions are the AudioFormat ones shifted by 2 */
+            if (wavMask != 0 && Integer.bitCount(wavMask) == channels)
+                channelMask = wavMask << 2;
+        }
+        skip(is, left);
+
+        final int encoding;
+        if (format == sWavFormatPcm) {
+            switch (bits) {
+                case 8:
+                    encoding = PcmConverter.ENCODING_PCM_8BIT;
+                    break;
+                case 16:
+                    encoding = PcmConverter.ENCODING_PCM_16BIT;
+                    break;
+                case 24:
+                    encoding = PcmConverter.ENCODING_PCM_24BIT;
+                    break;
+                case 32:
+                    encoding = PcmConverter.ENCODING_PCM_32BIT;
+                    break;
+                default:
+                    throw new ProtocolException("WAVE bits per sample not handled: " + bits);
+            }
+        } else if (format == sWavFormatFloat && bits == 32) {
+            encoding = PcmConverter.ENCODING_PCM_FLOAT;
+        } else {
+            throw new ProtocolException("WAVE format not handled: " + format + "/" + bits);
+        }
+        if (channelMask == -1)
+            throw new ProtocolException("WAVE channel count not handled: " + channels);
+        return new StreamHeader(sampleRate, channelMask, encoding, CODEC_NONE);
+    }
+
+    private static int getDefaultChannelMask(int channels) {
+        switch (channels) {
+            case 1:
+                return sChannelMono;
+            case 2:
+                return sChannelStereo;
+            case 4:
+                return sChannelQuad;
+            case 6:
+                return sChannel5Point1;
+            case 8:
+                return sChannel7Point1;
+            default:
+                return -1;
+        }
+    }
+
+    private static int readByte(PushbackInputStream is) throws IOException {
+        final int b = is.read();
+        if (b == -1)
+            throw new EOFException("stream header truncated");
+        return b;
+    }
+
+    private static int readShortLE(PushbackInputStream is) throws IOException {
+        return readByte(is) | (readByte(is) << 8);
+    }
+
+    private static int readIntLE(PushbackInputStream is) throws IOException {
+        return readShortLE(is) | (readShortLE(is) << 16);
+    }
+
+    private static int readIntBE(PushbackInputStream is) throws IOException {
+        return (readByte(is) << 24) | (readByte(is) << 16) | (readByte(is) << 8) | readByte(is);
+    }
+
+    private static int readIntBE(byte[] b, int offset) {
+        return (b[offset] << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) |
+                (b[offset + 3] & 0xff);
+    }
+
+    private static void skip(PushbackInputStream is, int count) throws IOException {
+        while (count-- > 0)
+            readByte(is);
+    }
+}
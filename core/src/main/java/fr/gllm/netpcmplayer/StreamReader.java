@@ -0,0 +1,87 @@
+/*
+ *  StreamReader  Loop of the reader threads, from a stream into the ring of its source
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/*
+ * The reader thread only drains the stream, the AudioWriter thread feeds the AudioTrack. Reads
+ * time out quickly: a short silence is concealed by the mixer, the session only ends once the
+ * silence lasts longer than the adaptive threshold of the liveness monitor. The ring is ended
+ * when the stream is, closed otherwise, and left as is when the source was retired so that the
+ * old AudioWriter plays what it holds.
+ */
+final class StreamReader {
+
+    /* the source was retired, the stream continues into another one */
+    static final int RETIRED = 0;
+    /* the peer closed the stream */
+    static final int END_OF_STREAM = 1;
+    /* the stream was silent for longer than the liveness threshold */
+    static final int EXPIRED = 2;
+    /* the consumer closed the ring */
+    static final int ABORTED = 3;
+
+    interface Listener {
+        /* bytes stored into the ring, and the arrival jitter after them */
+        void onRead(int bytes, long jitterNs);
+    }
+
+    private StreamReader() {
+    }
+
+    /*
+     * Read is into ring, maxBytes at once, until one of the results above. source, if not null,
+     * is the one ring belongs to. An IOException of the stream closes the ring. watch, if not
+     * null, brackets every read, the wait for room in the ring included.
+     */
+    static int run(InputStream is, PcmRingBuffer ring, PcmSource source,
+                   LivenessMonitor liveness, int maxBytes, Watchdog.Component watch,
+                   Listener listener) throws IOException {
+        int result = ABORTED;
+        try {
+            while (true) {
+                if (source != null && source.isRetired())
+                    return result = RETIRED;
+                int read;
+                if (watch != null)
+                    watch.enter(System.nanoTime());
+                try {
+                    read = ring.write(is, maxBytes);
+                } catch (SocketTimeoutException timeoutIgnored) {
+                    read = 0;
+                } finally {
+                    if (watch != null)
+                        watch.exit();
+                }
+                final long now = System.nanoTime();
+                if (read > 0) {
+                    liveness.onArrival(now, read);
+                    listener.onRead(read, liveness.getJitterNs());
+                } else if (read == 0 && liveness.isExpired(now))
+                    return result = EXPIRED;
+                if (read == -1) {
+                    if (source != null && source.isRetired())
+                        return result = RETIRED;
+                    return result = ring.isClosed() ? ABORTED : END_OF_STREAM;
+                }
+            }
+        } finally {
+            if (result == END_OF_STREAM || result == EXPIRED)
+                ring.setEndOfStream();
+            else if (result != RETIRED)
+                ring.close();
+        }
+    }
+}
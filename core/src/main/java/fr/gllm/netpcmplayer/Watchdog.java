@@ -0,0 +1,108 @@
+/*
+ *  Watchdog      Thread recovering the components stuck in a blocking call
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A component brackets its blocking call (an AudioTrack write, a socket read) with enter() and
+ * exit(): two volatile writes, nothing is locked on the hot path. The watchdog thread polls the
+ * components and recovers the one whose call lasts longer than its timeout, once per call: the
+ * recovery unblocks or replaces that component alone, the others keep running.
+ */
+final class Watchdog implements Runnable {
+
+    private static final long sIdle = Long.MIN_VALUE;
+
+    interface Recovery {
+        /* Watchdog thread: the call of component started stuckNs ago */
+        void recover(Component component, long stuckNs);
+    }
+
+    static final class Component {
+        final String name;
+        private final Watchdog mWatchdog;
+        private final long mTimeoutNs;
+        private final Recovery mRecovery;
+        /* start of the blocking call in progress, sIdle outside of one */
+        private volatile long mEnterNs = sIdle;
+        /* watchdog thread only: start of the call already recovered */
+        private long mRecoveredNs = sIdle;
+
+        private Component(Watchdog watchdog, String name, long timeoutNs, Recovery recovery) {
+            mWatchdog = watchdog;
+            this.name = name;
+            mTimeoutNs = timeoutNs;
+            mRecovery = recovery;
+        }
+
+        /* Owner thread: a blocking call starts at nowNs */
+        void enter(long nowNs) {
+            mEnterNs = nowNs;
+        }
+
+        /* Owner thread: the blocking call returned */
+        void exit() {
+            mEnterNs = sIdle;
+        }
+
+        /* Any thread: stop watching, the recovery isn't called anymore once it returns */
+        void unregister() {
+            mWatchdog.mComponents.remove(this);
+        }
+
+        private void check(long nowNs) {
+            final long enterNs = mEnterNs;
+            if (enterNs == sIdle || enterNs == mRecoveredNs || nowNs - enterNs < mTimeoutNs)
+                return;
+            mRecoveredNs = enterNs;
+            mRecovery.recover(this, nowNs - enterNs);
+        }
+    }
+
+    private final long mPollNs;
+    private final CopyOnWriteArrayList<Component> mComponents = new CopyOnWriteArrayList<>();
+    private volatile Thread mThread = null;
+    private volatile boolean mQuit = false;
+
+    Watchdog(long pollNs) {
+        mPollNs = pollNs;
+    }
+
+    /* Any thread: watch a component, its recovery is called from the watchdog thread */
+    Component register(String name, long timeoutNs, Recovery recovery) {
+        final Component component = new Component(this, name, timeoutNs, recovery);
+        mComponents.add(component);
+        return component;
+    }
+
+    /* Any thread: stop the loop, run() returns shortly */
+    void quit() {
+        mQuit = true;
+        final Thread thread = mThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        mThread = Thread.currentThread();
+        while (!mQuit) {
+            LockSupport.parkNanos(this, mPollNs);
+            final long now = System.nanoTime();
+            for (Component component : mComponents)
+                component.check(now);
+        }
+        mThread = null;
+    }
+}
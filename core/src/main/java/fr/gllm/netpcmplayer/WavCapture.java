@@ -0,0 +1,288 @@
+/*
+ *  WavCapture    Rolling WAV capture of the received PCM, memory mapped
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * The stream reader tees what it receives into a ring and never waits: its only cost is that
+ * copy. When the ring is full, the frames are dropped and counted. A trailing partial frame is
+ * held back until the next read completes it, so that a drop never leaves the capture misaligned.
+ * The capture thread drains the ring into a chunk, where big endian samples are swapped (WAV is
+ * little endian), then copies the chunk into a WAV file mapped in memory: two more copies, but
+ * no system call per block. A file is only mapped if the disk can hold it: writing a mapping the
+ * file system can't back would crash the process.
+ * The capture rolls between two files of half the size cap each: once one is full, it is cut to
+ * its length and the other one is overwritten, so the last cap / 2 to cap bytes are always on
+ * disk. The header sizes are updated after each block, a file is readable even after a crash.
+ * Java can't unmap a MappedByteBuffer: the mapping of a finished file is dropped, but only
+ * released once garbage collected. Until then it holds cap / 2 of address space, not memory,
+ * its pages being already written back by force().
+ */
+final class WavCapture implements Runnable {
+
+    private static final int sRiffSize = 12;
+    private static final int sFmtSize = 8 + 16;
+    private static final int sFmtExtensibleSize = 8 + 40;
+    private static final int sDataHeaderSize = 8;
+    private static final int sWavFormatPcm = 1;
+    private static final int sWavFormatFloat = 3;
+    private static final int sWavFormatExtensible = 0xfffe;
+    private static final int sChunkBytes = 16384;
+    private static final long sWaitNs = 100000000L;
+
+    private final File[] mFiles;
+    private final int mEncoding;
+    private final int mChannelMask;
+    private final int mSampleRate;
+    private final int mFrameSize;
+    private final int mBytesPerSample;
+    private final int mHeaderSize;
+    /* data bytes per file, whole frames */
+    private final int mFileDataBytes;
+    private final PcmRingBuffer mRing;
+    private final byte[] mChunk;
+
+    /* producer only */
+    private final byte[] mCarry;
+    private int mCarryBytes = 0;
+    private final byte[] mOneByte = new byte[1];
+    private volatile long mDroppedBytes = 0;
+    /* capture thread only */
+    private MappedByteBuffer mMap = null;
+    private int mFileIndex = -1;
+    private int mDataBytes;
+    private volatile long mCapturedBytes = 0;
+    private volatile IOException mError = null;
+
+    /*
+     * first and second are the two files of the rolling capture, capBytes their total size.
+     * ringBytes is the backlog the capture thread may have before the reader drops bytes.
+     */
+    WavCapture(File first, File second, long capBytes, int sampleRate, int channelMask,
+               int encoding, int ringBytes) {
+        final int bytesPerSample = PcmConverter.getBytesPerSample(encoding);
+        final int channels = Integer.bitCount(channelMask);
+        if (bytesPerSample <= 0 || channels == 0 || sampleRate <= 0)
+            throw new IllegalArgumentException("invalid capture format");
+        mFiles = new File[] { first, second };
+        mEncoding = encoding;
+        mChannelMask = channelMask;
+        mSampleRate = sampleRate;
+        mBytesPerSample = bytesPerSample;
+        mFrameSize = channels * bytesPerSample;
+        mHeaderSize = sRiffSize + (isExtensible() ? sFmtExtensibleSize : sFmtSize) +
+                sDataHeaderSize;
+        final long fileDataBytes = Math.min(capBytes / 2, Integer.MAX_VALUE - mHeaderSize);
+        mFileDataBytes = (int) (fileDataBytes / mFrameSize * mFrameSize);
+        if (mFileDataBytes <= 0)
+            throw new IllegalArgumentException("capture cap too small: " + capBytes);
+        mRing = new PcmRingBuffer(ringBytes, mFrameSize);
+        mCarry = new byte[mFrameSize];
+        mChunk = new byte[sChunkBytes / mFrameSize * mFrameSize];
+    }
+
+    /* Anything else than 16 bits or less of mono or stereo needs the extensible format */
+    private boolean isExtensible() {
+        return Integer.bitCount(mChannelMask) > 2 || mBytesPerSample > 2;
+    }
+
+    /* Producer: copy bytes received, dropped if the capture thread is late */
+    void write(byte[] b, int off, int len) {
+        final int total = mCarryBytes + len;
+        final int whole = total / mFrameSize * mFrameSize;
+        if (whole == 0) {
+            System.arraycopy(b, off, mCarry, mCarryBytes, len);
+            mCarryBytes += len;
+            return;
+        }
+        /* only this thread writes: the free space can't shrink before the copy */
+        if (mRing.getCapacity() - mRing.getFill() < whole ||
+                !mRing.write(mCarry, 0, mCarryBytes) ||
+                !mRing.write(b, off, whole - mCarryBytes))
+            mDroppedBytes += whole;
+        /* the partial frame left is at the end of b */
+        mCarryBytes = total - whole;
+        System.arraycopy(b, off + len - mCarryBytes, mCarry, 0, mCarryBytes);
+    }
+
+    /* Producer: wrap a stream so that everything read from it is captured */
+    InputStream tee(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    mOneByte[0] = (byte) b;
+                    write(mOneByte, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0)
+                    write(b, off, read);
+                return read;
+            }
+        };
+    }
+
+    /* Producer: the stream ended, run() stores what is left and returns */
+    void close() {
+        mRing.setEndOfStream();
+    }
+
+    /* Any thread: stop now, what is left in the ring is lost */
+    void abort() {
+        mRing.close();
+    }
+
+    long getCapturedBytes() {
+        return mCapturedBytes;
+    }
+
+    long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /* Error that stopped the capture, null if none */
+    IOException getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int read;
+            while ((read = mRing.read(mChunk, 0, mChunk.length, sWaitNs)) != -1) {
+                if (read > 0)
+                    store(read);
+            }
+        } catch (IOException e) {
+            mError = e;
+            /* the producer keeps writing without blocking, into a ring nobody reads */
+            mRing.close();
+        } finally {
+            try {
+                finishFile();
+            } catch (IOException e) {
+                if (mError == null)
+                    mError = e;
+            }
+        }
+    }
+
+    private void store(int length) throws IOException {
+        if (PcmConverter.isBigEndian(mEncoding))
+            swapBytes(mChunk, length, mBytesPerSample);
+        int offset = 0;
+        while (offset < length) {
+            if (mMap == null || mDataBytes == mFileDataBytes)
+                nextFile();
+            final int count = Math.min(length - offset, mFileDataBytes - mDataBytes);
+            mMap.position(mHeaderSize + mDataBytes);
+            mMap.put(mChunk, offset, count);
+            mDataBytes += count;
+            offset += count;
+            mCapturedBytes += count;
+            updateSizes();
+        }
+    }
+
+    /* Cut the current file to its length and start the other one */
+    private void nextFile() throws IOException {
+        finishFile();
+        mFileIndex = (mFileIndex + 1) % mFiles.length;
+        final File file = mFiles[mFileIndex];
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            if (file.getUsableSpace() < 2L * (mHeaderSize + mFileDataBytes))
+                throw new IOException("not enough space for the capture: " + file);
+            mMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    mHeaderSize + mFileDataBytes);
+        } finally {
+            raf.close();
+        }
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+        mDataBytes = 0;
+        writeHeader();
+    }
+
+    private void finishFile() throws IOException {
+        if (mMap == null)
+            return;
+        mMap.force();
+        mMap = null;
+        /* the mapping stays valid up to the new length, which is never accessed again */
+        final RandomAccessFile raf = new RandomAccessFile(mFiles[mFileIndex], "rw");
+        try {
+            raf.setLength(mHeaderSize + mDataBytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeHeader() {
+        final int channels = Integer.bitCount(mChannelMask);
+        final int bits = mBytesPerSample * 8;
+        final int format = mEncoding == PcmConverter.ENCODING_PCM_FLOAT ||
+                mEncoding == PcmConverter.ENCODING_PCM_FLOAT_BE ? sWavFormatFloat : sWavFormatPcm;
+        mMap.position(0);
+        mMap.put(new byte[] { 'R', 'I', 'F', 'F' });
+        mMap.putInt(0);
+        mMap.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        mMap.putInt(isExtensible() ? 40 : 16);
+        mMap.putShort((short) (isExtensible() ? sWavFormatExtensible : format));
+        mMap.putShort((short) channels);
+        mMap.putInt(mSampleRate);
+        mMap.putInt(mSampleRate * mFrameSize);
+        mMap.putShort((short) mFrameSize);
+        mMap.putShort((short) bits);
+        if (isExtensible()) {
+            mMap.putShort((short) 22);
+            mMap.putShort((short) bits);
+            /* WAVE speaker positions are the AudioFormat ones shifted by 2 */
+            mMap.putInt(mChannelMask >>> 2);
+            /* sub format GUID: the format tag then 00000000-0010-8000-00aa00389b71 */
+            mMap.putInt(format);
+            mMap.put(new byte[] { 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xaa,
+                    0x00, 0x38, (byte) 0x9b, 0x71 });
+        }
+        mMap.put(new byte[] { 'd', 'a', 't', 'a' });
+        mMap.putInt(0);
+    }
+
+    private void updateSizes() {
+        mMap.putInt(4, mHeaderSize - 8 + mDataBytes);
+        mMap.putInt(mHeaderSize - 4, mDataBytes);
+    }
+
+    private static void swapBytes(byte[] b, int length, int bytesPerSample) {
+        for (int i = 0; i + bytesPerSample <= length; i += bytesPerSample) {
+            for (int lo = i, hi = i + bytesPerSample - 1; lo < hi; ++lo, --hi) {
+                final byte t = b[lo];
+                b[lo] = b[hi];
+                b[hi] = t;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  LosslessCodecTest Round trips of PCM through LosslessEncoder and LosslessDecoder
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LosslessCodecTest {
+
+    private static final int[] sEncodings = {
+            PcmConverter.ENCODING_PCM_8BIT,
+            PcmConverter.ENCODING_PCM_16BIT,
+            PcmConverter.ENCODING_PCM_24BIT,
+    };
+    private static final int sFrames = 1024;
+
+    /* A sine per channel plus noise: every predictor order, and verbatim for the noisy ones */
+    private static byte[] makePcm(int encoding, int channels, int frames, long seed) {
+        final Random random = new Random(seed);
+        final float[] samples = new float[frames * channels];
+        for (int f = 0; f < frames; ++f)
+            for (int c = 0; c < channels; ++c)
+                samples[f * channels + c] = (float) (0.5 * Math.sin(2 * Math.PI * (c + 1) * f /
+                        frames) + (c % 2 == 0 ? 0.0 : 0.4 * (random.nextFloat() - 0.5)));
+        final byte[] pcm = new byte[frames * channels * PcmConverter.getBytesPerSample(encoding)];
+        PcmConverter.fromFloat(encoding, samples, samples.length, pcm, 0);
+        return pcm;
+    }
+
+    private static byte[] concat(byte[] a, int aLength, byte[] b, int bLength) {
+        final byte[] out = Arrays.copyOf(a, aLength + bLength);
+        System.arraycopy(b, 0, out, aLength, bLength);
+        return out;
+    }
+
+    /* Decode one frame of the stream and check it against pcm */
+    private static void assertFrame(LosslessDecoder decoder, byte[] pcm, int frames)
+            throws IOException {
+        assertEquals(frames, decoder.decodeFrame());
+        assertArrayEquals(pcm, Arrays.copyOf(decoder.getOutput(), pcm.length));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (int encoding : sEncodings) {
+            for (int channels = 1; channels <= 8; ++channels) {
+                final byte[] pcm = makePcm(encoding, channels, sFrames, encoding * 8 + channels);
+                final LosslessEncoder encoder = new LosslessEncoder(encoding, channels);
+                final byte[] out = new byte[encoder.getMaxFrameSize(sFrames)];
+                final int length = encoder.encode(pcm, 0, sFrames, out, 0);
+
+                final LosslessDecoder decoder = new LosslessDecoder(encoding, channels);
+                decoder.reset(new ByteArrayInputStream(out, 0, length));
+                assertFrame(decoder, pcm, sFrames);
+                assertEquals(-1, decoder.decodeFrame());
+            }
+        }
+    }
+
+    @Test
+    public void roundTripSilenceAndShortBlocks() throws IOException {
+        for (int encoding : sEncodings) {
+            /* fewer frames than the highest predictor order, then digital silence */
+            final int channels = 2;
+            final byte[] shortPcm = makePcm(encoding, channels, 3, 1);
+            final byte[] silence = new byte[sFrames * channels *
+                    PcmConverter.getBytesPerSample(encoding)];
+            PcmConverter.fromFloat(encoding, new float[sFrames * channels], sFrames * channels,
+                    silence, 0);
+            final LosslessEncoder encoder = new LosslessEncoder(encoding, channels);
+            final byte[] a = new byte[encoder.getMaxFrameSize(3)];
+            final byte[] b = new byte[encoder.getMaxFrameSize(sFrames)];
+            final byte[] stream = concat(a, encoder.encode(shortPcm, 0, 3, a, 0),
+                    b, encoder.encode(silence, 0, sFrames, b, 0));
+
+            final LosslessDecoder decoder = new LosslessDecoder(encoding, channels);
+            decoder.reset(new ByteArrayInputStream(stream));
+            assertFrame(decoder, shortPcm, 3);
+            assertFrame(decoder, silence, sFrames);
+            assertEquals(-1, decoder.decodeFrame());
+        }
+    }
+
+    @Test
+    public void keepalive() throws IOException {
+        final int encoding = PcmConverter.ENCODING_PCM_16BIT;
+        final byte[] pcm = makePcm(encoding, 2, sFrames, 3);
+        final LosslessEncoder encoder = new LosslessEncoder(encoding, 2);
+        final byte[] frame = new byte[encoder.getMaxFrameSize(sFrames)];
+        final int length = encoder.encode(pcm, 0, sFrames, frame, 0);
+        final byte[] keepalive = new byte[4];
+        LosslessEncoder.encodeKeepalive(keepalive, 0);
+        final byte[] stream = concat(concat(keepalive, 4, frame, length), 4 + length,
+                keepalive, 4);
+
+        final LosslessDecoder decoder = new LosslessDecoder(encoding, 2);
+        decoder.reset(new ByteArrayInputStream(stream));
+        assertEquals(0, decoder.decodeFrame());
+        assertFrame(decoder, pcm, sFrames);
+        assertEquals(0, decoder.decodeFrame());
+        assertEquals(-1, decoder.decodeFrame());
+    }
+
+    @Test
+    public void truncatedFrame() throws IOException {
+        final int encoding = PcmConverter.ENCODING_PCM_24BIT;
+        final byte[] pcm = makePcm(encoding, 2, sFrames, 4);
+        final LosslessEncoder encoder = new LosslessEncoder(encoding, 2);
+        final byte[] frame = new byte[encoder.getMaxFrameSize(sFrames)];
+        final int length = encoder.encode(pcm, 0, sFrames, frame, 0);
+
+        final LosslessDecoder decoder = new LosslessDecoder(encoding, 2);
+        decoder.reset(new ByteArrayInputStream(frame, 0, length / 2));
+        try {
+            decoder.decodeFrame();
+            fail("truncated frame decoded");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void lostSync() throws IOException {
+        final int encoding = PcmConverter.ENCODING_PCM_16BIT;
+        final byte[] pcm = makePcm(encoding, 1, sFrames, 5);
+        final LosslessEncoder encoder = new LosslessEncoder(encoding, 1);
+        final byte[] frame = new byte[encoder.getMaxFrameSize(sFrames)];
+        final int length = encoder.encode(pcm, 0, sFrames, frame, 0);
+
+        /* a valid frame, then the same frame missing its first byte */
+        final byte[] stream = concat(frame, length, Arrays.copyOfRange(frame, 1, length),
+                length - 1);
+        final LosslessDecoder decoder = new LosslessDecoder(encoding, 1);
+        decoder.reset(new ByteArrayInputStream(stream));
+        assertFrame(decoder, pcm, sFrames);
+        try {
+            decoder.decodeFrame();
+            fail("frame without sync decoded");
+        } catch (ProtocolException expected) {
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *  PcmConverterTest Decoding of the float samples received from the network
+ *  Copyright (c) 2017 Thomas Guillem <thomas@gllm.fr>
+ *                All Rights Reserved
+ *
+ *  This program is free software. It comes without any warranty, to
+ *  the extent permitted by applicable law. You can redistribute it
+ *  and/or modify it under the terms of the Do What the Fuck You Want
+ *  to Public License, Version 2, as published by Sam Hocevar. See
+ *  http://www.wtfpl.net/ for more details.
+ */
+package fr.gllm.netpcmplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class PcmConverterTest {
+
+    private static final float[] sReceived = {
+            0.5f, -0.25f, 1.5f, -3f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+            Float.intBitsToFloat(0x7fc00001), -0f, Float.MIN_VALUE,
+    };
+    private static final float[] sDecoded = {
+            0.5f, -0.25f, 1f, -1f, 0f, 0f, 0f, 0f, -0f, Float.MIN_VALUE,
+    };
+
+    private static byte[] encode(float[] samples, boolean bigEndian) {
+        final byte[] b = new byte[samples.length * 4];
+        for (int i = 0; i < samples.length; ++i) {
+            final int bits = Float.floatToRawIntBits(samples[i]);
+            for (int k = 0; k < 4; ++k)
+                b[i * 4 + (bigEndian ? 3 - k : k)] = (byte) (bits >> (8 * k));
+        }
+        return b;
+    }
+
+    @Test
+    public void nonFiniteFloatsAreSilenced() {
+        final float[] dst = new float[sReceived.length];
+        PcmConverter.toFloat(PcmConverter.ENCODING_PCM_FLOAT, encode(sReceived, false), 0, dst,
+                dst.length);
+        assertArrayEquals(sDecoded, dst, 0f);
+        PcmConverter.toFloat(PcmConverter.ENCODING_PCM_FLOAT_BE, encode(sReceived, true), 0, dst,
+                dst.length);
+        assertArrayEquals(sDecoded, dst, 0f);
+    }
+}